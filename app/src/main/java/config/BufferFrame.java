@@ -0,0 +1,90 @@
+package config;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data frame whose payload is a pooled ByteBuffer instead of an array.
+ * <p>The buffer is written with Transport.write(ByteBuffer) and returned to its BufferPool once the
+ * frame and all of its slices were written.</p>
+ *
+ * @author Martin
+ *
+ */
+class BufferFrame extends Frame {
+
+    /**
+     * The bytes of this frame (a view of the pooled buffer).
+     */
+    private final ByteBuffer data;
+    /**
+     * The buffer returned to the pool.
+     */
+    private final ByteBuffer pooled;
+    private final BufferPool pool;
+    /**
+     * Frames (this frame and its slices) not released yet, shared by all slices.
+     */
+    private final AtomicInteger references;
+
+    /**
+     * Standard constructor.
+     *
+     * @param opcode the opcode of the frame
+     * @param data the payload, from position to limit
+     * @param pool the pool the buffer is returned to
+     */
+    BufferFrame(byte opcode, ByteBuffer data, BufferPool pool){
+        super(opcode, null);
+        this.data = data.slice();
+        this.pooled = data;
+        this.pool = pool;
+        this.references = new AtomicInteger(1);
+    }
+
+    private BufferFrame(BufferFrame parent, ByteBuffer data){
+        super(parent.getOpcode(), parent.getRequestId(), null);
+        this.data = data;
+        this.pooled = parent.pooled;
+        this.pool = parent.pool;
+        this.references = parent.references;
+    }
+
+    /**
+     * Creates a frame with a part of the payload, sharing the buffer (no copy).
+     *
+     * @param off offset in the payload
+     * @param len length of the slice
+     * @return the slice
+     */
+    BufferFrame slice(int off, int len){
+        ByteBuffer part = this.data.duplicate();
+        part.position(off);
+        part.limit(off + len);
+        this.references.incrementAndGet();
+        return new BufferFrame(this, part.slice());
+    }
+
+    /**
+     * Returns the payload of the frame (the position is not changed by the frame).
+     *
+     * @return a view of the payload
+     */
+    ByteBuffer getData(){
+        return this.data.duplicate();
+    }
+
+    @Override
+    public int getPayloadLength(){
+        return this.data.remaining();
+    }
+
+    /**
+     * Releases this frame, the buffer returns to the pool once all slices were released.
+     */
+    void release(){
+        if (this.references.decrementAndGet() == 0){
+            this.pool.release(this.pooled);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package config;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct ByteBuffers for uploads.
+ * <p>Multi-megabyte images are read in chunks of Misc.UPLOAD_BUFFER_SIZE into direct buffers, which
+ * a FileChannel fills and a NioTransport encrypts without copying them into the Java heap.
+ * The buffers are reused across transfers instead of allocating new ones for every image.</p>
+ * <p>At most maxPooled buffers are in use at once, acquire() blocks until a buffer is released.
+ * This bounds the memory held by queued chunks, however small the chunks are.</p>
+ *
+ * @author Martin
+ *
+ */
+public class BufferPool {
+
+    /**
+     * The pool shared by all uploads.
+     */
+    private static final BufferPool SHARED = new BufferPool(Misc.UPLOAD_BUFFER_SIZE, Misc.UPLOAD_BUFFERS_POOLED);
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * Guarded by this: buffers ready to be reused.
+     */
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int inUse;
+    private long allocated;
+    private long reused;
+
+    /**
+     * Returns the pool shared by all uploads.
+     *
+     * @return the shared pool
+     */
+    public static BufferPool getShared(){
+        return SHARED;
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param bufferSize the capacity of the buffers
+     * @param maxPooled the maximum number of buffers in use and kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocates a new one if the pool is empty.
+     * <p>Waits while maxPooled buffers are in use.</p>
+     *
+     * @return a buffer with Misc.UPLOAD_BUFFER_SIZE bytes remaining
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public synchronized ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            while (this.inUse >= this.maxPooled){
+                wait();
+            }
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        this.inUse++;
+
+        ByteBuffer buffer = this.free.poll();
+        if (buffer == null){
+            this.allocated++;
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        this.reused++;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used by the caller afterwards.
+     *
+     * @param buffer the buffer taken with acquire()
+     */
+    public synchronized void release(ByteBuffer buffer){
+        this.inUse--;
+        notifyAll();
+        if (buffer.capacity() == this.bufferSize && this.free.size() < this.maxPooled){
+            this.free.push(buffer);
+        }
+    }
+
+    /**
+     * Allocates the buffers up to maxPooled in advance, so a transfer that is short on time does not wait for it.
+     */
+    public synchronized void prime(){
+        while (this.free.size() + this.inUse < this.maxPooled){
+            this.allocated++;
+            this.free.push(ByteBuffer.allocateDirect(this.bufferSize));
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffers.
+     *
+     * @return size of a buffer in bytes
+     */
+    public int getBufferSize(){
+        return this.bufferSize;
+    }
+
+    /**
+     * Returns the number of buffers taken with acquire() and not released yet.
+     *
+     * @return number of buffers in use
+     */
+    public synchronized int getInUse(){
+        return this.inUse;
+    }
+
+    public synchronized long getAllocated(){
+        return this.allocated;
+    }
+
+    public synchronized long getReused(){
+        return this.reused;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "BufferPool: " + this.allocated + " allocated, " + this.reused + " reused, " + this.inUse + " in use, " + this.free.size() + " free";
+    }
+}
@@ -0,0 +1,157 @@
+package config;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the camera a pipe instead of a file to write the image into (capture streaming).
+ * <p>open() creates a pipe and a content URI for its write end, the URI is passed to the camera as
+ * MediaStore.EXTRA_OUTPUT. The camera opens the URI with openFile() and writes the image, the client reads it
+ * from the other end while it is written and uploads it on the way (see Client.evaluateStreamCapture()).
+ * The image does not have to be written to the sd card and read again.</p>
+ * <p>The write end is handed out once: a camera that opens the URI twice gets a FileNotFoundException.</p>
+ *
+ * @author Martin
+ *
+ */
+public class CaptureProvider extends ContentProvider {
+
+    /**
+     * An image the camera writes into a pipe.
+     */
+    public static final class Capture implements Closeable {
+
+        private final String name;
+        private final Uri uri;
+        private final InputStream in;
+
+        Capture(String name, Uri uri, InputStream in){
+            this.name = name;
+            this.uri = uri;
+            this.in = in;
+        }
+
+        /**
+         * Returns the URI the camera writes the image to.
+         *
+         * @return the content URI of the capture
+         */
+        public Uri getUri(){
+            return this.uri;
+        }
+
+        /**
+         * Returns the stream of the image, it ends when the camera closes the pipe.
+         *
+         * @return the read end of the pipe
+         */
+        public InputStream getInputStream(){
+            return this.in;
+        }
+
+        /**
+         * Closes the write end if the camera did not open it yet (e.g. the capture was cancelled),
+         * so the stream ends instead of blocking.
+         */
+        public void cancel(){
+            ParcelFileDescriptor write;
+            synchronized (PENDING){
+                write = PENDING.remove(this.name);
+            }
+            if (write != null){
+                try {
+                    write.close();
+                }catch(IOException eIO){
+                    Log.d(Misc.TAG, "Failed to close the pipe of " + this.uri, eIO);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            cancel();
+            this.in.close();
+        }
+    }
+
+    /**
+     * Guarded by itself: the write ends of the pipes the camera did not open yet, by the name in their URI.
+     */
+    private static final Map<String, ParcelFileDescriptor> PENDING = new HashMap<>();
+    private static final AtomicInteger NEXT = new AtomicInteger();
+
+    /**
+     * Creates a pipe for an image and registers its write end.
+     *
+     * @return the capture with the URI for the camera and the stream of the image
+     * @throws IOException if the pipe could not be created
+     */
+    public static Capture open() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        String name = "capture" + NEXT.incrementAndGet() + ".jpg";
+        synchronized (PENDING){
+            PENDING.put(name, pipe[1]);
+        }
+        Uri uri = Uri.parse("content://" + Misc.CAPTURE_AUTHORITY + "/" + name);
+        return new Capture(name, uri, new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]));
+    }
+
+    @Override
+    public boolean onCreate(){
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (mode == null || !mode.contains("w")){
+            throw new FileNotFoundException("A capture can only be written: " + uri);
+        }
+
+        ParcelFileDescriptor write;
+        synchronized (PENDING){
+            write = PENDING.remove(uri.getLastPathSegment());
+        }
+        if (write == null){
+            throw new FileNotFoundException("No capture waiting for " + uri);
+        }
+        Log.d(Misc.TAG, "Camera opened " + uri);
+        return write;
+    }
+
+    @Override
+    public String getType(Uri uri){
+        return "image/jpeg";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values){
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs){
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs){
+        return 0;
+    }
+}
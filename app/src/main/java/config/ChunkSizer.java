@@ -0,0 +1,196 @@
+package config;
+
+/**
+ * Chooses the size of the chunks an image is sent in and reports the throughput of the transfer.
+ * <p>The size starts where the previous transfer ended and is doubled or halved between
+ * Misc.CHUNK_MIN_SIZE and Misc.CHUNK_MAX_SIZE: after every Misc.CHUNK_STEP_BYTES the throughput of the
+ * step is compared with the previous step, the size keeps moving in the same direction while the
+ * throughput does not drop by more than Misc.CHUNK_TOLERANCE and turns around otherwise.
+ * A single write slower than Misc.CHUNK_MAX_LATENCY halves the size right away.</p>
+ * <p>One instance belongs to one transfer, see forTransfer().</p>
+ *
+ * @author Martin
+ *
+ */
+public class ChunkSizer {
+
+    /**
+     * Guarded by ChunkSizer.class: the size the last transfer ended with.
+     */
+    private static int preferredSize = Misc.CHUNK_INITIAL_SIZE;
+
+    private final int minSize;
+    private final int maxSize;
+    /**
+     * Read by the thread filling the buffers (see UploadPipeline).
+     */
+    private volatile int chunkSize;
+    private int direction = 1;
+
+    /**
+     * Writes of the current step and throughput of the previous step (bytes per nanosecond).
+     * <p>The throughput is measured from the start of the step, not by the duration of the writes:
+     * queued writes return before the bytes left the client.</p>
+     */
+    private long stepStarted;
+    private long stepBytes;
+    private int stepChunks;
+    private double lastThroughput;
+
+    /**
+     * Statistics of the whole transfer.
+     */
+    private final long started;
+    private long finished;
+    private long totalBytes;
+    private long chunks;
+    private int smallest = Integer.MAX_VALUE;
+    private int largest;
+
+    /**
+     * Creates the sizer for a new transfer, starting with the size the previous transfer ended with.
+     *
+     * @return the sizer for the transfer
+     */
+    public static ChunkSizer forTransfer(){
+        synchronized (ChunkSizer.class){
+            return new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, preferredSize);
+        }
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param minSize the smallest chunk size
+     * @param maxSize the largest chunk size
+     * @param initialSize the size of the first chunks
+     */
+    public ChunkSizer(int minSize, int maxSize, int initialSize){
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.chunkSize = clamp(initialSize);
+        this.started = now();
+        this.stepStarted = this.started;
+    }
+
+    /**
+     * Returns the size of the next chunk.
+     *
+     * @return number of bytes to send with the next write
+     */
+    public int getChunkSize(){
+        return this.chunkSize;
+    }
+
+    /**
+     * Returns the largest chunk this sizer may choose, the server needs a buffer of this size.
+     *
+     * @return the maximum chunk size in bytes
+     */
+    public int getMaxChunkSize(){
+        return this.maxSize;
+    }
+
+    /**
+     * Records a written chunk and adapts the size of the following chunks.
+     *
+     * @param bytes number of bytes written
+     * @param nanos time the write needed
+     */
+    public void record(int bytes, long nanos){
+        this.totalBytes += bytes;
+        this.chunks++;
+        this.smallest = Math.min(this.smallest, bytes);
+        this.largest = Math.max(this.largest, bytes);
+
+        //a blocked write delays everything else on the connection
+        if (nanos > Misc.CHUNK_MAX_LATENCY * 1000000L){
+            this.direction = -1;
+            resize();
+            return;
+        }
+
+        this.stepBytes += bytes;
+        this.stepChunks++;
+        if (this.stepBytes < Misc.CHUNK_STEP_BYTES || this.stepChunks < 2){
+            return;
+        }
+
+        double throughput = this.stepBytes / (double) Math.max(1, now() - this.stepStarted);
+        if (throughput < this.lastThroughput * (1 - Misc.CHUNK_TOLERANCE)){
+            //the last step made it worse, go back
+            this.direction = -this.direction;
+        }
+        this.lastThroughput = throughput;
+        resize();
+    }
+
+    /**
+     * Ends the transfer, the next transfer starts with the current chunk size.
+     */
+    public void finish(){
+        this.finished = now();
+        synchronized (ChunkSizer.class){
+            preferredSize = this.chunkSize;
+        }
+    }
+
+    /**
+     * Returns the number of bytes sent with this sizer.
+     *
+     * @return the sent bytes
+     */
+    public long getTotalBytes(){
+        return this.totalBytes;
+    }
+
+    /**
+     * Returns the time from the creation of the sizer until finish() (or now).
+     *
+     * @return the duration of the transfer in milliseconds
+     */
+    public long getElapsedMillis(){
+        long end = (this.finished == 0) ? now() : this.finished;
+        return (end - this.started) / 1000000L;
+    }
+
+    /**
+     * Returns the throughput achieved by the transfer.
+     *
+     * @return megabytes (2^20 bytes) per second
+     */
+    public double getMegabytesPerSecond(){
+        long end = (this.finished == 0) ? now() : this.finished;
+        double seconds = Math.max(1, end - this.started) / 1e9;
+        return this.totalBytes / (1024.0 * 1024.0) / seconds;
+    }
+
+    private void resize(){
+        this.chunkSize = clamp((this.direction > 0) ? this.chunkSize * 2 : this.chunkSize / 2);
+        this.stepStarted = now();
+        this.stepBytes = 0;
+        this.stepChunks = 0;
+    }
+
+    /**
+     * Returns the current time the throughput is measured with (System.nanoTime()).
+     * <p>Also called by the constructor, an override must not depend on fields of its own class.</p>
+     *
+     * @return the time in nanoseconds
+     */
+    long now(){
+        return System.nanoTime();
+    }
+
+    private int clamp(int size){
+        return Math.max(this.minSize, Math.min(this.maxSize, size));
+    }
+
+    @Override
+    public String toString(){
+        return "Transfer: " + (this.totalBytes / 1024) + " KB in " + getElapsedMillis() + " ms ("
+                + String.format("%.2f", getMegabytesPerSecond()) + " MB/s), " + this.chunks + " chunks of "
+                + (this.chunks == 0 ? 0 : this.smallest / 1024) + "-" + (this.largest / 1024) + " KB, next "
+                + (this.chunkSize / 1024) + " KB";
+    }
+}
@@ -6,12 +6,24 @@ import mmi.colorgame.colorgameclient.Client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
-import java.net.SocketException;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.crypto.SealedObject;
 import javax.net.ssl.SSLSocket;
@@ -22,6 +34,16 @@ import javax.net.ssl.SSLSocket;
  * <p>The method setupConnection() is used to initialize the streams and
  * set the protocols and cipher suites of the connection.</p>
  * <p>Also implements the methods for the synchronization between client and server.</p>
+ * <p>Two protocols are supported (see Misc.PROTOCOL_*): the object stream protocol, where every message
+ * is written with an ObjectOutputStream, and the binary frame protocol, where every message is a Frame.
+ * The send and read methods behave the same for both protocols.</p>
+ * <p>With the binary frame protocol all frames are read by a RequestDispatcher, which allows to pipeline
+ * requests with sendRequest() next to the ordered conversation. The frames are written by a FrameScheduler,
+ * so pipelined requests and game messages (sendGameMessage()) are not stuck behind an image upload.</p>
+ * <p>The connection itself is a Transport, either a blocking SSLSocket or a non-blocking NioTransport.</p>
+ * <p>All timeouts are derived from the round trip time estimated by the RttEstimator, a Heartbeat
+ * detects a dead connection within a few round trips.</p>
+ * <p>Messages sent between beginBatch() and endBatch() are coalesced into as few TLS records as possible.</p>
  * <p>Lastly you can set a timeout for the socket or close the connection.</p>
  *
  * @author Martin
@@ -34,9 +56,9 @@ public class CommunicationHandler {
      */
     private final Client client;
     /**
-     * Socket of the client.
+     * Connection of the client.
      */
-    private final SSLSocket socketForClient;
+    private final Transport socketForClient;
 
     /**
      * outputStream of the client.
@@ -48,14 +70,119 @@ public class CommunicationHandler {
     private ObjectInputStream in;
 
     /**
-     * Standard constructor.
+     * Protocol spoken with the server (see Misc.PROTOCOL_*).
+     */
+    private final int protocol;
+    /**
+     * Streams of the socket, counting the bytes for the statistics.
+     * Used directly when speaking the binary frame protocol.
+     */
+    private ProtocolStats.CountingOutputStream countingOut;
+    private ProtocolStats.CountingInputStream countingIn;
+    /**
+     * Statistics about the sent and received messages.
+     */
+    private final ProtocolStats stats;
+    /**
+     * Reads and dispatches all frames (only for the binary frame protocol).
+     */
+    private RequestDispatcher dispatcher;
+    /**
+     * Writes the frames in the order of their priority (only for the binary frame protocol).
+     */
+    private FrameScheduler scheduler;
+    /**
+     * Frames may be written from several threads when requests are pipelined.
+     */
+    private final Object writeLock = new Object();
+    /**
+     * Timeout for reading from the dispatcher (milliseconds, 0 = infinite).
+     */
+    private volatile int readTimeout;
+    /**
+     * Round trip time to the server, the source of all timeouts.
+     */
+    private final RttEstimator rtt = RttEstimator.getShared();
+    /**
+     * Detects a dead connection.
+     */
+    private Heartbeat heartbeat;
+    /**
+     * Pings sent with the object stream protocol whose pong was not read yet.
+     */
+    private int unansweredPings;
+    /**
+     * Number of the current synchronization, part of the nonce.
+     */
+    private long syncEpoch;
+    /**
+     * Sequence number of the last message the server sent before the last synchronization.
+     */
+    private long serverSequence = -1;
+    /**
+     * Number of messages discarded by the current synchronization.
+     */
+    private int discardedMessages;
+    private final Random random = new Random();
+
+    /**
+     * Flushes batches that were not flushed within Misc.BATCH_MAX_DELAY.
+     */
+    private static final Timer FLUSH_TIMER = new Timer("BatchFlush", true);
+    /**
+     * Guarded by writeLock: number of open batches, nothing is flushed automatically while greater than 0.
+     */
+    private int batchDepth;
+    /**
+     * Guarded by writeLock: true if data was written since the last flush.
+     */
+    private boolean unflushed;
+    /**
+     * Guarded by writeLock: position of the counting stream at the last flush and of the last recorded message.
+     */
+    private long flushedCount, recordedCount;
+    /**
+     * Guarded by writeLock: flushes the open batch after Misc.BATCH_MAX_DELAY, null if not scheduled.
+     */
+    private TimerTask delayedFlush;
+    /**
+     * Guarded by writeLock: reused to copy pooled buffers into the ObjectOutputStream.
+     */
+    private byte[] transferArray;
+
+    /**
+     * Standard constructor, uses the protocol defined in Misc.PROTOCOL.
      *
      * @param client the client this CommunicationHandler is for
      * @param socketForClient the SSLSocket of the client
      */
     public CommunicationHandler(Client client, SSLSocket socketForClient){
+        this(client, socketForClient, Misc.PROTOCOL);
+    }
+
+    /**
+     * Constructor that allows to choose the protocol.
+     *
+     * @param client the client this CommunicationHandler is for
+     * @param socketForClient the SSLSocket of the client
+     * @param protocol the protocol to speak with the server (see Misc.PROTOCOL_*)
+     */
+    public CommunicationHandler(Client client, SSLSocket socketForClient, int protocol){
+        this(client, new SocketTransport(socketForClient), protocol);
+    }
+
+    /**
+     * Constructor that allows to choose the transport and the protocol.
+     *
+     * @param client the client this CommunicationHandler is for
+     * @param transport the connection to the server (blocking or non-blocking)
+     * @param protocol the protocol to speak with the server (see Misc.PROTOCOL_*)
+     */
+    public CommunicationHandler(Client client, Transport transport, int protocol){
         this.client = client;
-        this.socketForClient = socketForClient;
+        this.socketForClient = transport;
+        this.protocol = protocol;
+        this.stats = new ProtocolStats();
     }
 
     /**
@@ -69,23 +196,9 @@ public class CommunicationHandler {
         Log.d(Misc.TAG, "Setting up connection to server...");
 
         try {
-            Log.d(Misc.TAG, "Setting protocols and cipher suites...");
+            setTimeout(this.rtt.getTimeout(Misc.HANDSHAKE_ROUND_TRIPS));
 
-            setTimeout(Misc.TIMEOUT);
-
-            //set protocols and cipher suites
-            //if not a real phone, take suites specified in Misc class
-            if (!Misc.REAL_PHONE){
-                socketForClient.setEnabledProtocols(new String[]{Misc.TLS_PROTOCOL});
-                socketForClient.setEnabledCipherSuites(new String[]{Misc.CIPHER_SUITES});
-            }
-            //if a real phone
-            else{
-                //TODO define what cipher suites are allowed
-            }
-
-
-            Log.d(Misc.TAG, "Protocols and cipher suites set!");
+            prepareTransport(this.socketForClient);
 
             initializeStreams(this.socketForClient);
 
@@ -96,22 +209,111 @@ public class CommunicationHandler {
         Log.d(Misc.TAG, "Connection to server set up!");
     }
 
+    /**
+     * Sets the protocols and cipher suites of a transport and executes the TLS handshake.
+     * <p>Does nothing if the handshake was already done (e.g. by a ConnectionWarmer).</p>
+     *
+     * @param transport the connected transport
+     * @throws IOException if the handshake failed
+     */
+    public static void prepareTransport(Transport transport) throws IOException {
+
+        if (transport.isHandshakeDone()){
+            Log.d(Misc.TAG, "TLS handshake already done!");
+            return;
+        }
+
+        Log.d(Misc.TAG, "Setting protocols and cipher suites...");
+
+        //set protocols and cipher suites
+        //if not a real phone, take suites specified in Misc class
+        if (!Misc.REAL_PHONE){
+            transport.setEnabledProtocols(new String[]{Misc.TLS_PROTOCOL});
+            transport.setEnabledCipherSuites(new String[]{Misc.CIPHER_SUITES});
+        }
+        //if a real phone
+        else{
+            //TODO define what cipher suites are allowed
+        }
+
+
+        Log.d(Misc.TAG, "Protocols and cipher suites set!");
+
+        //execute the handshake now to see whether a cached session was resumed
+        long start = System.nanoTime();
+        transport.startHandshake();
+        TlsSessionCache.getShared().recordHandshake(transport.getSession(), System.nanoTime() - start);
+    }
+
     /**
      * Initializes the streams.
      *
      * @param socket the connected socket
      * @throws IOException if the streams can not be accessed
      */
-    private void initializeStreams(SSLSocket socket) throws IOException {
+    private void initializeStreams(Transport socket) throws IOException {
 
         Log.d(Misc.TAG, "Initializing streams...");
 
         try {
 
             //initializing streams
-            this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            this.out.flush();
-            this.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            //the buffer has to hold a whole batch, otherwise it is flushed early
+            this.countingOut = new ProtocolStats.CountingOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), Misc.BATCH_MAX_BYTES));
+            this.countingIn = new ProtocolStats.CountingInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            if (isBinaryFrames()){
+                //announce the binary frame protocol to the server
+                this.countingOut.write(FrameCodec.MAGIC);
+                this.countingOut.flush();
+
+                //from now on the dispatcher reads the socket, timeouts are handled by the dispatcher
+                socket.setSoTimeout(0);
+                this.dispatcher = new RequestDispatcher(this.countingIn, this.stats);
+                this.dispatcher.start();
+
+                this.scheduler = new FrameScheduler(new FrameScheduler.Sink() {
+                    @Override
+                    public void write(Frame frame, int priorityClass) throws IOException {
+                        if (frame instanceof BufferFrame){
+                            writeBufferFrame((BufferFrame) frame);
+                            return;
+                        }
+                        synchronized (writeLock){
+                            FrameCodec.writeFrame(countingOut, frame);
+                            //control and game frames must not wait for the batch
+                            written(priorityClass != FrameScheduler.CLASS_BULK);
+                        }
+                    }
+
+                    @Override
+                    public void idle() throws IOException {
+                        synchronized (writeLock){
+                            if (batchDepth == 0){
+                                flush();
+                            }
+                        }
+                    }
+                });
+                this.scheduler.start();
+
+                //pings are pipelined next to the conversation
+                this.heartbeat = new Heartbeat(this);
+                if (Misc.HEARTBEAT_INTERVAL > 0){
+                    this.heartbeat.start();
+                }
+            }else {
+                this.out = new ObjectOutputStream(this.countingOut);
+                this.out.flush();
+                this.in = new ObjectInputStream(this.countingIn);
+
+                //pings are sent by the client thread with keepAlive()
+                this.heartbeat = new Heartbeat(this);
+            }
+
+            this.flushedCount = this.countingOut.getCount();
+            this.recordedCount = this.flushedCount;
 
             Log.d(Misc.TAG, "Streams initialized!");
 
@@ -131,14 +333,131 @@ public class CommunicationHandler {
      */
     public void sendByteToServer(byte[] b, int off, int len) throws IOException {
         try{
-            this.out.write(b, off, len);
-            this.out.flush();
+            if (isBinaryFrames()){
+                writeFrame(Frame.OP_DATA, b, off, len);
+                return;
+            }
+
+            synchronized (this.writeLock){
+                this.out.write(b, off, len);
+                written();
+            }
         }catch(IOException eIO){
             Log.e(Misc.TAG, "Error while trying to write a byte array to server", eIO);
             throw eIO;
         }
     }
 
+    /**
+     * Sends the remaining bytes of a pooled buffer to the server (e.g. a chunk of an image read with a FileChannel).
+     * <p>With the binary frame protocol the buffer is queued as data frame and handed to the transport without
+     * being copied into an array, with the object stream protocol it is copied into an array once.
+     * The buffer returns to the pool once it was sent or the transmission failed, the caller must not use it
+     * anymore.</p>
+     *
+     * @param buffer the data to send, from position to limit
+     * @param pool the pool the buffer belongs to
+     * @throws IOException if the transmission failed
+     */
+    public void sendBufferToServer(ByteBuffer buffer, BufferPool pool) throws IOException {
+        try{
+            if (isBinaryFrames()){
+                //the scheduler releases the frame, also if it can not queue it
+                this.scheduler.submit(new BufferFrame(Frame.OP_DATA, buffer, pool), FrameScheduler.CLASS_BULK);
+                return;
+            }
+
+            try {
+                int len = buffer.remaining();
+                synchronized (this.writeLock){
+                    if (this.transferArray == null || this.transferArray.length < len){
+                        this.transferArray = new byte[len];
+                    }
+                    buffer.get(this.transferArray, 0, len);
+                    this.out.write(this.transferArray, 0, len);
+                    written();
+                }
+            }finally{
+                pool.release(buffer);
+            }
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Error while trying to write a buffer to server", eIO);
+            throw eIO;
+        }
+    }
+
+    /**
+     * Sends a range of a file to the server, read into buffers of the pool (see sendBufferToServer()).
+     *
+     * @param source the file, its position is not changed
+     * @param offset the first byte of the range
+     * @param length the number of bytes of the range
+     * @param pool the pool of the buffers
+     * @throws IOException if the file could not be read or the transmission failed
+     */
+    public void sendRangeToServer(FileChannel source, long offset, long length, BufferPool pool) throws IOException {
+        long end = offset + length;
+        while (offset < end){
+            ByteBuffer buffer = pool.acquire();
+            try {
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                while (buffer.hasRemaining()){
+                    if (source.read(buffer, offset + buffer.position()) < 0){
+                        throw new EOFException("File ended before the end of the range");
+                    }
+                }
+                buffer.flip();
+                offset += buffer.remaining();
+
+                //the buffer belongs to sendBufferToServer() now
+                ByteBuffer data = buffer;
+                buffer = null;
+                sendBufferToServer(data, pool);
+
+            }finally{
+                if (buffer != null){
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a range of an image held in memory to the server, copied into buffers of the pool
+     * (see sendBufferToServer()).
+     *
+     * @param source the image, its position and limit are not changed
+     * @param offset the first byte of the range, counted from 0
+     * @param length the number of bytes of the range
+     * @param pool the pool of the buffers
+     * @throws IOException if the transmission failed
+     */
+    public void sendRangeToServer(ByteBuffer source, long offset, long length, BufferPool pool) throws IOException {
+        ByteBuffer range = source.duplicate();
+        range.limit((int) (offset + length));
+        range.position((int) offset);
+        while (range.hasRemaining()){
+            ByteBuffer buffer = pool.acquire();
+            try {
+                ByteBuffer part = range.duplicate();
+                part.limit(part.position() + Math.min(buffer.remaining(), range.remaining()));
+                buffer.put(part);
+                buffer.flip();
+                range.position(part.position());
+
+                //the buffer belongs to sendBufferToServer() now
+                ByteBuffer data = buffer;
+                buffer = null;
+                sendBufferToServer(data, pool);
+
+            }finally{
+                if (buffer != null){
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+
     /**
      * Sends an object to the server.
      *
@@ -147,8 +466,13 @@ public class CommunicationHandler {
      */
     public void sendObjectToServer(Object obj) throws IOException {
         try{
-            this.out.writeObject(obj);
-            this.out.flush();
+            if (isBinaryFrames()){
+                byte[] serialized = serialize(obj);
+                writeFrame(Frame.OP_OBJECT, serialized, 0, serialized.length);
+                return;
+            }
+
+            writeObjectToStream(obj);
 
         }catch(IOException eIO){
             Log.e(Misc.TAG, "IOException while trying to send an object to server", eIO);
@@ -165,7 +489,19 @@ public class CommunicationHandler {
      */
     public Object readObjectFromServer() throws IOException {
         try{
-            return this.in.readObject();
+            if (isBinaryFrames()){
+                Frame frame = readFrame();
+                if (frame.getOpcode() == Frame.OP_OBJECT){
+                    return deserialize(frame.getPayload());
+                }
+                String line = frame.asString();
+                if (line == null){
+                    throw new IOException("Frame with opcode " + frame.getOpcode() + " contains no object");
+                }
+                return line;
+            }
+
+            return readObjectFromStream();
 
         }catch(SocketTimeoutException eST){
             Log.e(Misc.TAG, "Timeout while trying to read an object from server", eST);
@@ -186,8 +522,12 @@ public class CommunicationHandler {
     public void sendLineToServer(String lineToSend) throws IOException {
         try{
 
-            this.out.writeObject(lineToSend);
-            this.out.flush();
+            if (isBinaryFrames()){
+                writeFrame(Frame.forString(lineToSend));
+                return;
+            }
+
+            writeObjectToStream(lineToSend);
             //Log.d(Misc.TAG, "Client sent: '" + lineToSend + "'.");
 
         }catch(IOException eIO){
@@ -206,8 +546,12 @@ public class CommunicationHandler {
     public String readLineFromServer() throws IOException {
         try{
 
+            if (isBinaryFrames()){
+                return readStringFrame();
+            }
+
             //read the object from the stream
-            Object result = this.in.readObject();
+            Object result = readObjectFromStream();
 
             //when the object is string, return the string
             if(result instanceof String){
@@ -216,20 +560,14 @@ public class CommunicationHandler {
 
                 //otherwise clear the stream and return null
             }else{
-                Log.e(Misc.TAG, "Trying to read a string but no string was present in stream, purging stream");
-                int remainder;
-                if((remainder = this.in.available()) > 0){
-                    this.in.skipBytes(remainder);
-                }
+                //the object was read completely, nothing else has to be discarded
+                Log.e(Misc.TAG, "Trying to read a string but no string was present in stream, discarding object");
                 return null;
             }
 
         }catch(OptionalDataException eOD){
             Log.e(Misc.TAG, "No object in stream when trying to read a string, just primitive data", eOD);
-            int remainder;
-            if((remainder = this.in.available()) > 0){
-                this.in.skipBytes(remainder);
-            }
+            skipPrimitiveData(eOD);
             return null;
 
         }catch(SocketTimeoutException eST){
@@ -260,8 +598,17 @@ public class CommunicationHandler {
 
         try{
 
+            if (isBinaryFrames()){
+                response = readStringFrame();
+                if (lineToListenFor.equals(response)){
+                    return true;
+                }
+                Log.d(Misc.TAG, "Server sent: '" + response + "', while listening for '" + lineToListenFor + "'.");
+                return false;
+            }
+
             //read an object from the stream
-            Object result = this.in.readObject();
+            Object result = readObjectFromStream();
 
             //try to convert the object to a string
             if (result instanceof String){
@@ -281,20 +628,13 @@ public class CommunicationHandler {
 
             }else{
 
-                //no string in stream
-                Log.d(Misc.TAG, "Trying to read a string from stream but no string was found in stream, clearing stream");
-                int remainder;
-                if((remainder = this.in.available()) > 0){
-                    this.in.skipBytes(remainder);
-                }
+                //no string in stream, the object was read completely
+                Log.d(Misc.TAG, "Trying to read a string from stream but no string was found in stream, discarding object");
                 return false;
             }
         }catch(OptionalDataException eOD){
             Log.e(Misc.TAG, "No object in stream when trying to read a string, just primitive data", eOD);
-            int remainder;
-            if((remainder = this.in.available()) > 0){
-                this.in.skipBytes(remainder);
-            }
+            skipPrimitiveData(eOD);
             return false;
 
         }catch(SocketTimeoutException eST){
@@ -313,6 +653,10 @@ public class CommunicationHandler {
 
     /**
      * Attempts to establish synchronization with the server.
+     * <p>The client sends '.sync' with a new nonce, the server answers with '.confirmSync', the same nonce
+     * and the sequence number of the last message it sent. Everything read before this echo is discarded,
+     * including answers to earlier attempts (their nonce differs), so the stream is in sync after one round trip.</p>
+     * <p>Every attempt waits one RTO for the echo, the RTO is doubled after each timeout.</p>
      *
      * @return true if the synchronization should be established
      * @throws IOException if the synchronization failed
@@ -322,45 +666,43 @@ public class CommunicationHandler {
         Log.d(Misc.TAG, "Attempting synchronization...");
 
         //number of attempts to synchronize
-        final int ATTEMPTS = 10;
-        //time to wait for answer per attempt (seconds)
-        final int TIME_PER_ATTEMPT = 5;
+        final int ATTEMPTS = Misc.SYNC_ATTEMPTS;
 
-        //set timeout for socket
-        try {
-            socketForClient.setSoTimeout(TIME_PER_ATTEMPT * 1000);
-        } catch (SocketException eS) {
-            Log.e(Misc.TAG, "Unable to set timeout for socket", eS);
-        }
+        this.discardedMessages = 0;
 
         try {
             for (int i = 0; i < ATTEMPTS; i++) {
 
+                //every attempt gets its own nonce, so a late echo of a previous attempt is recognized
+                this.syncEpoch++;
+                String nonce = this.syncEpoch + "-" + Long.toHexString(this.random.nextLong());
+
                 //initiate synchronization with server
+                long sent = System.nanoTime();
                 sendLineToServer(".sync");
+                sendLineToServer(nonce);
 
                 try {
-                    //and listen for response
-                    if (listenForLine(".confirmSync")) {
+                    //and listen for the echo
+                    if (awaitSyncEcho(nonce, System.currentTimeMillis() + this.rtt.getTimeout())) {
 
-                        //server confirmed for the first time
-                        //there may still be several instances of ".confirmSync" in the stream
-                        //so all remaining instances need to be cleared from the stream!
-                        if (finishSynchronization(ATTEMPTS)) {
+                        //only the answer to the first '.sync' is a valid sample, the others are ambiguous
+                        if (i == 0){
+                            this.rtt.addSample(System.nanoTime() - sent);
+                        }
 
-                            //stream is clear, synchronization should be established
-                            Log.d(Misc.TAG, "Synchronization with server successful!");
-                            return true;
+                        //pongs sent before the echo were discarded
+                        this.unansweredPings = 0;
 
-                        } else {
-                            Log.d(Misc.TAG, "Synchronization with server failed!");
-                            return false;
-                        }
+                        Log.d(Misc.TAG, "Synchronization with server successful! Epoch " + this.syncEpoch
+                                + ", server sequence " + this.serverSequence + ", discarded "
+                                + this.discardedMessages + " messages");
+                        return true;
                     }
 
                 } catch (SocketTimeoutException eST) {
-                    Log.e(Misc.TAG, "Timeout while waiting for '.confirmSync'", eST);
-                    return false;
+                    Log.d(Misc.TAG, "Timeout while waiting for '.confirmSync', trying again");
+                    this.rtt.backoff();
                 } catch (IOException eIO) {
                     Log.d(Misc.TAG, "Failed to read stream, synchronization failed", eIO);
                     throw eIO;
@@ -372,51 +714,70 @@ public class CommunicationHandler {
 
         }finally{
             try {
-                socketForClient.setSoTimeout(0);
-            } catch (SocketException eS) {
-                Log.e(Misc.TAG, "Unable to set timeout for socket", eS);
+                setTimeout(0);
+            } catch (IOException eIO) {
+                Log.e(Misc.TAG, "Unable to set timeout for socket", eIO);
             }
         }
     }
 
     /**
-     * Wraps up synchronization and clears the stream.
+     * Discards everything from the stream until the server echoed the nonce.
+     * <p>The sequence numbers of the server only grow during a connection, an echo with a smaller sequence number
+     * than the previous synchronization does not belong to this conversation.</p>
      *
-     * @param maxAttempts the limit of attempts to try to establish synchronization
-     * @return true if the server is idle after clearing the stream (hopefully in sync)
+     * @param nonce the nonce sent with '.sync'
+     * @param deadline time until the echo has to arrive (System.currentTimeMillis())
+     * @return true if the echo arrived, false if the server sent an invalid sequence number
+     * @throws SocketTimeoutException if the echo did not arrive before the deadline
      * @throws IOException if the stream could not be read
      */
-    private boolean finishSynchronization(int maxAttempts) throws IOException {
-
-        Log.d(Misc.TAG, "Attempting finish synchronization...");
+    private boolean awaitSyncEcho(String nonce, long deadline) throws IOException {
 
-        int count = 0;
+        while (true){
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0){
+                throw new SocketTimeoutException("No echo of the sync nonce in time");
+            }
+            setTimeout((int) remaining);
 
-        while(true){
-            try {
-                if (listenForLine(".confirmSync")) {
-                    //received an additional confirmation, continue reading the stream until server is idle
+            if (!".confirmSync".equals(readLineFromServer())){
+                //message sent before the sync
+                this.discardedMessages++;
+                continue;
+            }
 
-                    Log.d(Misc.TAG, "Received an additional '.confirmSync' waiting for server to be idle!");
+            String echo = readLineFromServer();
+            String sequence = readLineFromServer();
 
-                    count++;
+            if (!nonce.equals(echo)){
+                Log.d(Misc.TAG, "Discarding '.confirmSync' of a previous attempt (" + echo + ")");
+                continue;
+            }
 
-                    if (count > maxAttempts) {
-                        Log.e(Misc.TAG, "Server is sending too many 'confirmSync'!");
-                        return false;
-                    }
-                } else {
-                    //server should be idle after synchronization but more data was found in stream
-                    // => close connection
-                    Log.d(Misc.TAG, "Received data after '.confirmSync' but server should be idle!");
-                    return false;
-                }
-            }catch(SocketTimeoutException eST){
-                Log.d(Misc.TAG, "Timeout while waiting for additional '.confirmSync', server should be idle!");
-                return true;
+            long echoed;
+            try {
+                echoed = Long.parseLong(sequence);
+            }catch(NumberFormatException eNF){
+                Log.e(Misc.TAG, "Server sent an invalid sequence number: " + sequence, eNF);
+                return false;
+            }
+            if (echoed < this.serverSequence){
+                Log.e(Misc.TAG, "Server sequence went back from " + this.serverSequence + " to " + echoed);
+                return false;
             }
+            this.serverSequence = echoed;
+            return true;
         }
+    }
 
+    /**
+     * Returns the sequence number of the last message the server sent before the last synchronization.
+     *
+     * @return the sequence number, -1 if not synchronized yet
+     */
+    public long getServerSequence(){
+        return this.serverSequence;
     }
 
     /**
@@ -426,6 +787,8 @@ public class CommunicationHandler {
 
         Log.d(Misc.TAG, "Sending some text to server...");
 
+        //all lines in one batch
+        beginBatch();
         try {
             sendLineToServer("Dear Server, some philosophy for you:");
 
@@ -453,6 +816,13 @@ public class CommunicationHandler {
 
         } catch (Exception e) {
             Log.e(Misc.TAG, "Failed to send some text!", e);
+
+        } finally {
+            try {
+                endBatch();
+            } catch (IOException eIO) {
+                Log.e(Misc.TAG, "Failed to send some text!", eIO);
+            }
         }
     }
 
@@ -473,6 +843,17 @@ public class CommunicationHandler {
 
                 //send command to server that connection will be closed
                 sendLineToServer(".close");
+                flushBatch();
+                if (this.scheduler != null){
+                    this.scheduler.stop();
+                }
+                if (this.heartbeat != null){
+                    this.heartbeat.stop();
+                }
+                //the dispatcher must not report the closed socket as error
+                if (this.dispatcher != null){
+                    this.dispatcher.stop();
+                }
                 // attempt to close everything
                 socketForClient.close();
                 Log.d(Misc.TAG, "Closed connection successfully!");
@@ -485,14 +866,671 @@ public class CommunicationHandler {
         }
     }
 
+    /**
+     * Closes the connection without informing the server (used when the connection is broken).
+     */
+    public void abortConnection() {
+
+        Log.d(Misc.TAG, "Aborting connection...");
+
+        if (this.heartbeat != null){
+            this.heartbeat.stop();
+        }
+        if (this.scheduler != null){
+            this.scheduler.stop();
+        }
+        if (this.dispatcher != null){
+            this.dispatcher.stop();
+        }
+        try {
+            socketForClient.close();
+        } catch (IOException eIO) {
+            Log.d(Misc.TAG, "Failed to abort connection", eIO);
+        }
+    }
+
+    /**
+     * Requests a resume token from the server.
+     * <p>The token allows to continue the session after a reconnect without identifying again (see resumeSession()).
+     * The server answers with '.resumeToken' followed by the token.</p>
+     *
+     * @return the token, null if the server did not issue one in time
+     * @throws IOException if the stream could not be accessed
+     */
+    public String requestResumeToken() throws IOException {
+
+        Log.d(Misc.TAG, "Requesting resume token...");
+
+        if (isPipelining()){
+            ResponseFuture response = sendRequest(Frame.opcodeForCommand(".resumeToken"), null);
+            try {
+                Frame frame = response.get(this.rtt.getTimeout(), TimeUnit.MILLISECONDS);
+                if (".resumeToken".equals(frame.asString())){
+                    return frame.getPayloadAsString();
+                }
+                Log.d(Misc.TAG, "Server did not issue a resume token!");
+                return null;
+
+            }catch(TimeoutException eT){
+                response.cancel(false);
+                Log.d(Misc.TAG, "Server did not issue a resume token in time!");
+                return null;
+
+            }catch(InterruptedException | ExecutionException e){
+                throw new IOException("Failed to request a resume token", e);
+            }
+        }
+
+        sendLineToServer(".resumeToken");
+
+        try {
+            setTimeout(this.rtt.getTimeout());
+
+            if (!listenForLine(".resumeToken")){
+                Log.d(Misc.TAG, "Server did not issue a resume token!");
+                return null;
+            }
+            return readLineFromServer();
+
+        }catch(SocketTimeoutException eST){
+            Log.d(Misc.TAG, "Server did not issue a resume token in time!");
+            return null;
+
+        }finally{
+            setTimeout(0);
+        }
+    }
+
+    /**
+     * Asks the server to continue the session of the given resume token.
+     * <p>Has to be sent instead of the ID of the client directly after setupConnection().</p>
+     *
+     * @param resumeToken the token issued by the server for the previous connection
+     * @return true if the server resumed the session, false if the client has to identify again
+     * @throws IOException if the stream could not be accessed
+     */
+    public boolean resumeSession(String resumeToken) throws IOException {
+
+        Log.d(Misc.TAG, "Attempting to resume session...");
+
+        sendLineToServer(".resume");
+        sendLineToServer(resumeToken);
+
+        try {
+            setTimeout(this.rtt.getTimeout());
+
+            if (listenForLine(".resumeConfirm")){
+                Log.d(Misc.TAG, "Session resumed!");
+                return true;
+            }
+
+            Log.d(Misc.TAG, "Server rejected to resume the session!");
+            return false;
+
+        }finally{
+            setTimeout(0);
+        }
+    }
+
+    /**
+     * Starts a batch: sent messages are buffered instead of being flushed one by one.
+     * <p>The batch is flushed by flushBatch(), endBatch(), a read from the server, when it reaches
+     * Misc.BATCH_MAX_BYTES or when the first unflushed message is older than Misc.BATCH_MAX_DELAY.
+     * Batches can be nested, only the outermost endBatch() flushes.</p>
+     */
+    public void beginBatch(){
+        synchronized (this.writeLock){
+            this.batchDepth++;
+        }
+    }
+
+    /**
+     * Flushes the messages of the batch (explicit flush point), the batch stays open.
+     *
+     * @throws IOException if the messages could not be sent
+     */
+    public void flushBatch() throws IOException {
+        //the frames queued by this thread have to be written first
+        if (this.scheduler != null){
+            this.scheduler.awaitDrained();
+        }
+        synchronized (this.writeLock){
+            flush();
+        }
+    }
+
+    /**
+     * Ends a batch, the messages are flushed if it was the outermost batch.
+     *
+     * @throws IOException if the messages could not be sent
+     */
+    public void endBatch() throws IOException {
+        synchronized (this.writeLock){
+            if (this.batchDepth > 0){
+                this.batchDepth--;
+            }
+            if (this.batchDepth > 0){
+                return;
+            }
+        }
+        flushBatch();
+    }
+
+    /**
+     * Sends a message of the game to the server.
+     * <p>With the binary frame protocol the message is queued with the priority of the game and written ahead
+     * of bulk data (e.g. an image upload), so it can be called from any thread without blocking.
+     * With the object stream protocol it is sent as '.game' followed by the message in the ordered conversation,
+     * only the thread of the client may call it.</p>
+     *
+     * @param message the message of the game
+     * @throws IOException if the message could not be sent
+     */
+    public void sendGameMessage(String message) throws IOException {
+        if (isBinaryFrames()){
+            this.scheduler.submit(Frame.forGame(message), FrameScheduler.CLASS_GAME);
+            return;
+        }
+
+        beginBatch();
+        try {
+            sendLineToServer(".game");
+            sendLineToServer(message);
+        }finally{
+            endBatch();
+        }
+    }
+
+    /**
+     * Returns the scheduler writing the frames, e.g. to check the latency of the game messages.
+     *
+     * @return the scheduler, null if the connection does not use the binary frame protocol
+     */
+    public FrameScheduler getFrameScheduler(){
+        return this.scheduler;
+    }
+
+    /**
+     * Sends a ping to the server and waits one RTO for the pong.
+     * <p>The round trip is added to the RttEstimator, a missing pong doubles the RTO.
+     * With the object stream protocol, pongs arriving late are read with the next ping. Any other message means
+     * the conversation is not where the caller expects it to be, it is not discarded silently: a ProtocolException
+     * is thrown and the caller has to synchronize.</p>
+     *
+     * @return true if the pong arrived in time
+     * @throws ProtocolException if the server sent something else than '.pong' (synchronization required)
+     * @throws IOException if the stream could not be accessed
+     */
+    public boolean ping() throws IOException {
+
+        int timeout = this.rtt.getTimeout();
+
+        if (isPipelining()){
+            long sent = System.nanoTime();
+            ResponseFuture response = sendRequest(Frame.opcodeForCommand(".ping"), null);
+            try {
+                response.get(timeout, TimeUnit.MILLISECONDS);
+                this.rtt.addSample(System.nanoTime() - sent);
+                return true;
+
+            }catch(TimeoutException eT){
+                response.cancel(false);
+                this.rtt.backoff();
+                return false;
+
+            }catch(InterruptedException | ExecutionException e){
+                throw new IOException("Failed to ping the server", e);
+            }
+        }
+
+        //an earlier ping is still unanswered, its pong would be taken for the answer to this one
+        boolean validSample = this.unansweredPings == 0;
+
+        long sent = System.nanoTime();
+        sendLineToServer(".ping");
+        this.unansweredPings++;
+
+        int previousTimeout = this.readTimeout;
+        try {
+            setTimeout(timeout);
+
+            while (this.unansweredPings > 0){
+                String line = readLineFromServer();
+                if (!".pong".equals(line)){
+                    Log.d(Misc.TAG, "Received '" + line + "' while waiting for '.pong', synchronization required");
+                    throw new ProtocolException("Server sent '" + line + "' instead of '.pong'");
+                }
+                this.unansweredPings--;
+            }
+
+            if (validSample){
+                this.rtt.addSample(System.nanoTime() - sent);
+            }
+            return true;
+
+        }catch(SocketTimeoutException eST){
+            this.rtt.backoff();
+            return false;
+
+        }finally{
+            setTimeout(previousTimeout);
+        }
+    }
+
+    /**
+     * Checks whether the connection is still alive.
+     * <p>With the object stream protocol a ping is sent if the last one is older than Misc.HEARTBEAT_INTERVAL
+     * and Misc.HEARTBEAT_OBJECT_STREAM is set, so this method should be called while the client is idle.</p>
+     *
+     * @return false if the server stopped answering pings
+     * @throws ProtocolException if the server sent something else than '.pong' (synchronization required)
+     * @throws IOException if the stream could not be accessed
+     */
+    public boolean keepAlive() throws IOException {
+        if (!isHeartbeatEnabled()){
+            return true;
+        }
+        if (isPipelining()){
+            return !this.heartbeat.isDead();
+        }
+        return this.heartbeat.beatIfDue();
+    }
+
+    /**
+     * Returns true if the connection is watched with pings.
+     * <p>The object stream protocol is the baseline the binary frame protocol is compared to,
+     * it only sends pings if Misc.HEARTBEAT_OBJECT_STREAM is set.</p>
+     *
+     * @return true if pings may be sent
+     */
+    public boolean isHeartbeatEnabled(){
+        return this.heartbeat != null && Misc.HEARTBEAT_INTERVAL > 0
+                && (isBinaryFrames() || Misc.HEARTBEAT_OBJECT_STREAM);
+    }
+
+    /**
+     * Returns the estimator of the round trip time the timeouts are derived from.
+     *
+     * @return the RttEstimator
+     */
+    public RttEstimator getRttEstimator(){
+        return this.rtt;
+    }
+
     /**
      * Sets the timeout of the ServerSocket to the specified value.
+     * <p>When a RequestDispatcher reads the socket, the timeout is applied when waiting for its frames instead.</p>
      *
      * @param millis the duration until a timeout occurs (in milliseconds)
      * @throws IOException if an error occurred
      */
     public void setTimeout(int millis) throws IOException {
-        this.socketForClient.setSoTimeout(millis);
+        this.readTimeout = millis;
+        if (this.dispatcher == null) {
+            this.socketForClient.setSoTimeout(millis);
+        }
         Log.d(Misc.TAG, "Timeout for socket set to " + millis + " ms.");
     }
+
+    /**
+     * Sends a pipelined request to the server without waiting for the response.
+     * <p>The request gets its own request ID and the server answers with the same ID, so several requests can
+     * be in flight at once, independent of the ordered conversation (e.g. during an image upload).
+     * Only available for the binary frame protocol.</p>
+     *
+     * @param opcode the opcode of the request
+     * @param payload the payload of the request, null for no payload
+     * @return the future the response of the server will be delivered to
+     * @throws IllegalStateException if the connection does not use the binary frame protocol
+     * @throws IOException if the request could not be sent
+     */
+    public ResponseFuture sendRequest(byte opcode, byte[] payload) throws IOException {
+        checkBinaryFrames();
+
+        ResponseFuture future = this.dispatcher.register();
+        try {
+            //control frames are flushed by the scheduler right away
+            writeFrame(new Frame(opcode, future.getRequestId(), payload));
+        }catch(IOException eIO){
+            future.cancel(false);
+            Log.e(Misc.TAG, "Failed to send request " + future.getRequestId(), eIO);
+            throw eIO;
+        }
+        return future;
+    }
+
+    /**
+     * Returns true if requests can be pipelined with sendRequest().
+     *
+     * @return true if a RequestDispatcher reads the frames of this connection
+     */
+    public boolean isPipelining(){
+        return this.dispatcher != null;
+    }
+
+    /**
+     * Sends an integer to the server.
+     * <p>Uses an integer frame for the binary frame protocol and a decimal string for the object stream protocol.</p>
+     *
+     * @param value the integer to send
+     * @throws IOException if the transmission failed
+     */
+    public void sendIntToServer(int value) throws IOException {
+        if (isBinaryFrames()){
+            try {
+                writeFrame(Frame.forInt(value));
+            }catch(IOException eIO){
+                Log.e(Misc.TAG, "Failed to send: " + value, eIO);
+                throw eIO;
+            }
+            return;
+        }
+
+        sendLineToServer(Integer.toString(value));
+    }
+
+    /**
+     * Reads an integer from the server.
+     *
+     * @return the read integer
+     * @throws SocketTimeoutException if a timeout occurred
+     * @throws IOException if the reading failed or no integer was found in stream
+     */
+    public int readIntFromServer() throws IOException {
+        String response = readLineFromServer();
+        if (response == null){
+            throw new IOException("No integer in stream");
+        }
+
+        try {
+            return Integer.parseInt(response);
+        }catch(NumberFormatException eNF){
+            Log.e(Misc.TAG, "Server sent '" + response + "' while an integer was expected", eNF);
+            throw new IOException(eNF);
+        }
+    }
+
+    /**
+     * Sends a frame to the server. Only available for the binary frame protocol.
+     *
+     * @param frame the frame to send
+     * @throws IllegalStateException if the connection does not use the binary frame protocol
+     * @throws IOException if the transmission failed
+     */
+    public void sendFrameToServer(Frame frame) throws IOException {
+        checkBinaryFrames();
+        try {
+            writeFrame(frame);
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to send a frame with opcode " + frame.getOpcode(), eIO);
+            throw eIO;
+        }
+    }
+
+    /**
+     * Reads a frame from the server. Only available for the binary frame protocol.
+     *
+     * @return the read frame
+     * @throws IllegalStateException if the connection does not use the binary frame protocol
+     * @throws SocketTimeoutException if a timeout occurred
+     * @throws IOException if the reading failed
+     */
+    public Frame readFrameFromServer() throws IOException {
+        checkBinaryFrames();
+        try {
+            return readFrame();
+        }catch(SocketTimeoutException eST){
+            Log.e(Misc.TAG, "Timeout while trying to read a frame from server", eST);
+            throw eST;
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to read a frame from server", eIO);
+            throw eIO;
+        }
+    }
+
+    /**
+     * Returns the protocol spoken with the server.
+     *
+     * @return the protocol (see Misc.PROTOCOL_*)
+     */
+    public int getProtocol(){
+        return this.protocol;
+    }
+
+    /**
+     * Returns the statistics about the sent and received messages.
+     *
+     * @return the statistics of this connection
+     */
+    public ProtocolStats getProtocolStats(){
+        return this.stats;
+    }
+
+    /**************************************************************************************************
+     stream helpers
+     **************************************************************************************************/
+
+    /**
+     * Returns true if the connection uses the binary frame protocol.
+     *
+     * @return true for the binary frame protocol, false for the object stream protocol
+     */
+    private boolean isBinaryFrames(){
+        return this.protocol == Misc.PROTOCOL_BINARY_FRAMES;
+    }
+
+    /**
+     * Throws an exception if the connection does not use the binary frame protocol.
+     */
+    private void checkBinaryFrames(){
+        if (!isBinaryFrames()){
+            throw new IllegalStateException("Connection does not use the binary frame protocol");
+        }
+    }
+
+    /**
+     * Queues a frame for the scheduler, flushed unless a batch is open.
+     */
+    private void writeFrame(Frame frame) throws IOException {
+        int priorityClass;
+        if (frame.getRequestId() != Frame.NO_REQUEST){
+            priorityClass = FrameScheduler.CLASS_CONTROL;
+        }else if (frame.getOpcode() == Frame.OP_GAME){
+            priorityClass = FrameScheduler.CLASS_GAME;
+        }else {
+            priorityClass = FrameScheduler.CLASS_BULK;
+        }
+        this.scheduler.submit(frame, priorityClass);
+    }
+
+    /**
+     * Queues a frame for the scheduler, flushed unless a batch is open.
+     * <p>The payload is copied, the caller may reuse the array.</p>
+     */
+    private void writeFrame(byte opcode, byte[] payload, int off, int len) throws IOException {
+        writeFrame(new Frame(opcode, Arrays.copyOfRange(payload, off, off + len)));
+    }
+
+    /**
+     * Writes a data frame whose payload is a buffer, the payload bypasses the stream and goes to the transport.
+     * <p>The buffer returns to its pool afterwards.</p>
+     */
+    private void writeBufferFrame(BufferFrame frame) throws IOException {
+        try {
+            ByteBuffer data = frame.getData();
+            synchronized (this.writeLock){
+                FrameCodec.writeHeader(this.countingOut, frame.getOpcode(), frame.getRequestId(), data.remaining());
+                //the header has to reach the transport before the payload
+                written(true);
+                this.stats.recordSentBytes(data.remaining());
+                this.socketForClient.write(data);
+            }
+        }finally{
+            frame.release();
+        }
+    }
+
+    /**
+     * Records a written message and flushes unless a batch is open (must hold writeLock).
+     */
+    private void written() throws IOException {
+        written(this.batchDepth == 0);
+    }
+
+    /**
+     * Records a written message and flushes it if necessary (must hold writeLock).
+     *
+     * @param flushNow true to flush right away, otherwise the message is flushed with the batch
+     */
+    private void written(boolean flushNow) throws IOException {
+        long count = this.countingOut.getCount();
+        this.stats.recordSent(count - this.recordedCount);
+        this.recordedCount = count;
+        this.unflushed = true;
+
+        if (flushNow || count - this.flushedCount >= Misc.BATCH_MAX_BYTES){
+            flush();
+            return;
+        }
+
+        //without an open batch the scheduler flushes once its queues are empty
+        if (this.batchDepth > 0 && this.delayedFlush == null){
+            this.delayedFlush = new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (writeLock){
+                        if (delayedFlush != this){
+                            return;
+                        }
+                        try {
+                            flush();
+                        }catch(IOException eIO){
+                            Log.d(Misc.TAG, "Failed to flush batch", eIO);
+                        }
+                    }
+                }
+            };
+            FLUSH_TIMER.schedule(this.delayedFlush, Misc.BATCH_MAX_DELAY);
+        }
+    }
+
+    /**
+     * Flushes all buffered messages to the server (must hold writeLock).
+     */
+    private void flush() throws IOException {
+        if (this.delayedFlush != null){
+            this.delayedFlush.cancel();
+            this.delayedFlush = null;
+        }
+        if (!this.unflushed){
+            return;
+        }
+        this.unflushed = false;
+
+        if (isBinaryFrames()){
+            this.countingOut.flush();
+        }else {
+            this.out.flush();
+        }
+
+        //the ObjectOutputStream buffers data that reaches the counting stream only now
+        long count = this.countingOut.getCount();
+        this.stats.recordSentBytes(count - this.recordedCount);
+        this.stats.recordFlush(count - this.flushedCount);
+        this.recordedCount = count;
+        this.flushedCount = count;
+    }
+
+    /**
+     * Reads the next frame of the ordered conversation.
+     */
+    private Frame readFrame() throws IOException {
+        //the answer might depend on buffered messages
+        flushBatch();
+
+        if (this.dispatcher != null){
+            return this.dispatcher.takeFrame(this.readTimeout);
+        }
+
+        long before = this.countingIn.getCount();
+        long start = System.nanoTime();
+
+        Frame frame = FrameCodec.readFrame(this.countingIn);
+
+        this.stats.recordReceived(this.countingIn.getCount() - before, System.nanoTime() - start);
+        return frame;
+    }
+
+    /**
+     * Reads a frame from the stream and converts it to a string.
+     * <p>No purging is necessary if the frame contains no string, the frame was read completely.</p>
+     *
+     * @return the string, null if the frame does not contain a string
+     */
+    private String readStringFrame() throws IOException {
+        Frame frame = readFrame();
+        String result = frame.asString();
+        if (result == null){
+            Log.e(Misc.TAG, "Trying to read a string but frame with opcode " + frame.getOpcode() + " was found in stream");
+        }
+        return result;
+    }
+
+    /**
+     * Writes an object to the ObjectOutputStream, flushed unless a batch is open.
+     */
+    private void writeObjectToStream(Object obj) throws IOException {
+        synchronized (this.writeLock) {
+            this.out.writeObject(obj);
+            written();
+        }
+    }
+
+    /**
+     * Reads an object from the ObjectInputStream.
+     */
+    private Object readObjectFromStream() throws IOException, ClassNotFoundException {
+        //the answer might depend on buffered messages
+        flushBatch();
+
+        long before = this.countingIn.getCount();
+        long start = System.nanoTime();
+
+        Object result = this.in.readObject();
+
+        this.stats.recordReceived(this.countingIn.getCount() - before, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Skips exactly the primitive data in front of the next object, the following messages stay intact.
+     */
+    private void skipPrimitiveData(OptionalDataException eOD) throws IOException {
+        if (!eOD.eof && eOD.length > 0){
+            this.in.skipBytes(eOD.length);
+        }
+    }
+
+    /**
+     * Serializes an object for an object frame.
+     */
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+        objectOut.writeObject(obj);
+        objectOut.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes the payload of an object frame.
+     */
+    private static Object deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(payload));
+        try {
+            return objectIn.readObject();
+        }finally{
+            objectIn.close();
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package config;
+
+import android.util.Log;
+
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up a connection to the server in the background before the user commits to it.
+ * <p>Loads the KeyStore, resolves the ip, connects and executes the TLS handshake while the user is still
+ * on the connection screen. The Client takes the ready connection with take(), so only the
+ * stream initialization and the ID of the client remain when the user presses connect.</p>
+ * <p>A warmed up connection is dropped if the ip changed, the warmer was cancelled
+ * or nobody took it within Misc.WARM_CONNECTION_MAX_AGE.</p>
+ *
+ * @author Martin
+ *
+ */
+public class ConnectionWarmer implements Runnable {
+
+    /**
+     * IP address of the server.
+     */
+    private final String serverIP;
+    /**
+     * Stream to the file containing the KeyStore.
+     */
+    private final InputStream isKeyStore;
+
+    /**
+     * Released when the warm up finished (successful or not).
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile KeyStoreHandler kh;
+    private volatile Transport transport;
+    private volatile long readyAt;
+
+    /**
+     * Guarded by this: true once cancelled or taken, the connection must not be handed out (again).
+     */
+    private boolean cancelled;
+    private boolean taken;
+
+    /**
+     * Standard constructor.
+     *
+     * @param serverIP the ip of the server
+     * @param isKeyStore stream to the file containing the KeyStore
+     */
+    public ConnectionWarmer(String serverIP, InputStream isKeyStore){
+        this.serverIP = serverIP;
+        this.isKeyStore = isKeyStore;
+    }
+
+    /**
+     * Starts the warm up on its own thread.
+     */
+    public void start(){
+        Thread thread = new Thread(this, "ConnectionWarmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns true if the warmer connects to the given ip.
+     *
+     * @param ip the ip to compare
+     * @return true if the ips are equal
+     */
+    public boolean isFor(String ip){
+        return this.serverIP.equals(ip);
+    }
+
+    @Override
+    public void run(){
+
+        Log.d(Misc.TAG, "Warming up connection to " + this.serverIP + "...");
+
+        Transport connected = null;
+
+        try {
+            KeyStoreHandler handler = new KeyStoreHandler(this.isKeyStore);
+
+            connected = handler.connect(this.serverIP, Misc.SERVER_PORT);
+
+            connected.setSoTimeout(RttEstimator.getShared().getTimeout(Misc.HANDSHAKE_ROUND_TRIPS));
+            CommunicationHandler.prepareTransport(connected);
+            connected.setSoTimeout(0);
+
+            synchronized (this){
+                if (!this.cancelled){
+                    this.kh = handler;
+                    this.transport = connected;
+                    this.readyAt = System.currentTimeMillis();
+                    connected = null;
+                }
+            }
+
+            Log.d(Misc.TAG, "Connection to " + this.serverIP + " warmed up!");
+
+        }catch(Exception e){
+            //the client will simply connect on its own
+            Log.d(Misc.TAG, "Failed to warm up connection to " + this.serverIP, e);
+
+        }finally{
+            //cancelled in the meantime
+            closeQuietly(connected);
+            this.done.countDown();
+        }
+    }
+
+    /**
+     * Waits for the warm up and hands the ready connection over to the caller.
+     *
+     * @param timeoutMillis maximum time to wait for the warm up to finish
+     * @return true if a fresh connection is available with getTransport() and getKeyStoreHandler()
+     */
+    public boolean take(long timeoutMillis){
+
+        try {
+            if (!this.done.await(timeoutMillis, TimeUnit.MILLISECONDS)){
+                Log.d(Misc.TAG, "Warm up not finished in time, dropping it");
+                cancel();
+                return false;
+            }
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        }
+
+        synchronized (this){
+            if (this.cancelled || this.taken || this.transport == null){
+                return false;
+            }
+
+            if (isStale()){
+                Log.d(Misc.TAG, "Warmed up connection is stale, dropping it");
+                this.cancelled = true;
+                closeQuietly(this.transport);
+                return false;
+            }
+
+            this.taken = true;
+            return true;
+        }
+    }
+
+    /**
+     * Drops the warm up, a connection that was not taken is closed.
+     */
+    public void cancel(){
+        Transport toClose;
+        synchronized (this){
+            if (this.taken){
+                return;
+            }
+            this.cancelled = true;
+            toClose = this.transport;
+        }
+        closeQuietly(toClose);
+    }
+
+    /**
+     * Returns the KeyStoreHandler of the taken connection.
+     *
+     * @return the KeyStoreHandler
+     */
+    public KeyStoreHandler getKeyStoreHandler(){
+        return this.kh;
+    }
+
+    /**
+     * Returns the taken connection (handshake done, protocols and cipher suites set).
+     *
+     * @return the transport
+     */
+    public Transport getTransport(){
+        return this.transport;
+    }
+
+    private boolean isStale(){
+        return this.transport.isClosed()
+                || System.currentTimeMillis() - this.readyAt > Misc.WARM_CONNECTION_MAX_AGE;
+    }
+
+    private static void closeQuietly(Transport transport){
+        if (transport == null){
+            return;
+        }
+        try {
+            transport.close();
+        }catch(Exception e){
+            Log.d(Misc.TAG, "Failed to close warmed up connection", e);
+        }
+    }
+}
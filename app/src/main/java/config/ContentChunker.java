@@ -0,0 +1,168 @@
+package config;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits an image into chunks at positions defined by its content (FastCDC).
+ * <p>A gear hash rolls over the bytes, a chunk ends where the top bits of the hash are zero. Since the
+ * boundaries depend on the bytes around them and not on their offset, a file that is sent again or differs
+ * from an earlier one only in some places (e.g. edited metadata) shares most of its chunks with it. A new photo
+ * of the same scene does not: its compressed bytes differ everywhere (see Misc.DEDUP_ENABLED). The server keeps
+ * the chunks by their SHA-256, only the chunks it does not know yet have to be uploaded
+ * (see ImageTransferHandler).</p>
+ * <p>Below the average size a stricter mask is used and above it a looser one (normalized chunking),
+ * so most chunks are close to the average size. No chunk is smaller than minSize or larger than maxSize.</p>
+ *
+ * @author Martin
+ *
+ */
+public class ContentChunker {
+
+    /**
+     * A chunk of the image and its fingerprint.
+     */
+    public static final class Chunk {
+
+        private final long offset;
+        private final int length;
+        private final byte[] fingerprint;
+
+        Chunk(long offset, int length, byte[] fingerprint){
+            this.offset = offset;
+            this.length = length;
+            this.fingerprint = fingerprint;
+        }
+
+        public long getOffset(){
+            return this.offset;
+        }
+
+        public int getLength(){
+            return this.length;
+        }
+
+        /**
+         * Returns the SHA-256 of the chunk.
+         *
+         * @return 32 bytes
+         */
+        public byte[] getFingerprint(){
+            return this.fingerprint;
+        }
+    }
+
+    /**
+     * Random values for every byte, the same on every device (the seed is fixed) so that equal content
+     * is always split at the same positions.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5eed5eedL);
+        for (int i = 0; i < GEAR.length; i++){
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+
+    /**
+     * Returns a chunker with the sizes of the Misc class.
+     *
+     * @return the default chunker
+     */
+    public static ContentChunker getDefault(){
+        return new ContentChunker(Misc.CDC_MIN_SIZE, Misc.CDC_AVG_SIZE, Misc.CDC_MAX_SIZE);
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param minSize the smallest chunk (except the last one)
+     * @param avgSize the average chunk size, a power of two
+     * @param maxSize the largest chunk
+     */
+    public ContentChunker(int minSize, int avgSize, int maxSize){
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.strictMask = topBits(bits + 2);
+        this.looseMask = topBits(bits - 2);
+    }
+
+    /**
+     * Splits the data into chunks and hashes every chunk.
+     *
+     * @param data the image, from position to limit (the position is not changed)
+     * @return the chunks in the order of the image
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     */
+    public List<Chunk> split(ByteBuffer data) throws NoSuchAlgorithmException {
+
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        List<Chunk> chunks = new ArrayList<>();
+
+        int start = data.position();
+        int end = data.limit();
+        while (start < end){
+            int length = nextBoundary(data, start, end) - start;
+
+            ByteBuffer chunk = data.duplicate();
+            chunk.position(start);
+            chunk.limit(start + length);
+            sha.update(chunk);
+
+            chunks.add(new Chunk(start - data.position(), length, sha.digest()));
+            start += length;
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the end of the chunk starting at the given position.
+     */
+    private int nextBoundary(ByteBuffer data, int start, int end){
+
+        int remaining = end - start;
+        if (remaining <= this.minSize){
+            return end;
+        }
+
+        int normal = start + Math.min(this.avgSize, remaining);
+        int last = start + Math.min(this.maxSize, remaining);
+
+        long hash = 0;
+        int i = start + this.minSize;
+        for (; i < normal; i++){
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if ((hash & this.strictMask) == 0){
+                return i + 1;
+            }
+        }
+        for (; i < last; i++){
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if ((hash & this.looseMask) == 0){
+                return i + 1;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Returns a mask of the highest bits, they depend on the last 64 bytes rolled into the hash.
+     */
+    private static long topBits(int count){
+        return (count <= 0) ? 0 : -1L << (64 - count);
+    }
+}
@@ -0,0 +1,106 @@
+package config;
+
+/**
+ * Result of a deduplicated upload: how many chunks and bytes the server already had.
+ * <p>The reports of all uploads since the start of the app are added up, see getTotals().</p>
+ *
+ * @author Martin
+ *
+ */
+public class DedupReport {
+
+    /**
+     * Guarded by DedupReport.class: the sum of all reports.
+     */
+    private static final DedupReport TOTALS = new DedupReport(0, 0, 0, 0, 0);
+
+    private long chunks;
+    private long sentChunks;
+    private long totalBytes;
+    private long sentBytes;
+    private long millis;
+
+    /**
+     * Standard constructor.
+     *
+     * @param chunks number of chunks of the image
+     * @param sentChunks number of chunks the server did not have
+     * @param totalBytes size of the image
+     * @param sentBytes number of bytes of the sent chunks
+     * @param millis time for chunking, the exchange of the fingerprints and the upload of the missing chunks
+     */
+    public DedupReport(long chunks, long sentChunks, long totalBytes, long sentBytes, long millis){
+        this.chunks = chunks;
+        this.sentChunks = sentChunks;
+        this.totalBytes = totalBytes;
+        this.sentBytes = sentBytes;
+        this.millis = millis;
+    }
+
+    /**
+     * Adds a report to the totals.
+     *
+     * @param report the report of an upload
+     */
+    static void record(DedupReport report){
+        synchronized (DedupReport.class){
+            TOTALS.chunks += report.chunks;
+            TOTALS.sentChunks += report.sentChunks;
+            TOTALS.totalBytes += report.totalBytes;
+            TOTALS.sentBytes += report.sentBytes;
+            TOTALS.millis += report.millis;
+        }
+    }
+
+    /**
+     * Returns the sum of all deduplicated uploads since the start of the app.
+     *
+     * @return a copy of the totals
+     */
+    public static DedupReport getTotals(){
+        synchronized (DedupReport.class){
+            return new DedupReport(TOTALS.chunks, TOTALS.sentChunks, TOTALS.totalBytes, TOTALS.sentBytes, TOTALS.millis);
+        }
+    }
+
+    public long getChunks(){
+        return this.chunks;
+    }
+
+    public long getSentChunks(){
+        return this.sentChunks;
+    }
+
+    public long getTotalBytes(){
+        return this.totalBytes;
+    }
+
+    public long getSentBytes(){
+        return this.sentBytes;
+    }
+
+    /**
+     * Returns the number of bytes that did not have to be uploaded.
+     *
+     * @return size of the image minus the sent bytes
+     */
+    public long getSavedBytes(){
+        return this.totalBytes - this.sentBytes;
+    }
+
+    /**
+     * Returns the size of the image in relation to the uploaded bytes.
+     *
+     * @return 1 if everything was sent, 2 if half of it was sent, ...
+     */
+    public double getDedupRatio(){
+        return this.totalBytes / (double) Math.max(1, this.sentBytes);
+    }
+
+    @Override
+    public String toString(){
+        return "Dedup: " + this.sentChunks + "/" + this.chunks + " chunks sent, " + (this.sentBytes / 1024) + "/"
+                + (this.totalBytes / 1024) + " KB (" + (getSavedBytes() / 1024) + " KB saved, ratio "
+                + String.format("%.2f", getDedupRatio()) + ") in " + this.millis + " ms";
+    }
+}
@@ -0,0 +1,274 @@
+package config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * A single message of the binary frame protocol.
+ * <p>On the wire a frame consists of a one-byte opcode, the request ID and the length of the payload
+ * as varints and the raw payload. See FrameCodec for the encoding.</p>
+ * <p>Frames with request ID 0 belong to the ordered conversation between client and server (the same
+ * sequence of messages as in the object stream protocol). Frames with any other request ID belong to a
+ * pipelined request, the server answers them with the same request ID in any order (see RequestDispatcher).</p>
+ * <p>Every command string of the object stream protocol (".sync", ".image", ...) has its own opcode
+ * and is sent without payload. Everything else is sent as a generic string, integer, data or object frame.</p>
+ *
+ * @author Martin
+ *
+ */
+public class Frame {
+
+    /**
+     * Opcodes for generic frames.
+     */
+    public static final byte
+            OP_STRING = 0x01,
+            OP_INT = 0x02,
+            OP_DATA = 0x03,
+            OP_OBJECT = 0x04,
+            OP_GAME = 0x05;
+
+    /**
+     * Opcode of the first command, the opcodes of the following commands are consecutive.
+     */
+    private static final byte OP_FIRST_COMMAND = 0x20;
+
+    /**
+     * All commands that have their own opcode. The position in this array defines the opcode,
+     * so new commands must only be appended at the end!
+     */
+    private static final String[] COMMANDS = {
+            ".sync",
+            ".confirmSync",
+            ".close",
+            ".sealedString",
+            ".image",
+            ".imageConfirm",
+            ".imageTime",
+            ".imageReceived",
+            ".imageCorrupt",
+            ".imageSuccess",
+            ".imageRequest",
+            ".imageDone",
+            ".imageReject",
+            ".instructions",
+            ".tokenForImage",
+            ".noTokenForImage",
+            ".resumeToken",
+            ".resume",
+            ".resumeConfirm",
+            ".resumeReject",
+            ".ping",
+            ".pong",
+            ".game",
+            ".imageSession",
+            ".imageResume",
+            ".imageOffset",
+            ".imageTree",
+            ".imageTreeOk",
+            ".imageRepair",
+            ".imageDedup",
+            ".imageMissing",
+            ".imageStriped",
+            ".imageStripe",
+            ".stripeReceived",
+            ".imageBatch",
+            ".imageBatchReceived",
+            ".tokensForImages"
+    };
+
+    /**
+     * Charset for all string payloads.
+     */
+    static final Charset CHARSET = Charset.forName(Misc.CHARSET);
+
+    /**
+     * Empty payload used for commands.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Request ID for frames that do not belong to a pipelined request.
+     */
+    public static final int NO_REQUEST = 0;
+
+    /**
+     * Opcode of the frame.
+     */
+    private final byte opcode;
+    /**
+     * ID of the request this frame belongs to.
+     */
+    private final int requestId;
+    /**
+     * Raw payload of the frame.
+     */
+    private final byte[] payload;
+
+    /**
+     * Constructor for a frame of the ordered conversation.
+     *
+     * @param opcode the opcode of the frame
+     * @param payload the payload of the frame, null for no payload
+     */
+    public Frame(byte opcode, byte[] payload){
+        this(opcode, NO_REQUEST, payload);
+    }
+
+    /**
+     * Constructor for a frame belonging to a pipelined request.
+     *
+     * @param opcode the opcode of the frame
+     * @param requestId the ID of the request
+     * @param payload the payload of the frame, null for no payload
+     */
+    public Frame(byte opcode, int requestId, byte[] payload){
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.payload = (payload == null) ? EMPTY : payload;
+    }
+
+    /**
+     * Returns the opcode of the frame.
+     *
+     * @return the opcode
+     */
+    public byte getOpcode(){
+        return this.opcode;
+    }
+
+    /**
+     * Returns the ID of the request this frame belongs to.
+     *
+     * @return the request ID, NO_REQUEST if the frame belongs to the ordered conversation
+     */
+    public int getRequestId(){
+        return this.requestId;
+    }
+
+    /**
+     * Returns the raw payload of the frame.
+     *
+     * @return the payload, an empty array if the frame has none
+     */
+    public byte[] getPayload(){
+        return this.payload;
+    }
+
+    /**
+     * Returns the length of the payload.
+     *
+     * @return number of bytes of the payload
+     */
+    public int getPayloadLength(){
+        return this.payload.length;
+    }
+
+    /**
+     * Returns the payload decoded as string (used for commands carrying data, e.g. a token).
+     *
+     * @return the payload as string
+     */
+    public String getPayloadAsString(){
+        return new String(this.payload, CHARSET);
+    }
+
+    /**
+     * Returns true if the frame is one of the commands with its own opcode.
+     *
+     * @return true if the frame is a command
+     */
+    public boolean isCommand(){
+        return commandForOpcode(this.opcode) != null;
+    }
+
+    /**
+     * Converts the frame to the string the object stream protocol would have sent.
+     * <p>Commands return their command string, string frames their payload and
+     * integer frames the decimal representation of the integer.</p>
+     *
+     * @return the frame as string, null if the frame can not be represented as string
+     * @throws IOException if the payload of an integer frame is no valid varint
+     */
+    public String asString() throws IOException {
+
+        String command = commandForOpcode(this.opcode);
+        if (command != null){
+            return command;
+        }
+
+        switch (this.opcode){
+            case OP_STRING:
+                return new String(this.payload, CHARSET);
+
+            case OP_INT:
+                return Integer.toString(FrameCodec.decodeVarint(this.payload));
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates a frame for the given string. Known commands are converted to their opcode.
+     *
+     * @param line the string to put into a frame
+     * @return the frame containing the string
+     */
+    public static Frame forString(String line){
+        byte opcode = opcodeForCommand(line);
+        if (opcode != OP_STRING){
+            return new Frame(opcode, null);
+        }
+        return new Frame(OP_STRING, line.getBytes(CHARSET));
+    }
+
+    /**
+     * Creates a frame for a message of the game, the server handles it next to the ordered conversation.
+     *
+     * @param message the message of the game
+     * @return the frame containing the message
+     */
+    public static Frame forGame(String message){
+        return new Frame(OP_GAME, message.getBytes(CHARSET));
+    }
+
+    /**
+     * Creates a frame for the given integer.
+     *
+     * @param value the integer to put into a frame
+     * @return the frame containing the integer as varint
+     */
+    public static Frame forInt(int value){
+        return new Frame(OP_INT, FrameCodec.encodeVarint(value));
+    }
+
+    /**
+     * Returns the opcode for a command.
+     *
+     * @param command the command string
+     * @return the opcode of the command, OP_STRING if the string is no known command
+     */
+    public static byte opcodeForCommand(String command){
+        for (int i = 0; i < COMMANDS.length; i++){
+            if (COMMANDS[i].equals(command)){
+                return (byte) (OP_FIRST_COMMAND + i);
+            }
+        }
+        return OP_STRING;
+    }
+
+    /**
+     * Returns the command for an opcode.
+     *
+     * @param opcode the opcode
+     * @return the command string, null if the opcode does not belong to a command
+     */
+    public static String commandForOpcode(byte opcode){
+        int index = opcode - OP_FIRST_COMMAND;
+        if (index >= 0 && index < COMMANDS.length){
+            return COMMANDS[index];
+        }
+        return null;
+    }
+}
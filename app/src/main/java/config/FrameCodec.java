@@ -0,0 +1,216 @@
+package config;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes frames of the binary frame protocol.
+ * <p>Layout of a frame: [opcode (1 byte)][request ID (varint)][length of payload (varint)][payload]</p>
+ * <p>Varints use 7 bits per byte, least significant group first, the highest bit is set
+ * if more bytes follow (same as protobuf).</p>
+ *
+ * @author Martin
+ *
+ */
+public class FrameCodec {
+
+    /**
+     * Sent once by the client after the TLS handshake to announce the binary frame protocol.
+     * <p>The server can tell both protocols apart, because an ObjectOutputStream always starts with 0xACED.</p>
+     */
+    public static final byte[] MAGIC = {'M', 'M', 'I', 'F', 2};
+
+    /**
+     * Maximum payload size accepted when reading a frame (protects against corrupted length fields).
+     */
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    /**
+     * Maximum number of bytes of a varint (32 bit).
+     */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private FrameCodec(){}
+
+    /**
+     * Writes a frame to the stream (does not flush).
+     *
+     * @param out the stream to write to
+     * @param opcode the opcode of the frame
+     * @param requestId the ID of the request the frame belongs to
+     * @param payload the payload
+     * @param off offset in the payload
+     * @param len number of bytes of the payload
+     * @return the number of bytes written
+     * @throws IOException if the stream could not be written
+     */
+    public static int writeFrame(OutputStream out, byte opcode, int requestId, byte[] payload, int off, int len) throws IOException {
+        int headerLength = writeHeader(out, opcode, requestId, len);
+        out.write(payload, off, len);
+        return headerLength + len;
+    }
+
+    /**
+     * Writes only the header of a frame, the payload has to follow (e.g. written from a ByteBuffer).
+     *
+     * @param out the stream to write to
+     * @param opcode the opcode of the frame
+     * @param requestId the request ID of the frame
+     * @param len the length of the payload
+     * @return number of bytes written
+     * @throws IOException if the stream could not be written
+     */
+    public static int writeHeader(OutputStream out, byte opcode, int requestId, int len) throws IOException {
+        out.write(opcode);
+        return 1 + writeVarint(out, requestId) + writeVarint(out, len);
+    }
+
+    /**
+     * Writes a frame to the stream (does not flush).
+     *
+     * @param out the stream to write to
+     * @param frame the frame to write
+     * @return the number of bytes written
+     * @throws IOException if the stream could not be written
+     */
+    public static int writeFrame(OutputStream out, Frame frame) throws IOException {
+        return writeFrame(out, frame.getOpcode(), frame.getRequestId(), frame.getPayload(), 0, frame.getPayload().length);
+    }
+
+    /**
+     * Reads a complete frame from the stream (blocks until the whole frame is read).
+     *
+     * @param in the stream to read from
+     * @return the read frame
+     * @throws EOFException if the stream ended in the middle of a frame
+     * @throws IOException if the stream could not be read or the frame is invalid
+     */
+    public static Frame readFrame(InputStream in) throws IOException {
+
+        int opcode = in.read();
+        if (opcode < 0){
+            throw new EOFException("Stream ended while waiting for a frame");
+        }
+
+        int requestId = readVarint(in);
+        int length = readVarint(in);
+        if (length < 0 || length > MAX_PAYLOAD){
+            throw new IOException("Invalid length of frame payload: " + length);
+        }
+
+        byte[] payload = new byte[length];
+        readFully(in, payload, 0, length);
+
+        return new Frame((byte) opcode, requestId, payload);
+    }
+
+    /**
+     * Writes a varint to the stream.
+     *
+     * @param out the stream to write to
+     * @param value the value to write (treated as unsigned)
+     * @return the number of bytes written
+     * @throws IOException if the stream could not be written
+     */
+    public static int writeVarint(OutputStream out, int value) throws IOException {
+        int count = 1;
+        while ((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+            count++;
+        }
+        out.write(value);
+        return count;
+    }
+
+    /**
+     * Reads a varint from the stream.
+     *
+     * @param in the stream to read from
+     * @return the read value
+     * @throws EOFException if the stream ended in the middle of the varint
+     * @throws IOException if the stream could not be read or the varint is too long
+     */
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++){
+            int b = in.read();
+            if (b < 0){
+                throw new EOFException("Stream ended in the middle of a varint");
+            }
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    /**
+     * Encodes a varint into a new array.
+     *
+     * @param value the value to encode
+     * @return the encoded varint
+     */
+    public static byte[] encodeVarint(int value){
+        byte[] tmp = new byte[MAX_VARINT_BYTES];
+        int count = 0;
+        while ((value & ~0x7F) != 0){
+            tmp[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        tmp[count++] = (byte) value;
+
+        byte[] result = new byte[count];
+        System.arraycopy(tmp, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Decodes a varint from an array.
+     *
+     * @param b the array containing exactly one varint
+     * @return the decoded value
+     * @throws IOException if the array ends in the middle of the varint, the varint is too long
+     * or bytes follow it
+     */
+    public static int decodeVarint(byte[] b) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++){
+            if (i >= b.length){
+                throw new EOFException("Array ended in the middle of a varint");
+            }
+            value |= (b[i] & 0x7F) << (7 * i);
+            if ((b[i] & 0x80) == 0){
+                if (i + 1 != b.length){
+                    throw new IOException("Varint is followed by " + (b.length - i - 1) + " bytes");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    /**
+     * Reads exactly len bytes from the stream.
+     *
+     * @param in the stream to read from
+     * @param b the array to read into
+     * @param off offset in the array
+     * @param len number of bytes to read
+     * @throws EOFException if the stream ended before all bytes were read
+     * @throws IOException if the stream could not be read
+     */
+    static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0){
+            int read = in.read(b, off, len);
+            if (read < 0){
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            off += read;
+            len -= read;
+        }
+    }
+}
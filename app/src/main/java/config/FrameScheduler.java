@@ -0,0 +1,397 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Writes the frames of a connection in the order of their priority on its own thread.
+ * <p>Every frame belongs to a class, a frame is only written if all queues of higher classes are empty:</p>
+ * <p>CLASS_CONTROL: pipelined requests (e.g. heartbeat, token requests)</p>
+ * <p>CLASS_GAME: messages of the game (e.g. answers from the PlayActivity)</p>
+ * <p>CLASS_BULK: the ordered conversation, including the bytes of an image</p>
+ * <p>Data frames of the bulk class are split into slices of Misc.BULK_SLICE_SIZE, so a game message
+ * waits at most for one slice instead of the whole image. Only Misc.BULK_MAX_QUEUED bytes of bulk frames
+ * are queued, a writer blocks until the queue drained.</p>
+ * <p>Also collects the queue depth and the time from submit() until the frame was written for every class.</p>
+ *
+ * @author Martin
+ *
+ */
+public class FrameScheduler implements Runnable {
+
+    /**
+     * The classes of frames, lower values are written first.
+     */
+    public static final int
+            CLASS_CONTROL = 0,
+            CLASS_GAME = 1,
+            CLASS_BULK = 2;
+    private static final int CLASSES = 3;
+    private static final String[] CLASS_NAMES = {"control", "game", "bulk"};
+
+    /**
+     * Writes the frames taken from the queues.
+     */
+    interface Sink {
+
+        /**
+         * Writes a frame to the stream.
+         *
+         * @param frame the frame to write
+         * @param priorityClass the class of the frame
+         * @throws IOException if the frame could not be written
+         */
+        void write(Frame frame, int priorityClass) throws IOException;
+
+        /**
+         * Called when all queues are empty.
+         *
+         * @throws IOException if the stream could not be flushed
+         */
+        void idle() throws IOException;
+    }
+
+    /**
+     * A queued frame.
+     */
+    private static final class Entry {
+        final Frame frame;
+        final long queued = System.nanoTime();
+
+        Entry(Frame frame){
+            this.frame = frame;
+        }
+    }
+
+    private final Sink sink;
+
+    /**
+     * Guarded by this: the queues by class.
+     */
+    private final ArrayDeque<Entry>[] queues = newQueues();
+    private long queuedBulkBytes;
+    private boolean writing;
+    private boolean stopped;
+    private IOException failure;
+    private Thread thread;
+
+    /**
+     * Guarded by this: statistics by class.
+     */
+    private final long[] written = new long[CLASSES];
+    private final long[] latencyNanos = new long[CLASSES];
+    private final long[] maxLatencyNanos = new long[CLASSES];
+    private final int[] maxDepth = new int[CLASSES];
+
+    /**
+     * Standard constructor.
+     *
+     * @param sink writes the frames to the stream
+     */
+    FrameScheduler(Sink sink){
+        this.sink = sink;
+    }
+
+    /**
+     * Creates an empty queue for every class.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Entry>[] newQueues(){
+        ArrayDeque<?>[] queues = new ArrayDeque<?>[CLASSES];
+        for (int i = 0; i < CLASSES; i++){
+            queues[i] = new ArrayDeque<Entry>();
+        }
+        return (ArrayDeque<Entry>[]) queues;
+    }
+
+    /**
+     * Starts the thread writing the frames.
+     */
+    void start(){
+        this.thread = new Thread(this, "FrameScheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops writing, queued frames are dropped.
+     */
+    synchronized void stop(){
+        this.stopped = true;
+        dropQueued();
+        notifyAll();
+    }
+
+    /**
+     * Queues a frame, data frames of the bulk class are split into slices.
+     * <p>Blocks while more than Misc.BULK_MAX_QUEUED bytes of bulk frames are queued.</p>
+     * <p>A BufferFrame belongs to the scheduler afterwards: it is released once it was written,
+     * or right away if it can not be queued.</p>
+     *
+     * @param frame the frame to write
+     * @param priorityClass the class of the frame (CLASS_*)
+     * @throws IOException if the scheduler stopped writing
+     */
+    void submit(Frame frame, int priorityClass) throws IOException {
+
+        int length = frame.getPayloadLength();
+
+        if (priorityClass != CLASS_BULK || frame.getOpcode() != Frame.OP_DATA || length <= Misc.BULK_SLICE_SIZE){
+            try {
+                if (priorityClass == CLASS_BULK){
+                    submitBulk(frame);
+                }else {
+                    synchronized (this){
+                        checkRunning();
+                        enqueue(new Entry(frame), priorityClass);
+                    }
+                }
+            }catch(IOException eIO){
+                release(frame);
+                throw eIO;
+            }
+            return;
+        }
+
+        //slices of a buffer share the buffer, arrays are copied
+        BufferFrame buffer = (frame instanceof BufferFrame) ? (BufferFrame) frame : null;
+        try {
+            for (int off = 0; off < length; off += Misc.BULK_SLICE_SIZE){
+                int len = Math.min(length - off, Misc.BULK_SLICE_SIZE);
+                if (buffer != null){
+                    BufferFrame slice = buffer.slice(off, len);
+                    try {
+                        submitBulk(slice);
+                    }catch(IOException eIO){
+                        slice.release();
+                        throw eIO;
+                    }
+                }else {
+                    submitBulk(new Frame(Frame.OP_DATA, frame.getRequestId(),
+                            Arrays.copyOfRange(frame.getPayload(), off, off + len)));
+                }
+            }
+        }finally{
+            //the slices hold the buffer now
+            if (buffer != null){
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued frames were written.
+     *
+     * @throws IOException if the scheduler stopped writing
+     */
+    synchronized void awaitDrained() throws IOException {
+        try {
+            while (isPending()){
+                checkRunning();
+                wait();
+            }
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the frames to be written", eI);
+        }
+        checkRunning();
+    }
+
+    @Override
+    public void run(){
+        try {
+            while (true){
+                Entry entry;
+                int priorityClass;
+
+                synchronized (this){
+                    while (!this.stopped && (priorityClass = nextClass()) < 0){
+                        wait();
+                    }
+                    if (this.stopped){
+                        return;
+                    }
+                    priorityClass = nextClass();
+                    entry = this.queues[priorityClass].poll();
+                    if (priorityClass == CLASS_BULK){
+                        this.queuedBulkBytes -= entry.frame.getPayloadLength();
+                    }
+                    this.writing = true;
+                }
+
+                this.sink.write(entry.frame, priorityClass);
+
+                long latency = System.nanoTime() - entry.queued;
+                boolean idle;
+                synchronized (this){
+                    this.written[priorityClass]++;
+                    this.latencyNanos[priorityClass] += latency;
+                    this.maxLatencyNanos[priorityClass] = Math.max(this.maxLatencyNanos[priorityClass], latency);
+                    idle = nextClass() < 0;
+                }
+
+                if (idle){
+                    this.sink.idle();
+                }
+
+                synchronized (this){
+                    this.writing = false;
+                    notifyAll();
+                }
+            }
+        }catch(InterruptedException eI){
+            //stopped
+        }catch(IOException eIO){
+            fail(eIO);
+        }catch(RuntimeException eR){
+            //the thread ends, the writers waiting for it must not wait forever
+            fail(new IOException("Failed to write frame", eR));
+        }
+    }
+
+    /**
+     * Records why the thread stopped writing and wakes up all waiting writers.
+     */
+    private synchronized void fail(IOException cause){
+        if (!this.stopped){
+            Log.d(Misc.TAG, "Failed to write frame", cause);
+        }
+        this.failure = cause;
+        this.writing = false;
+        //the queued frames will never be written
+        dropQueued();
+        notifyAll();
+    }
+
+    /**
+     * Empties all queues and returns the buffers of the queued frames to their pool (must hold the lock of this).
+     */
+    private void dropQueued(){
+        for (ArrayDeque<Entry> queue : this.queues){
+            for (Entry entry : queue){
+                release(entry.frame);
+            }
+            queue.clear();
+        }
+        this.queuedBulkBytes = 0;
+    }
+
+    private static void release(Frame frame){
+        if (frame instanceof BufferFrame){
+            ((BufferFrame) frame).release();
+        }
+    }
+
+    private void submitBulk(Frame frame) throws IOException {
+        int size = frame.getPayloadLength();
+        synchronized (this){
+            try {
+                //a frame larger than the limit is queued alone
+                while (this.queuedBulkBytes > 0 && this.queuedBulkBytes + size > Misc.BULK_MAX_QUEUED){
+                    checkRunning();
+                    wait();
+                }
+            }catch(InterruptedException eI){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to queue a frame", eI);
+            }
+            checkRunning();
+            this.queuedBulkBytes += size;
+            enqueue(new Entry(frame), CLASS_BULK);
+        }
+    }
+
+    /**
+     * Adds an entry to its queue (must hold the lock of this).
+     */
+    private void enqueue(Entry entry, int priorityClass){
+        ArrayDeque<Entry> queue = this.queues[priorityClass];
+        queue.add(entry);
+        this.maxDepth[priorityClass] = Math.max(this.maxDepth[priorityClass], queue.size());
+        notifyAll();
+    }
+
+    /**
+     * Returns the class of the next frame to write, -1 if all queues are empty (must hold the lock of this).
+     */
+    private int nextClass(){
+        for (int i = 0; i < CLASSES; i++){
+            if (!this.queues[i].isEmpty()){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isPending(){
+        return this.writing || nextClass() >= 0;
+    }
+
+    private void checkRunning() throws IOException {
+        if (this.failure != null){
+            throw new IOException("Connection to server is closed", this.failure);
+        }
+        if (this.stopped){
+            throw new IOException("Connection to server is closed");
+        }
+    }
+
+    /**
+     * Returns the number of frames of a class waiting to be written.
+     *
+     * @param priorityClass the class (CLASS_*)
+     * @return the current queue depth
+     */
+    public synchronized int getQueueDepth(int priorityClass){
+        return this.queues[priorityClass].size();
+    }
+
+    /**
+     * Returns the highest number of frames of a class that waited at once.
+     *
+     * @param priorityClass the class (CLASS_*)
+     * @return the maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth(int priorityClass){
+        return this.maxDepth[priorityClass];
+    }
+
+    /**
+     * Returns the average time a frame of a class waited until it was written.
+     *
+     * @param priorityClass the class (CLASS_*)
+     * @return average latency in microseconds, 0 if no frame was written yet
+     */
+    public synchronized double getAverageLatencyMicros(int priorityClass){
+        long count = this.written[priorityClass];
+        return count == 0 ? 0 : this.latencyNanos[priorityClass] / 1000.0 / count;
+    }
+
+    /**
+     * Returns the longest time a frame of a class waited until it was written.
+     *
+     * @param priorityClass the class (CLASS_*)
+     * @return maximum latency in microseconds
+     */
+    public synchronized double getMaxLatencyMicros(int priorityClass){
+        return this.maxLatencyNanos[priorityClass] / 1000.0;
+    }
+
+    @Override
+    public synchronized String toString(){
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CLASSES; i++){
+            if (i > 0){
+                sb.append(", ");
+            }
+            sb.append(CLASS_NAMES[i]).append(": ").append(this.written[i]).append(" frames, depth ")
+                    .append(this.queues[i].size()).append(" (max ").append(this.maxDepth[i]).append("), latency ")
+                    .append(String.format("%.1f", getAverageLatencyMicros(i))).append(" us (max ")
+                    .append(String.format("%.1f", getMaxLatencyMicros(i))).append(" us)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Detects a dead connection with ping/pong messages and feeds the RttEstimator.
+ * <p>Every Misc.HEARTBEAT_INTERVAL a '.ping' is sent, the server answers with '.pong'.
+ * A pong that does not arrive within the RTO is a miss and doubles the RTO.
+ * After Misc.HEARTBEAT_MISSES misses in a row the connection is declared dead and aborted,
+ * so a blocked read fails and the client can reconnect.</p>
+ * <p>With the binary frame protocol the pings are pipelined requests sent by its own thread (start()).
+ * With the object stream protocol the client thread has to call beatIfDue() while it is idle.</p>
+ *
+ * @author Martin
+ *
+ */
+public class Heartbeat implements Runnable {
+
+    /**
+     * The connection to watch.
+     */
+    private final CommunicationHandler ch;
+
+    private volatile boolean stopped;
+    private volatile boolean dead;
+    private int misses;
+    private long lastBeat = System.currentTimeMillis();
+    private Thread thread;
+
+    /**
+     * Standard constructor.
+     *
+     * @param ch the connection to watch
+     */
+    Heartbeat(CommunicationHandler ch){
+        this.ch = ch;
+    }
+
+    /**
+     * Starts sending pings on its own thread.
+     */
+    void start(){
+        this.thread = new Thread(this, "Heartbeat");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops sending pings.
+     */
+    void stop(){
+        this.stopped = true;
+        if (this.thread != null){
+            this.thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run(){
+        try {
+            while (!this.stopped && !this.dead){
+                Thread.sleep(Misc.HEARTBEAT_INTERVAL);
+                beat();
+            }
+        }catch(InterruptedException eI){
+            //stopped
+        }catch(IOException eIO){
+            if (!this.stopped){
+                Log.d(Misc.TAG, "Heartbeat stopped, connection closed", eIO);
+            }
+        }
+    }
+
+    /**
+     * Sends a ping if the last one is older than Misc.HEARTBEAT_INTERVAL.
+     *
+     * @return false if the connection is dead
+     * @throws IOException if the stream could not be accessed
+     */
+    synchronized boolean beatIfDue() throws IOException {
+        if (!this.dead && System.currentTimeMillis() - this.lastBeat >= Misc.HEARTBEAT_INTERVAL){
+            beat();
+        }
+        return !this.dead;
+    }
+
+    /**
+     * Returns true if the server did not answer Misc.HEARTBEAT_MISSES pings in a row.
+     *
+     * @return true if the connection is dead
+     */
+    boolean isDead(){
+        return this.dead;
+    }
+
+    private synchronized void beat() throws IOException {
+        this.lastBeat = System.currentTimeMillis();
+
+        if (this.ch.ping()){
+            this.misses = 0;
+            return;
+        }
+
+        this.misses++;
+        Log.d(Misc.TAG, "Missed heartbeat " + this.misses + " of " + Misc.HEARTBEAT_MISSES);
+
+        if (this.misses >= Misc.HEARTBEAT_MISSES && !this.stopped){
+            Log.d(Misc.TAG, "Server did not answer " + this.misses + " pings, connection is dead!");
+            this.dead = true;
+            this.ch.abortConnection();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package config;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Scales and recompresses a camera image before it is uploaded.
+ * <p>The server only needs a measurement image, so the longest side is reduced to maxDimension and the
+ * image is encoded again as JPEG with the given quality. The orientation stored in the EXIF data is applied
+ * to the pixels, the encoded image carries no metadata (location, camera, ...).</p>
+ * <p>The encoded image is kept in memory and read by the ImageTransferHandler from there, nothing is written
+ * to the sd card. An image that fits into maxDimension is sent unchanged if the metadata may be kept.</p>
+ *
+ * @author Martin
+ *
+ */
+public class ImagePreprocessor {
+
+    /**
+     * The image to upload and the report of the preprocessing.
+     */
+    public static final class Result {
+
+        private final File source;
+        private final byte[] data;
+        private final int length;
+        private final long originalBytes;
+        private final long nanos;
+        private final int width;
+        private final int height;
+
+        Result(File source, byte[] data, int length, long nanos, int width, int height){
+            this.source = source;
+            this.data = data;
+            this.length = length;
+            this.originalBytes = source.length();
+            this.nanos = nanos;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Returns the image taken with the camera.
+         *
+         * @return the original image file
+         */
+        public File getSource(){
+            return this.source;
+        }
+
+        /**
+         * Returns true if the image was encoded again, false if the original file is sent.
+         *
+         * @return true if openStream() has to be used for the upload
+         */
+        public boolean isEncoded(){
+            return this.data != null;
+        }
+
+        /**
+         * Opens the encoded image, every call starts at its first byte.
+         *
+         * @return the stream of the encoded image
+         * @throws FileNotFoundException if the image was not encoded and the original file is missing
+         */
+        public BufferedInputStream openStream() throws FileNotFoundException {
+            if (this.data == null){
+                return new BufferedInputStream(new FileInputStream(this.source));
+            }
+            return new BufferedInputStream(new ByteArrayInputStream(this.data, 0, this.length));
+        }
+
+        /**
+         * Returns the encoded image, e.g. for ImageTransferHandler.sendImage(ByteBuffer).
+         *
+         * @return read-only buffer of getLength() bytes, null if the image was not encoded
+         */
+        public ByteBuffer getBuffer(){
+            if (this.data == null){
+                return null;
+            }
+            return ByteBuffer.wrap(this.data, 0, this.length).asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the size of the image to upload.
+         *
+         * @return size in bytes
+         */
+        public long getLength(){
+            return (this.data == null) ? this.originalBytes : this.length;
+        }
+
+        /**
+         * Returns the number of bytes that do not have to be uploaded.
+         *
+         * @return original size minus the size of the encoded image (negative if it grew)
+         */
+        public long getSavedBytes(){
+            return this.originalBytes - getLength();
+        }
+
+        /**
+         * Returns the time the preprocessing took.
+         *
+         * @return duration in milliseconds
+         */
+        public long getMillis(){
+            return this.nanos / 1000000L;
+        }
+
+        @Override
+        public String toString(){
+            return "Preprocessing: " + (this.originalBytes / 1024) + " KB -> " + (getLength() / 1024) + " KB ("
+                    + (getSavedBytes() / 1024) + " KB saved, " + this.width + "x" + this.height + ") in "
+                    + getMillis() + " ms" + (isEncoded() ? "" : ", sent unchanged");
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream whose buffer is read without copying it.
+     */
+    private static final class EncodedImage extends ByteArrayOutputStream {
+
+        EncodedImage(int size){
+            super(size);
+        }
+
+        byte[] getBuffer(){
+            return this.buf;
+        }
+    }
+
+    private final int maxDimension;
+    private final int quality;
+    private final boolean stripMetadata;
+
+    /**
+     * Returns a preprocessor with the settings of the Misc class.
+     *
+     * @return the default preprocessor
+     */
+    public static ImagePreprocessor getDefault(){
+        return new ImagePreprocessor(Misc.PREPROCESS_MAX_DIMENSION, Misc.PREPROCESS_JPEG_QUALITY,
+                Misc.PREPROCESS_STRIP_METADATA);
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param maxDimension maximum width and height in pixels, 0 to keep the resolution
+     * @param quality JPEG quality of the encoded image (0-100)
+     * @param stripMetadata true to always encode the image again, which removes the metadata
+     */
+    public ImagePreprocessor(int maxDimension, int quality, boolean stripMetadata){
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.stripMetadata = stripMetadata;
+    }
+
+    /**
+     * Prepares an image for the upload.
+     *
+     * @param image the image taken with the camera
+     * @return the image to upload with the report
+     * @throws IOException if the image could not be decoded or encoded
+     */
+    public Result process(File image) throws IOException {
+
+        long started = System.nanoTime();
+
+        //read the size without decoding the pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0){
+            throw new IOException("Not an image: " + image.getAbsolutePath());
+        }
+
+        int longest = Math.max(width, height);
+        boolean scale = this.maxDimension > 0 && longest > this.maxDimension;
+        if (!scale && !this.stripMetadata){
+            return new Result(image, null, 0, System.nanoTime() - started, width, height);
+        }
+
+        //decode a power of two smaller than needed only, the rest is done by the matrix
+        options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (scale && longest / (options.inSampleSize * 2) >= this.maxDimension){
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (decoded == null){
+            throw new IOException("Failed to decode " + image.getAbsolutePath());
+        }
+
+        Bitmap transformed = decoded;
+        try {
+            Matrix matrix = new Matrix();
+            boolean identity = true;
+
+            int decodedLongest = Math.max(decoded.getWidth(), decoded.getHeight());
+            if (scale && decodedLongest > this.maxDimension){
+                float factor = this.maxDimension / (float) decodedLongest;
+                matrix.postScale(factor, factor);
+                identity = false;
+            }
+            if (applyOrientation(matrix, readOrientation(image))){
+                identity = false;
+            }
+            if (!identity){
+                transformed = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+            }
+
+            EncodedImage encoded = new EncodedImage((int) Math.max(Misc.CHUNK_MIN_SIZE, image.length() / 2));
+            if (!transformed.compress(Bitmap.CompressFormat.JPEG, this.quality, encoded)){
+                throw new IOException("Failed to encode " + image.getAbsolutePath());
+            }
+
+            return new Result(image, encoded.getBuffer(), encoded.size(), System.nanoTime() - started,
+                    transformed.getWidth(), transformed.getHeight());
+
+        }finally{
+            if (transformed != decoded){
+                transformed.recycle();
+            }
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * Reads the orientation the camera stored in the EXIF data.
+     */
+    static int readOrientation(File image){
+        try {
+            return new ExifInterface(image.getAbsolutePath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        }catch(IOException eIO){
+            Log.d(Misc.TAG, "No EXIF data in " + image.getAbsolutePath(), eIO);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Adds the rotation and mirroring of the EXIF orientation to the matrix.
+     *
+     * @return false if the orientation needs no transformation
+     */
+    static boolean applyOrientation(Matrix matrix, int orientation){
+        switch (orientation){
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                return true;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                return true;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                return true;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                return true;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                return true;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                return true;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -4,14 +4,26 @@ import android.util.Log;
 
 import mmi.colorgame.colorgameclient.Client;
 
-import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignedObject;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import mmi.colorgame.colorgameclient.Client;
 
@@ -32,6 +44,38 @@ public class ImageTransferHandler {
      * The CommunicationHandler of the Client this ImageTransferHandler is for.
      */
     private final CommunicationHandler ch;
+    /**
+     * Chunk sizes and throughput of the last transfer.
+     */
+    private volatile ChunkSizer lastTransfer;
+    /**
+     * The last upload, kept to continue it after the connection was lost.
+     */
+    private volatile UploadSession upload;
+    /**
+     * Hash and send times of the last transfer.
+     */
+    private volatile UploadPipeline lastPipeline;
+    /**
+     * Pipelined request for the offset the server committed (null if none is in flight).
+     */
+    private ResponseFuture pendingAck;
+    /**
+     * Number of leaves of the MerkleTree whose hashes were sent with the acknowledgement requests.
+     */
+    private int reportedLeaves;
+    /**
+     * Chunks and bytes the server already had for the last deduplicated upload.
+     */
+    private volatile DedupReport lastDedup;
+    /**
+     * Sends large images over several connections (null to use the connection of the client only).
+     */
+    private volatile StripedUploader striper;
+    /**
+     * False to send every image file as a whole, see setDeduplication().
+     */
+    private volatile boolean deduplicate = true;
 
     /**
      * Standard Constructor.
@@ -53,124 +97,447 @@ public class ImageTransferHandler {
      * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
      * @throws IOException if the stream could not be read
      */
-    public boolean sendImage(BufferedInputStream image) throws IOException, NoSuchAlgorithmException {
+    public boolean sendImage(InputStream image) throws IOException, NoSuchAlgorithmException {
+        return sendImage(image, null);
+    }
+
+    /**
+     * Sends an image to the server or continues an interrupted upload of it (see UploadSession).
+     * <p>The length of a stream is not known in advance (e.g. a pipe or a camera), so it is sent in
+     * chunked mode until its end (see announceSize()).</p>
+     *
+     * @param image the image to transfer, positioned at its first byte
+     * @param resume the interrupted upload of this image, null to start a new upload
+     * @return true if the transfer was successful (with matching hash)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the stream could not be read
+     */
+    public boolean sendImage(InputStream image, UploadSession resume) throws IOException, NoSuchAlgorithmException {
         try{
 
-            Log.d(Misc.TAG, "Preparing image transfer...");
+            this.upload = (resume != null) ? resume : new UploadSession(null, UploadSession.SIZE_UNKNOWN);
 
-            //inform user
-            //client.setStatus("Image transfer in process...");
+            if (!prepareTransfer()){
+                return false;
+            }
 
-            //set the timeout for the socket
-            try {
-               ch.setTimeout(Misc.TIMEOUT);
+            //execute transfer of image and return resulting integer
+            return transferImage(image, this.upload);
+
+        }finally{
+            finishTransfer(image);
+        }
+    }
+
+    /**
+     * Sends an image held in memory (e.g. encoded by the ImagePreprocessor) to the server.
+     *
+     * @param image the image to transfer, from its position to its limit
+     * @return true if the transfer was successful (with matching hash)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the stream could not be accessed
+     */
+    public boolean sendImage(ByteBuffer image) throws IOException, NoSuchAlgorithmException {
+        return sendImage(image, null);
+    }
+
+    /**
+     * Sends an image held in memory to the server or continues an interrupted upload of it (see UploadSession).
+     * <p>Unlike a stream its size is known: it is announced like the size of a file and corrupted leaves are
+     * sent again from the buffer (see repairTransfer()).</p>
+     *
+     * @param image the image to transfer, from its position to its limit
+     * @param resume the interrupted upload of this image, null to start a new upload
+     * @return true if the transfer was successful (with matching hash)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the stream could not be accessed
+     */
+    public boolean sendImage(ByteBuffer image, UploadSession resume) throws IOException, NoSuchAlgorithmException {
+        try{
+
+            this.upload = (resume != null) ? resume : new UploadSession(null, image.remaining());
 
-            } catch (SocketException eS) {
-                Log.e(Misc.TAG, "Failed to set timeout for socket, might run forever!", eS);
+            if (!prepareTransfer()){
+                return false;
             }
 
-            //inform server that an image is about to be sent
-            ch.sendLineToServer(".image");
+            //offsets of the upload start at the first byte of the image
+            return transferImage(image.slice(), this.upload);
 
-            //listen for response from server
-            //check if server confirmed transfer
-            String response = ch.readLineFromServer();
-            if (response == null){
-                response = "";
+        }finally{
+            finishTransfer(null);
+        }
+    }
+
+    /**
+     * Sends an image file to the server. Calls the transferImage() method with a FileChannel.
+     * <p>The file is read into pooled direct buffers (see BufferPool) which are handed to the
+     * CommunicationHandler without copying them into an array first.</p>
+     *
+     * @param image the image file to transfer
+     * @return true if the transfer was successful (with matching hash)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the file or the stream could not be read
+     */
+    public boolean sendImage(File image) throws IOException, NoSuchAlgorithmException {
+        return sendImage(image, null);
+    }
+
+    /**
+     * Sends an image file to the server or continues an interrupted upload of it (see UploadSession).
+     *
+     * @param image the image file to transfer
+     * @param resume the interrupted upload of this file, null to start a new upload
+     * @return true if the transfer was successful (with matching hash)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the file or the stream could not be read
+     */
+    public boolean sendImage(File image, UploadSession resume) throws IOException, NoSuchAlgorithmException {
+
+        FileInputStream streamFromFile = new FileInputStream(image);
+
+        try{
+
+            this.upload = (resume != null) ? resume : new UploadSession(image, image.length());
+
+            if (!prepareTransfer()){
+                return false;
             }
 
-            switch(response){
+            //execute transfer of image and return resulting integer
+            return transferImage(streamFromFile.getChannel(), this.upload);
+
+        }finally{
+            finishTransfer(streamFromFile);
+        }
+    }
+
+    /**
+     * Sends several image files to the server with a single handshake and a single hash check.
+     * <p>'.imageBatch' and the number of images replace '.image', the server answers '.imageConfirm' once. The
+     * images follow back to back, each one with its sizes and '.imageSession' like a single image but without
+     * waiting for the server in between. The server answers '.imageBatchReceived', the length of a hash and a
+     * manifest signed like the hash of a single image: the hashes of all images one after the other. The client
+     * answers '.imageSuccess' or '.imageCorrupt' for every image in the order of the batch, the server then
+     * answers once for the whole batch like for a single image (see Client.evaluateImageResponse()).</p>
+     * <p>The images of a batch are not deduplicated, striped or repaired (each of these needs a round trip per
+     * image) and a batch is not resumed, the images that were not verified have to be sent again.</p>
+     *
+     * @param images the image files to transfer
+     * @return for every image true if its hash is equal, null if the server did not confirm the batch or
+     * responded unexpected (synchronization needed)
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if a file or the stream could not be read
+     */
+    public boolean[] sendImages(List<File> images) throws IOException, NoSuchAlgorithmException {
+
+        if (images.isEmpty()){
+            return new boolean[0];
+        }
 
-                case (".imageTime"):
-                    //expected control image from server was not sent in time
-                    //client.setStatus("The control image was not sent in time");
-                    Log.d(Misc.TAG, "The control image was not sent in time");
-                    return false;
+        UploadSession[] sessions = new UploadSession[images.size()];
+        MessageDigest[] digests = new MessageDigest[images.size()];
 
-                case (".imageConfirm"):
-                    break;
+        try{
 
-                default:
-                    //server did not confirm transfer, canceling
-                    return false;
+            if (!prepareTransfer(images.size())){
+                return null;
             }
 
-            Log.d(Misc.TAG, "Preparations for image transfer done!");
+            transferImages(images, sessions, digests);
 
-            //execute transfer of image and return resulting integer
-            return transferImage(image);
+            return verifyBatch(digests);
 
         }finally{
+            finishTransfer(null);
+            for (UploadSession session : sessions){
+                if (session != null){
+                    session.finish();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last upload if it was interrupted before the server verified it.
+     * <p>The upload can be continued on a new connection with sendImage(image, upload).</p>
+     *
+     * @return the interrupted upload, null if the last upload was completed
+     */
+    public UploadSession getUnfinishedUpload(){
+        UploadSession upload = this.upload;
+        return (upload != null && !upload.isFinished()) ? upload : null;
+    }
+
+    /**
+     * Announces the transfer of an image to the server.
+     *
+     * @return true if the server confirmed the transfer
+     * @throws IOException if the stream could not be accessed
+     */
+    private boolean prepareTransfer() throws IOException {
+        return prepareTransfer(0);
+    }
+
+    /**
+     * Announces the transfer of an image or a batch of images to the server.
+     *
+     * @param images number of images of a batch, 0 for a single image
+     * @return true if the server confirmed the transfer
+     * @throws IOException if the stream could not be accessed
+     */
+    private boolean prepareTransfer(int images) throws IOException {
+
+        Log.d(Misc.TAG, "Preparing image transfer...");
 
+        //inform user
+        //client.setStatus("Image transfer in process...");
+
+        //set the timeout for the socket
+        try {
+            ch.setTimeout(ch.getRttEstimator().getTimeout(Misc.IMAGE_ROUND_TRIPS));
+
+        } catch (SocketException eS) {
+            Log.e(Misc.TAG, "Failed to set timeout for socket, might run forever!", eS);
+        }
+
+        //inform server that an image is about to be sent
+        if (images == 0){
+            ch.sendLineToServer(".image");
+        }else {
+            ch.beginBatch();
             try {
-                //set timeout back to infinity
-                ch.setTimeout(0);
+                ch.sendLineToServer(".imageBatch");
+                ch.sendIntToServer(images);
+            }finally{
+                ch.endBatch();
+            }
+        }
 
-                //close inputStream
-                if (image != null){
-                    image.close();
-                }
+        //listen for response from server
+        //check if server confirmed transfer
+        String response = ch.readLineFromServer();
+        if (response == null){
+            response = "";
+        }
 
-            }catch(SocketException eS){
-                Log.d(Misc.TAG, "Unable to set timeout back to infinite, that should not happen!");
-            } catch (IOException eIO) {
-                Log.e(Misc.TAG, "SendImage: Error occurred while trying to close inputStream for image-file, check code", eIO);
+        switch(response){
+
+            case (".imageTime"):
+                //expected control image from server was not sent in time
+                //client.setStatus("The control image was not sent in time");
+                Log.d(Misc.TAG, "The control image was not sent in time");
+                return false;
+
+            case (".imageConfirm"):
+                break;
+
+            default:
+                //server did not confirm transfer, canceling
+                return false;
+        }
+
+        Log.d(Misc.TAG, "Preparations for image transfer done!");
+
+        return true;
+    }
+
+    /**
+     * Sets the timeout back and closes the image after a transfer.
+     *
+     * @param image the stream of the image, may be null
+     */
+    private void finishTransfer(Closeable image){
+        try {
+            //set timeout back to infinity
+            ch.setTimeout(0);
+
+            //close inputStream
+            if (image != null){
+                image.close();
             }
+
+        }catch(SocketException eS){
+            Log.d(Misc.TAG, "Unable to set timeout back to infinite, that should not happen!");
+        } catch (IOException eIO) {
+            Log.e(Misc.TAG, "SendImage: Error occurred while trying to close inputStream for image-file, check code", eIO);
         }
     }
 
     /**
      * Transfers the image to the server and compares the hash.
+     * <p>The stream is read through the UploadPipeline like a file, see transferImage(FileChannel, UploadSession).</p>
      *
      * @param streamFromFile the stream to the image file
+     * @param session the upload, continued at the offset committed by the server if it was started before
      * @return true if the transfer was successful and the hash is equal
      * @throws SocketTimeoutException if a timeout occurred (leads to sync)
      * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
      * @throws IOException if the stream could not be read
      */
-    private boolean transferImage(BufferedInputStream streamFromFile) throws IOException, NoSuchAlgorithmException {
+    private boolean transferImage(InputStream streamFromFile, UploadSession session) throws IOException, NoSuchAlgorithmException {
 
         Log.d(Misc.TAG, "Starting image transfer...");
 
         /***** prepare image transfer *****/
 
-        //buffer-size for the image-transfer
-        byte[] buffer = new byte[Misc.BUFFER_SIZE];
+        //the chunk size adapts to the throughput
+        BufferPool pool = BufferPool.getShared();
+        ChunkSizer sizer = ChunkSizer.forTransfer();
 
-        //initialize messageDigest for hash-calculation
+        //messageDigest for hash-calculation, continued from the committed prefix
         MessageDigest myMD;
-        //create MessageDigest to calculate hash
+
+        //sizes and image in one batch, flushed whenever Misc.BATCH_MAX_BYTES are buffered
+        ch.beginBatch();
         try {
-            myMD = MessageDigest.getInstance("SHA-256");
+            long offset;
+            boolean chunked;
+            try {
+                //send the size of the image and of the buffer (byte) to transfer the image, no chunk is larger
+                chunked = announceSize(session, sizer);
 
-        } catch (NoSuchAlgorithmException eNSA) {
-            Log.e(Misc.TAG, "Error while trying to create messageDigest, check algorithm", eNSA);
-            throw eNSA;
+                offset = startUpload(session);
+
+            }catch(IOException eIO){
+                Log.e(Misc.TAG, "Failed to send buffer initialization parameters to server", eIO);
+                throw eIO;
+            }
+
+            /***** execute image transfer *****/
+
+            Log.d(Misc.TAG, "Sending Image...");
+
+            try {
+                myMD = seek(streamFromFile, session, offset);
+
+                //read, hash and send the image in chunks at the same time
+                sendChunks(Channels.newChannel(streamFromFile), session, offset, myMD, pool, sizer, chunked);
+
+            }catch(SocketTimeoutException eST){
+                Log.d(Misc.TAG, "Timeout occurred while transferring the image", eST);
+                throw eST;
+
+            }catch(IOException eIO){
+                Log.e(Misc.TAG, "Failed to send image to server", eIO);
+                throw eIO;
+            }
+
+        }finally{
+            ch.endBatch();
+            finishChunks(sizer);
         }
 
+        Log.d(Misc.TAG, "Image sent! " + sizer + ", " + session);
+
+        //a stream can not be read again, corrupted leaves can not be repaired
+        return finishUpload(session, myMD, null, null, pool);
+    }
+
+    /**
+     * Transfers an image held in memory to the server and compares the hash.
+     * <p>The buffer is read through the UploadPipeline like a stream, see transferImage(InputStream, UploadSession).</p>
+     *
+     * @param image the image, its first byte at position 0
+     * @param session the upload, continued at the offset committed by the server if it was started before
+     * @return true if the transfer was successful and the hash is equal
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the stream could not be accessed
+     */
+    private boolean transferImage(ByteBuffer image, UploadSession session) throws IOException, NoSuchAlgorithmException {
+
+        Log.d(Misc.TAG, "Starting image transfer from memory...");
+
+        BufferPool pool = BufferPool.getShared();
+        ChunkSizer sizer = ChunkSizer.forTransfer();
+
+        //messageDigest for hash-calculation, continued from the committed prefix
+        MessageDigest myMD;
+
+        //sizes and image in one batch
+        ch.beginBatch();
         try {
-            //send the size of the image to server (byte)
-            ch.sendLineToServer(Integer.toString(streamFromFile.available()));
-            //send the size of the buffer (byte) to transfer the image
-            ch.sendLineToServer(Integer.toString(buffer.length));
+            boolean chunked = announceSize(session, sizer);
+
+            long offset = startUpload(session);
+            myMD = seek(image, session, offset);
+
+            Log.d(Misc.TAG, "Sending Image...");
+
+            //read, hash and send the image in chunks at the same time
+            sendChunks(new BufferChannel(image, offset), session, offset, myMD, pool, sizer, chunked);
+
+        }catch(SocketTimeoutException eST){
+            Log.d(Misc.TAG, "Timeout occurred while transferring the image", eST);
+            throw eST;
 
         }catch(IOException eIO){
-            Log.e(Misc.TAG, "Failed to send buffer initialization parameters to server", eIO);
+            Log.e(Misc.TAG, "Failed to send image to server", eIO);
             throw eIO;
+
+        }finally{
+            ch.endBatch();
+            finishChunks(sizer);
         }
 
-        /***** execute image transfer *****/
+        Log.d(Misc.TAG, "Image sent! " + sizer + ", " + session);
+
+        return finishUpload(session, myMD, null, image, pool);
+    }
+
+    /**
+     * Transfers the image file to the server and compares the hash.
+     * <p>The file is read with a FileChannel into pooled direct buffers, each filled up to the chunk size
+     * chosen by the ChunkSizer. The buffers are hashed on their own thread while the previous ones are sent
+     * (see UploadPipeline), without being copied into an array.</p>
+     *
+     * @param channel the channel of the image file
+     * @param session the upload, continued at the offset committed by the server if it was started before
+     * @return true if the transfer was successful and the hash is equal
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws NoSuchAlgorithmException if the algorithm specified for the hash calculation is not supported
+     * @throws IOException if the file could not be read
+     */
+    private boolean transferImage(FileChannel channel, UploadSession session) throws IOException, NoSuchAlgorithmException {
+
+        Log.d(Misc.TAG, "Starting image transfer from file...");
+
+        BufferPool pool = BufferPool.getShared();
+        ChunkSizer sizer = ChunkSizer.forTransfer();
 
-        Log.d(Misc.TAG, "Sending Image...");
+        //messageDigest for hash-calculation, continued from the committed prefix
+        MessageDigest myMD;
 
+        //sizes and image in one batch
+        ch.beginBatch();
         try {
-            //read image into the buffer and write it to the outputStream from the socket (in cycles)
-            int len;
-            while ((len = streamFromFile.read(buffer)) > 0) {
-                ch.sendByteToServer(buffer, 0, len);
-                //update the message digest for hash calculation
-                myMD.update(buffer, 0, len);
+            //send the size of the image and of the buffer to server (byte)
+            boolean chunked = announceSize(session, sizer);
+
+            long offset = startUpload(session);
+            myMD = seek(channel, session, offset, pool);
+
+            Log.d(Misc.TAG, "Sending Image...");
+
+            StripedUploader striper = this.striper;
+            if (offset == 0 && !chunked && striper != null && striper.accepts(session.getSize())){
+                //send the stripes of the image on several connections at the same time
+                striper.upload(ch, channel, session, myMD);
+            }else if (offset == 0 && !chunked && Misc.DEDUP_ENABLED && this.deduplicate){
+                //send the chunks the server does not have yet
+                deduplicate(channel, session, myMD, pool);
+            }else {
+                //read, hash and send the image in chunks at the same time
+                sendChunks(channel, session, offset, myMD, pool, sizer, chunked);
             }
+
         }catch(SocketTimeoutException eST){
             Log.d(Misc.TAG, "Timeout occurred while transferring the image", eST);
             throw eST;
@@ -178,9 +545,543 @@ public class ImageTransferHandler {
         }catch(IOException eIO){
             Log.e(Misc.TAG, "Failed to send image to server", eIO);
             throw eIO;
+
+        }finally{
+            ch.endBatch();
+            finishChunks(sizer);
+        }
+
+        Log.d(Misc.TAG, "Image sent! " + sizer + ", " + pool + ", " + session);
+
+        return finishUpload(session, myMD, channel, null, pool);
+    }
+
+    /**
+     * Sends the images of a batch back to back, see sendImages().
+     * <p>The chunk size keeps adapting from one image to the next, the batch is flushed when the last image was sent.</p>
+     *
+     * @param images the image files
+     * @param sessions receives the upload of every image
+     * @param digests receives the digest of every image, updated with the whole image
+     */
+    private void transferImages(List<File> images, UploadSession[] sessions, MessageDigest[] digests)
+            throws IOException, NoSuchAlgorithmException {
+
+        Log.d(Misc.TAG, "Starting transfer of " + images.size() + " images...");
+
+        BufferPool pool = BufferPool.getShared();
+        ChunkSizer sizer = ChunkSizer.forTransfer();
+
+        ch.beginBatch();
+        try {
+            for (int i = 0; i < images.size(); i++){
+                File image = images.get(i);
+                FileInputStream streamFromFile = new FileInputStream(image);
+                try {
+                    sessions[i] = new UploadSession(image, image.length());
+
+                    boolean chunked = announceSize(sessions[i], sizer);
+                    startUpload(sessions[i]);
+
+                    digests[i] = createDigest();
+                    sendChunks(streamFromFile.getChannel(), sessions[i], 0, digests[i], pool, sizer, chunked);
+
+                    //the acknowledgement belongs to this image only
+                    cancelAck();
+
+                }finally{
+                    streamFromFile.close();
+                }
+            }
+
+        }catch(SocketTimeoutException eST){
+            Log.d(Misc.TAG, "Timeout occurred while transferring the images", eST);
+            throw eST;
+
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to send images to server", eIO);
+            throw eIO;
+
+        }finally{
+            ch.endBatch();
+            finishChunks(sizer);
         }
 
-        Log.d(Misc.TAG, "Image sent!");
+        Log.d(Misc.TAG, "Images sent! " + sizer + ", " + pool);
+    }
+
+    /**
+     * Sends the size of the image, the size of the largest chunk and the leaf size of the MerkleTree to the server.
+     * <p>If the size is unknown or does not fit into an integer, Misc.IMAGE_SIZE_UNKNOWN is sent instead and
+     * the image follows in chunked mode: every chunk is preceded by its length, a chunk of length 0 ends the image.</p>
+     *
+     * @return true if the image has to be sent in chunked mode
+     */
+    private boolean announceSize(UploadSession session, ChunkSizer sizer) throws IOException {
+
+        long size = session.getSize();
+        boolean chunked = size == UploadSession.SIZE_UNKNOWN || size > Integer.MAX_VALUE;
+
+        ch.sendIntToServer(chunked ? Misc.IMAGE_SIZE_UNKNOWN : (int) size);
+        ch.sendIntToServer(sizer.getMaxChunkSize());
+        ch.sendIntToServer(Misc.MERKLE_LEAF_SIZE);
+
+        if (chunked){
+            Log.d(Misc.TAG, "Size of the image unknown, sending it in chunked mode");
+        }
+        return chunked;
+    }
+
+    /**
+     * Sends the image from the offset on with an UploadPipeline, every sent chunk is recorded by chunkSent().
+     */
+    private void sendChunks(ReadableByteChannel source, final UploadSession session, long offset, MessageDigest digest,
+                            BufferPool pool, ChunkSizer sizer, boolean chunked) throws IOException {
+
+        UploadPipeline pipeline = new UploadPipeline(ch, pool, sizer, chunked, new UploadPipeline.Listener() {
+            @Override
+            public void chunkSent(long offset, MessageDigest digest) throws IOException {
+                ImageTransferHandler.this.chunkSent(session, offset, digest);
+            }
+        });
+        this.lastPipeline = pipeline;
+        //the leaves before the committed offset were verified by the server
+        this.reportedLeaves = (int) (offset / Misc.MERKLE_LEAF_SIZE);
+        pipeline.run(source, offset, digest);
+    }
+
+    /**
+     * Uploads only the chunks of the image the server does not have yet (see ContentChunker).
+     * <p>'.imageDedup' is followed by the number of chunks, the number of bytes of the recipe and the recipe:
+     * length (4 bytes) and SHA-256 of every chunk in the order of the image. The server answers '.imageMissing'
+     * with the ranges of chunks it does not know ("FIRST:COUNT ...", empty if it knows all of them) and the client
+     * sends the bytes of these chunks in order. The server puts the image together, the tree and hash check of
+     * finishUpload() follow like for an image sent as a whole.</p>
+     * <p>If the connection is lost, the upload is resumed without deduplication at the offset the server committed.</p>
+     */
+    private void deduplicate(FileChannel channel, UploadSession session, MessageDigest digest, BufferPool pool)
+            throws IOException, NoSuchAlgorithmException {
+
+        long started = System.nanoTime();
+
+        //the chunker needs random access to the whole image
+        MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        List<ContentChunker.Chunk> chunks = ContentChunker.getDefault().split(image);
+        digest.update(image.duplicate());
+
+        ByteBuffer recipe = ByteBuffer.allocate(chunks.size() * (4 + 32));
+        for (ContentChunker.Chunk chunk : chunks){
+            recipe.putInt(chunk.getLength());
+            recipe.put(chunk.getFingerprint());
+        }
+
+        ch.sendLineToServer(".imageDedup");
+        ch.sendIntToServer(chunks.size());
+        ch.sendIntToServer(recipe.capacity());
+        ch.sendByteToServer(recipe.array(), 0, recipe.capacity());
+
+        //the answer is needed before the chunks can be sent
+        ch.flushBatch();
+
+        String response = ch.readLineFromServer();
+        if (!".imageMissing".equals(response)){
+            throw new IOException("Server responded '" + response + "' to the fingerprints");
+        }
+        long[] ranges = parseRanges(ch.readLineFromServer(), chunks.size());
+        if (ranges == null){
+            throw new IOException("Server requested invalid chunks");
+        }
+
+        long sentBytes = 0;
+        int sentChunks = 0;
+        for (int i = 0; i < ranges.length; i += 2){
+            ContentChunker.Chunk first = chunks.get((int) ranges[i]);
+            ContentChunker.Chunk last = chunks.get((int) (ranges[i] + ranges[i + 1] - 1));
+            long length = last.getOffset() + last.getLength() - first.getOffset();
+
+            ch.sendRangeToServer(channel, first.getOffset(), length, pool);
+            sentBytes += length;
+            sentChunks += ranges[i + 1];
+        }
+        session.sent(channel.size(), digest);
+
+        DedupReport report = new DedupReport(chunks.size(), sentChunks, channel.size(), sentBytes,
+                (System.nanoTime() - started) / 1000000L);
+        DedupReport.record(report);
+        this.lastDedup = report;
+        Log.d(Misc.TAG, report.toString());
+    }
+
+    /**
+     * Announces the ID of the upload to the server.
+     * <p>A new upload is announced with '.imageSession' and starts at offset 0. An upload that was started
+     * before is continued with '.imageResume', the server answers with the offset it committed
+     * (0 if it does not know the upload anymore).</p>
+     *
+     * @param session the upload
+     * @return the offset to continue the transfer at
+     * @throws IOException if the stream could not be accessed
+     */
+    private long startUpload(UploadSession session) throws IOException {
+
+        if (!session.start()){
+            ch.sendLineToServer(".imageSession");
+            ch.sendLineToServer(session.getId());
+            return 0;
+        }
+
+        ch.sendLineToServer(".imageResume");
+        ch.sendLineToServer(session.getId());
+
+        long offset = ch.readIntFromServer();
+        if (offset < 0 || (session.getSize() != UploadSession.SIZE_UNKNOWN && offset > session.getSize())){
+            Log.d(Misc.TAG, "Server committed invalid offset " + offset + ", starting over");
+            offset = 0;
+        }
+        session.acknowledge(offset);
+
+        Log.d(Misc.TAG, "Resuming upload at " + offset + ": " + session);
+        return offset;
+    }
+
+    /**
+     * Skips the committed prefix of the image.
+     * <p>The prefix is hashed again if the session kept no copy of the digest for the offset.</p>
+     *
+     * @return the digest of the prefix
+     */
+    private MessageDigest seek(InputStream stream, UploadSession session, long offset)
+            throws IOException, NoSuchAlgorithmException {
+
+        MessageDigest digest = session.digestAt(offset);
+        boolean hashPrefix = (digest == null);
+        if (hashPrefix){
+            digest = createDigest();
+        }
+
+        byte[] buffer = new byte[(int) Math.min(offset, Misc.UPLOAD_BUFFER_SIZE)];
+        long position = 0;
+        while (position < offset){
+            int len = stream.read(buffer, 0, (int) Math.min(buffer.length, offset - position));
+            if (len < 0){
+                throw new EOFException("Image ended before the committed offset");
+            }
+            if (hashPrefix){
+                digest.update(buffer, 0, len);
+            }
+            position += len;
+        }
+        return digest;
+    }
+
+    /**
+     * Hashes the prefix of an image held in memory up to the committed offset.
+     * <p>The prefix is only hashed if the session kept no copy of the digest for the offset.</p>
+     *
+     * @return the digest of the prefix
+     */
+    private MessageDigest seek(ByteBuffer image, UploadSession session, long offset) throws NoSuchAlgorithmException {
+
+        MessageDigest digest = session.digestAt(offset);
+        if (digest == null){
+            digest = createDigest();
+
+            ByteBuffer prefix = image.duplicate();
+            prefix.limit((int) offset);
+            prefix.position(0);
+            digest.update(prefix);
+        }
+        return digest;
+    }
+
+    /**
+     * Moves the channel to the committed offset.
+     * <p>The prefix is hashed again if the session kept no copy of the digest for the offset.</p>
+     *
+     * @return the digest of the prefix
+     */
+    private MessageDigest seek(FileChannel channel, UploadSession session, long offset, BufferPool pool)
+            throws IOException, NoSuchAlgorithmException {
+
+        MessageDigest digest = session.digestAt(offset);
+        if (digest == null){
+            digest = createDigest();
+
+            ByteBuffer buffer = pool.acquire();
+            try {
+                channel.position(0);
+                while (channel.position() < offset){
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), offset - channel.position()));
+                    if (channel.read(buffer) < 0){
+                        throw new EOFException("Image ended before the committed offset");
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+            }finally{
+                pool.release(buffer);
+            }
+        }
+
+        channel.position(offset);
+        return digest;
+    }
+
+    /**
+     * Records a sent chunk and asks for the committed offset every Misc.UPLOAD_ACK_INTERVAL bytes.
+     * <p>The digest is a copy made by the UploadPipeline for the offset, null if it could not be copied.</p>
+     * <p>The offsets are requested pipelined, so only with the binary frame protocol. With the object
+     * stream protocol the server tells the committed offset when the upload is resumed.</p>
+     * <p>The request carries the hashes of the leaves completed since the last request ("ID FIRST HASHES",
+     * hexadecimal). The server only commits leaves whose hash matches, a corrupted leaf keeps the committed
+     * offset behind it and is sent again by repairTransfer().</p>
+     */
+    private void chunkSent(UploadSession session, long offset, MessageDigest digest) throws IOException {
+
+        session.sent(offset, digest);
+
+        if (!ch.isPipelining()){
+            return;
+        }
+
+        if (this.pendingAck != null){
+            if (!this.pendingAck.isDone()){
+                return;
+            }
+            try {
+                session.acknowledge(Long.parseLong(this.pendingAck.get().asString()));
+            }catch(InterruptedException eI){
+                Thread.currentThread().interrupt();
+            }catch(ExecutionException | NumberFormatException | IOException e){
+                Log.d(Misc.TAG, "Server did not acknowledge the upload", e);
+            }
+            this.pendingAck = null;
+        }
+
+        if (offset - session.getAcknowledged() >= Misc.UPLOAD_ACK_INTERVAL){
+            StringBuilder request = new StringBuilder(session.getId());
+            if (digest instanceof MerkleTree){
+                MerkleTree tree = (MerkleTree) digest;
+                int complete = tree.getCompleteLeafCount();
+                request.append(' ').append(this.reportedLeaves).append(' ')
+                        .append(toHex(tree.getLeafHashes(this.reportedLeaves, complete)));
+                this.reportedLeaves = complete;
+            }
+            this.pendingAck = ch.sendRequest(Frame.opcodeForCommand(".imageOffset"),
+                    request.toString().getBytes(Frame.CHARSET));
+        }
+    }
+
+    /**
+     * Repairs and compares the hash with the server, afterwards the upload can not be resumed anymore.
+     *
+     * @param source the image file to send corrupted leaves again from, null if it can not be read again
+     * @param image the image held in memory to send corrupted leaves again from, null if it is not in memory
+     */
+    private boolean finishUpload(UploadSession session, MessageDigest myMD, FileChannel source, ByteBuffer image,
+                                 BufferPool pool) throws IOException {
+
+        //the remaining acknowledgement is not needed anymore
+        cancelAck();
+
+        boolean verified = repairTransfer((MerkleTree) myMD, session, source, image, pool) && verifyTransfer(myMD);
+        session.finish();
+        return verified;
+    }
+
+    /**
+     * Cancels the acknowledgement request in flight, if any.
+     */
+    private void cancelAck(){
+        if (this.pendingAck != null){
+            this.pendingAck.cancel(false);
+            this.pendingAck = null;
+        }
+    }
+
+    /**
+     * Compares the leaves of the MerkleTree with the server and sends the leaves again that arrived corrupted.
+     * <p>'.imageTree' is followed by the first leaf the server did not verify yet, the number of bytes of the hashes
+     * and the hashes of the remaining leaves. The server answers '.imageTreeOk' or '.imageRepair' with the corrupted
+     * ranges ("FIRST:COUNT FIRST:COUNT ..."). The client answers the number of ranges it sends again, followed by the
+     * first leaf, the number of leaves and the bytes of every range. 0 ranges ends the repair without fixing the
+     * image (a stream that can not be read again or more than Misc.MERKLE_MAX_REPAIRS rounds), the server answers
+     * with the hash check of verifyTransfer() in either case: it signs the root of its tree only.</p>
+     *
+     * @return false if the server answered unexpected (synchronization needed)
+     */
+    private boolean repairTransfer(MerkleTree tree, UploadSession session, FileChannel source, ByteBuffer image,
+                                   BufferPool pool) throws IOException {
+
+        int leafSize = tree.getLeafSize();
+        int from = (int) Math.min(session.getAcknowledged() / leafSize, tree.getCompleteLeafCount());
+        byte[] hashes = tree.getLeafHashes(from, tree.getLeafCount());
+
+        ch.sendLineToServer(".imageTree");
+        ch.sendIntToServer(from);
+        ch.sendIntToServer(hashes.length);
+        ch.sendByteToServer(hashes, 0, hashes.length);
+
+        long repaired = 0;
+        for (int round = 0; ; round++){
+
+            String response = ch.readLineFromServer();
+            if (".imageTreeOk".equals(response)){
+                if (repaired > 0){
+                    Log.d(Misc.TAG, "Repaired " + repaired + " bytes in " + round + " rounds");
+                }
+                return true;
+            }
+            if (!".imageRepair".equals(response)){
+                Log.d(Misc.TAG, "Server responded unexpected while comparing the leaves: " + response);
+                return false;
+            }
+
+            long[] ranges = parseRanges(ch.readLineFromServer(), tree.getLeafCount());
+            if (ranges == null || (source == null && image == null) || round >= Misc.MERKLE_MAX_REPAIRS){
+                //the hash check fails, the image is sent again as a whole
+                Log.d(Misc.TAG, "Corrupted leaves can not be sent again");
+                ch.sendIntToServer(0);
+                return true;
+            }
+
+            long size = (source != null) ? source.size() : image.limit();
+            ch.sendIntToServer(ranges.length / 2);
+            for (int i = 0; i < ranges.length; i += 2){
+                long offset = ranges[i] * leafSize;
+                long length = Math.min(ranges[i + 1] * leafSize, size - offset);
+
+                ch.sendIntToServer((int) ranges[i]);
+                ch.sendIntToServer((int) ranges[i + 1]);
+                if (source != null){
+                    ch.sendRangeToServer(source, offset, length, pool);
+                }else {
+                    ch.sendRangeToServer(image, offset, length, pool);
+                }
+                repaired += length;
+            }
+        }
+    }
+
+    /**
+     * Parses the ranges of leaves (or chunks) sent by the server.
+     *
+     * @return first leaf and number of leaves of every range, null if a range is invalid
+     */
+    private static long[] parseRanges(String line, int leafCount){
+        if (line == null){
+            return null;
+        }
+        if (line.trim().isEmpty()){
+            return new long[0];
+        }
+        String[] parts = line.trim().split(" ");
+        long[] ranges = new long[parts.length * 2];
+        try {
+            for (int i = 0; i < parts.length; i++){
+                int colon = parts[i].indexOf(':');
+                ranges[2 * i] = Long.parseLong(parts[i].substring(0, colon));
+                ranges[2 * i + 1] = Long.parseLong(parts[i].substring(colon + 1));
+                if (ranges[2 * i] < 0 || ranges[2 * i + 1] <= 0 || ranges[2 * i] + ranges[2 * i + 1] > leafCount){
+                    return null;
+                }
+            }
+        }catch(NumberFormatException | IndexOutOfBoundsException e){
+            Log.d(Misc.TAG, "Invalid ranges from server: " + line, e);
+            return null;
+        }
+        return ranges;
+    }
+
+    private static String toHex(byte[] bytes){
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes){
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the MessageDigest for the hash of an image: the root of a MerkleTree over its leaves.
+     */
+    private static MessageDigest createDigest() throws NoSuchAlgorithmException {
+        try {
+            return new MerkleTree(Misc.MERKLE_LEAF_SIZE);
+
+        } catch (NoSuchAlgorithmException eNSA) {
+            Log.e(Misc.TAG, "Error while trying to create messageDigest, check algorithm", eNSA);
+            throw eNSA;
+        }
+    }
+
+    /**
+     * Ends the chunk sizing of a transfer and keeps its report.
+     *
+     * @param sizer the sizer of the transfer
+     */
+    private void finishChunks(ChunkSizer sizer){
+        sizer.finish();
+        this.lastTransfer = sizer;
+    }
+
+    /**
+     * Returns the chunk sizes and the throughput of the last transfer.
+     *
+     * @return the sizer of the last transfer, null if no image was sent yet
+     */
+    public ChunkSizer getLastTransfer(){
+        return this.lastTransfer;
+    }
+
+    /**
+     * Returns how long hashing and sending took for the last transfer.
+     *
+     * @return the pipeline of the last transfer, null if no image was sent yet
+     */
+    public UploadPipeline getLastPipeline(){
+        return this.lastPipeline;
+    }
+
+    /**
+     * Sets the uploader for large images, new uploads of image files that are large enough are sent
+     * over several connections instead of being deduplicated.
+     *
+     * @param striper the uploader, null to send every image on the connection of the client
+     */
+    public void setStripedUploader(StripedUploader striper){
+        this.striper = striper;
+    }
+
+    /**
+     * Turns the deduplication of new uploads on or off (it needs Misc.DEDUP_ENABLED as well).
+     * <p>Deduplication costs a round trip, it does not pay off for an image that shares nothing with the
+     * images sent before (e.g. a control image, a new photo under a deadline).</p>
+     *
+     * @param deduplicate false to send the next images as a whole
+     */
+    public void setDeduplication(boolean deduplicate){
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Returns the chunks and bytes saved by the last deduplicated upload (see DedupReport.getTotals() for all).
+     *
+     * @return the report of the last deduplicated upload, null if no upload was deduplicated yet
+     */
+    public DedupReport getLastDedup(){
+        return this.lastDedup;
+    }
+
+    /**
+     * Waits for the server to confirm the transfer and compares the hash calculated by the server.
+     *
+     * @param myMD the message digest updated with the whole image
+     * @return true if the hash is equal
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws IOException if the stream could not be read
+     */
+    private boolean verifyTransfer(MessageDigest myMD) throws IOException {
 
         //wait for answer from server and react depending on response
         try{
@@ -300,6 +1201,98 @@ public class ImageTransferHandler {
         }
     }
 
+    /**
+     * Waits for the server to confirm a batch and compares the hashes of the signed manifest, see sendImages().
+     *
+     * @param digests the digests of the images in the order of the batch
+     * @return for every image true if the hash is equal, null if the server responded unexpected
+     * @throws SocketTimeoutException if a timeout occurred (leads to sync)
+     * @throws IOException if the stream could not be read
+     */
+    private boolean[] verifyBatch(MessageDigest[] digests) throws IOException {
+
+        if (!ch.listenForLine(".imageBatchReceived")){
+            Log.d(Misc.TAG, "Server responded unexpected while waiting for '.imageBatchReceived'");
+            return null;
+        }
+
+        Log.d(Misc.TAG, "Checking manifest from server...");
+
+        byte[][] hashes = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++){
+            hashes[i] = digests[i].digest();
+        }
+        int hashLength = (hashes.length > 0) ? hashes[0].length : 0;
+
+        boolean[] verified = new boolean[digests.length];
+
+        String response = ch.readLineFromServer();
+        try {
+            if (response == null || Integer.parseInt(response) != hashLength){
+                Log.d(Misc.TAG, "Hash size sent from server differs!");
+                sendBatchResult(verified);
+                return verified;
+            }
+
+        }catch(NumberFormatException eNF){
+            Log.e(Misc.TAG, "Failed to read the size of hash", eNF);
+            sendBatchResult(verified);
+            return verified;
+        }
+
+        byte[] manifest;
+        try {
+            SignedObject signedManifest = (SignedObject) ch.readObjectFromServer();
+
+            if (!client.verifySignature(signedManifest)){
+                client.setStatus("Server failed to verify, something is fishy...");
+                sendBatchResult(verified);
+                return verified;
+            }
+            manifest = (byte[]) signedManifest.getObject();
+
+        }catch(ClassNotFoundException eCNF){
+            Log.e(Misc.TAG, "Unable to read the signed manifest", eCNF);
+            throw new IOException("Hash verification failed");
+        }
+
+        if (manifest.length == hashLength * hashes.length){
+            for (int i = 0; i < hashes.length; i++){
+                verified[i] = Arrays.equals(hashes[i],
+                        Arrays.copyOfRange(manifest, i * hashLength, (i + 1) * hashLength));
+            }
+        }else {
+            Log.d(Misc.TAG, "Manifest from server has " + manifest.length + " bytes, expected "
+                    + hashLength * hashes.length);
+        }
+
+        sendBatchResult(verified);
+        return verified;
+    }
+
+    /**
+     * Answers '.imageSuccess' or '.imageCorrupt' for every image of a batch, all in one batch.
+     */
+    private void sendBatchResult(boolean[] verified) throws IOException {
+        int failed = 0;
+        ch.beginBatch();
+        try {
+            for (boolean imageVerified : verified){
+                ch.sendLineToServer(imageVerified ? ".imageSuccess" : ".imageCorrupt");
+                if (!imageVerified){
+                    failed++;
+                }
+            }
+        }finally{
+            ch.endBatch();
+        }
+
+        Log.d(Misc.TAG, "Batch transfer done, " + (verified.length - failed) + "/" + verified.length + " images verified");
+        if (failed > 0){
+            client.setStatus(failed + " of " + verified.length + " images got corrupted, please try again");
+        }
+    }
+
     /**
      * Requests a token from the server.
      *
@@ -310,6 +1303,125 @@ public class ImageTransferHandler {
         ch.sendLineToServer(".tokenForImage");
     }
 
+    /**
+     * Requests a token from the server as pipelined request.
+     * <p>The request does not wait for the ordered conversation (e.g. a running image transfer),
+     * the response can be evaluated with tokenFromResponse() once the future is done.
+     * Only available if the CommunicationHandler is pipelining.</p>
+     *
+     * @return the future the response of the server will be delivered to
+     * @throws IOException if the request could not be sent
+     */
+    public ResponseFuture requestTokenPipelined() throws IOException {
+        Log.d(Misc.TAG, "Sending a pipelined request for a token!");
+        return ch.sendRequest(Frame.opcodeForCommand(".tokenForImage"), null);
+    }
+
+    /**
+     * Evaluates the response of the server to a pipelined token request.
+     * <p>The server answers with a '.tokenForImage' frame carrying the token as payload
+     * or with a '.noTokenForImage' frame.</p>
+     *
+     * @param response the response of the server
+     * @return the token, null if the server will not give a token for the image
+     * @throws IOException if the server responded unexpected
+     */
+    public String tokenFromResponse(Frame response) throws IOException {
+        String command = response.asString();
+
+        if (".tokenForImage".equals(command)){
+            Log.d(Misc.TAG, "Received token for image!");
+            return response.getPayloadAsString();
+        }
+
+        if (".noTokenForImage".equals(command)){
+            Log.d(Misc.TAG, "Server will not give a token for the image!");
+            return null;
+        }
+
+        Log.d(Misc.TAG, "Server responded unexpected to a pipelined token request!");
+        throw new IOException("Server responded unexpected");
+    }
+
+    /**
+     * Requests the tokens of several images in one round trip.
+     * <p>'.tokensForImages' is followed by the number of images and the ID of every image (the ID of its upload or
+     * its hash as hexadecimal string, no whitespace). The server answers '.tokensForImages', the number of lines
+     * and one line for every image (see TokenBatch).</p>
+     *
+     * @param images the IDs of the images
+     * @return the tokens, deferred and refused images
+     * @throws SocketTimeoutException if a timeout occurred
+     * @throws IOException if the server responded unexpected or the stream could not be accessed
+     */
+    public TokenBatch requestTokens(Collection<String> images) throws IOException {
+        Log.d(Misc.TAG, "Requesting tokens for " + images.size() + " images...");
+
+        ch.beginBatch();
+        try {
+            ch.sendLineToServer(".tokensForImages");
+            ch.sendIntToServer(images.size());
+            for (String image : images){
+                ch.sendLineToServer(image);
+            }
+        }finally{
+            ch.endBatch();
+        }
+
+        if (!ch.listenForLine(".tokensForImages")){
+            Log.d(Misc.TAG, "Server responded unexpected to a bulk token request!");
+            throw new IOException("Server responded unexpected");
+        }
+
+        String[] lines = new String[ch.readIntFromServer()];
+        for (int i = 0; i < lines.length; i++){
+            lines[i] = ch.readLineFromServer();
+        }
+
+        TokenBatch tokens = TokenBatch.parse(images, lines);
+        Log.d(Misc.TAG, tokens.toString());
+        return tokens;
+    }
+
+    /**
+     * Requests the tokens of several images as one pipelined request.
+     * <p>The payload holds the IDs of the images, one per line. The server answers with a '.tokensForImages'
+     * frame carrying one line for every image, see tokensFromResponse(). Only available if the
+     * CommunicationHandler is pipelining.</p>
+     *
+     * @param images the IDs of the images
+     * @return the future the response of the server will be delivered to
+     * @throws IOException if the request could not be sent
+     */
+    public ResponseFuture requestTokensPipelined(Collection<String> images) throws IOException {
+        Log.d(Misc.TAG, "Sending a pipelined request for " + images.size() + " tokens!");
+
+        StringBuilder payload = new StringBuilder();
+        for (String image : images){
+            payload.append(image).append('\n');
+        }
+        return ch.sendRequest(Frame.opcodeForCommand(".tokensForImages"), payload.toString().getBytes(Frame.CHARSET));
+    }
+
+    /**
+     * Evaluates the response of the server to a pipelined bulk token request.
+     *
+     * @param images the IDs of the requested images
+     * @param response the response of the server
+     * @return the tokens, deferred and refused images
+     * @throws IOException if the server responded unexpected
+     */
+    public TokenBatch tokensFromResponse(Collection<String> images, Frame response) throws IOException {
+        if (!".tokensForImages".equals(response.asString())){
+            Log.d(Misc.TAG, "Server responded unexpected to a pipelined bulk token request!");
+            throw new IOException("Server responded unexpected");
+        }
+
+        String payload = response.getPayloadAsString().trim();
+        String[] lines = payload.isEmpty() ? new String[0] : payload.split("\n");
+        return TokenBatch.parse(images, lines);
+    }
+
     /**
      * Listens for a token from the server.
      *
@@ -376,4 +1488,40 @@ public class ImageTransferHandler {
     }
 
 
+    /**
+     * Reads an image held in memory like a stream, the buffer of the image is not changed.
+     */
+    private static final class BufferChannel implements ReadableByteChannel {
+
+        private final ByteBuffer image;
+        private boolean open = true;
+
+        BufferChannel(ByteBuffer image, long offset){
+            this.image = image.duplicate();
+            this.image.position((int) offset);
+        }
+
+        @Override
+        public int read(ByteBuffer dst){
+            if (!this.image.hasRemaining()){
+                return -1;
+            }
+            int len = Math.min(dst.remaining(), this.image.remaining());
+            ByteBuffer part = this.image.duplicate();
+            part.limit(part.position() + len);
+            dst.put(part);
+            this.image.position(part.position());
+            return len;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return this.open;
+        }
+
+        @Override
+        public void close(){
+            this.open = false;
+        }
+    }
 }
\ No newline at end of file
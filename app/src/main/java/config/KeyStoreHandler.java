@@ -5,16 +5,24 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.SignedObject;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
@@ -23,6 +31,7 @@ import javax.crypto.SealedObject;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -43,6 +52,11 @@ public class KeyStoreHandler {
      */
     private SSLSocketFactory socketFactory;
 
+    /**
+     * The SSLContext used to create engines for non-blocking connections.
+     */
+    private SSLContext sslContext;
+
     /**
      * Loads the specified KeyStore from a file and initializes the SocketFactory.
      *
@@ -105,8 +119,10 @@ public class KeyStoreHandler {
         SSLContext mySSLContext;
 
         try {
-            mySSLContext = SSLContext.getInstance(Misc.TLS_PROTOCOL);
-            mySSLContext.init(myKeyManager, myTrustManager, null);
+            //shared by all clients, so the cached sessions survive a reconnect
+            mySSLContext = TlsSessionCache.getShared().getContext(fingerprint(this.keyStoreClient), myKeyManager,
+                    myTrustManager);
+            this.sslContext = mySSLContext;
         } catch (Exception e) {
             Log.e(Misc.TAG, "Failed to initialize SSLContext!", e);
             throw new KeyStoreException(e);
@@ -144,13 +160,78 @@ public class KeyStoreHandler {
         Log.d(Misc.TAG, "Connecting SSLSocket to " + ip + "...");
 
         //connect with socket (serverIP as string)
+        //host and port identify the cached session that can be resumed
+        long start = System.nanoTime();
         SSLSocket socketForClient = (SSLSocket) this.socketFactory.createSocket(ip, port);
+        //the TCP connect takes one round trip
+        RttEstimator.getShared().addSample(System.nanoTime() - start);
+
+        enableSessionTickets(socketForClient);
 
         Log.d(Misc.TAG, "SSLSocket connected to " + ip + "!");
 
         return socketForClient;
     }
 
+    /**
+     * Connects to the server with the transport defined in Misc.TRANSPORT.
+     *
+     * @param ip the ip of the server
+     * @param port the port of the server
+     * @return a transport that is connected to the socket of the server
+     * @throws UnknownHostException if no host could be found under specified ip/port
+     * @throws IOException if the connection could not be established
+     */
+    public Transport connect(String ip, int port) throws IOException {
+        if (Misc.TRANSPORT == Misc.TRANSPORT_NIO){
+            return connectNio(ip, port, NioSelectorLoop.getShared());
+        }
+        return new SocketTransport(connectToSocket(ip, port));
+    }
+
+    /**
+     * Enables TLS session tickets (RFC 5077) if the socket supports them.
+     * <p>The method is not part of the SSLSocket API, but implemented by the Android socket (OpenSSL/Conscrypt).
+     * Without tickets, sessions are still resumed by their session ID.</p>
+     *
+     * @param socket the socket to enable tickets for
+     */
+    private void enableSessionTickets(SSLSocket socket){
+        try {
+            Method setUseSessionTickets = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+            setUseSessionTickets.invoke(socket, true);
+            Log.d(Misc.TAG, "Session tickets enabled!");
+        } catch (Exception e) {
+            Log.d(Misc.TAG, "Session tickets not supported, resuming by session ID only");
+        }
+    }
+
+    /**
+     * Connects to the server with a non-blocking transport driven by the given loop.
+     * <p>The TLS handshake is started with the first read or write, same as for a SSLSocket.</p>
+     *
+     * @param ip the ip of the server
+     * @param port the port of the server
+     * @param loop the loop that drives the connection
+     * @return a NioTransport that is connected to the socket of the server
+     * @throws UnknownHostException if no host could be found under specified ip/port
+     * @throws IOException if the connection could not be established
+     */
+    public NioTransport connectNio(String ip, int port, NioSelectorLoop loop) throws IOException {
+
+        Log.d(Misc.TAG, "Connecting NioTransport to " + ip + "...");
+
+        //the peer host and port allow the engine to identify the session
+        SSLEngine engine = this.sslContext.createSSLEngine(ip, port);
+        engine.setUseClientMode(true);
+
+        NioTransport transport = NioTransport.open(loop, engine, new InetSocketAddress(ip, port));
+
+        Log.d(Misc.TAG, "NioTransport connected to " + ip + "!");
+
+        return transport;
+    }
+
     /**
      * Verifies the signature from an object.
      *
@@ -240,4 +321,30 @@ public class KeyStoreHandler {
             return null;
         }
     }
+
+    /**
+     * Returns the SHA-256 fingerprint of the aliases and certificates of a keystore (see TlsSessionCache).
+     *
+     * @param keyStore the loaded keystore
+     * @return the fingerprint as hexadecimal string
+     * @throws KeyStoreException if the keystore could not be read
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     * @throws CertificateEncodingException if a certificate could not be encoded
+     */
+    static String fingerprint(KeyStore keyStore)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateEncodingException {
+
+        List<String> aliases = Collections.list(keyStore.aliases());
+        Collections.sort(aliases);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String alias : aliases){
+            digest.update(alias.getBytes(Charset.forName("UTF-8")));
+            Certificate certificate = keyStore.getCertificate(alias);
+            if (certificate != null){
+                digest.update(certificate.getEncoded());
+            }
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
 }
@@ -0,0 +1,205 @@
+package config;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash of an image as root of a Merkle tree over leaves of a fixed size.
+ * <p>Every leaf of leafSize bytes (the last one may be shorter) is hashed with SHA-256, the root combines
+ * the leaves pairwise up to a single hash (a node without partner moves up unchanged). Leaves and nodes are
+ * hashed with a different prefix byte, so a node can not be passed off as a leaf.</p>
+ * <p>The tree is a MessageDigest: it is updated and copied like the SHA-256 it replaces (see UploadSession and
+ * UploadPipeline), digest() returns the root. The hashes of the leaves let the server tell which parts of
+ * an image arrived corrupted, so only these have to be sent again (see ImageTransferHandler).</p>
+ *
+ * @author Martin
+ *
+ */
+public class MerkleTree extends MessageDigest implements Cloneable {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final byte LEAF = 0, NODE = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final int leafSize;
+
+    /**
+     * The hashes of the complete leaves and the digest of the current leaf (replaced by clone()).
+     */
+    private ArrayList<byte[]> leaves = new ArrayList<>();
+    private MessageDigest leaf;
+    private int leafBytes;
+
+    /**
+     * Standard constructor.
+     *
+     * @param leafSize number of bytes hashed into a leaf
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     */
+    public MerkleTree(int leafSize) throws NoSuchAlgorithmException {
+        super("Merkle-" + ALGORITHM);
+        this.leafSize = leafSize;
+        this.leaf = MessageDigest.getInstance(ALGORITHM);
+        this.leaf.update(LEAF);
+    }
+
+    /**
+     * Returns the size of the leaves.
+     *
+     * @return number of bytes hashed into a leaf
+     */
+    public int getLeafSize(){
+        return this.leafSize;
+    }
+
+    /**
+     * Returns the number of leaves including the incomplete last one.
+     *
+     * @return the number of leaves of the bytes hashed so far
+     */
+    public int getLeafCount(){
+        return this.leaves.size() + (hasPartialLeaf() ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of leaves that are complete.
+     *
+     * @return the number of leaves with leafSize bytes
+     */
+    public int getCompleteLeafCount(){
+        return this.leaves.size();
+    }
+
+    /**
+     * Returns the hashes of a range of leaves, one after the other.
+     *
+     * @param from the first leaf
+     * @param to the leaf after the last one, up to getLeafCount() (the incomplete leaf is hashed as it is)
+     * @return (to - from) hashes of 32 bytes
+     */
+    public byte[] getLeafHashes(int from, int to){
+        List<byte[]> all = allLeaves();
+        byte[] hashes = new byte[(to - from) * HASH_LENGTH];
+        for (int i = from; i < to; i++){
+            System.arraycopy(all.get(i), 0, hashes, (i - from) * HASH_LENGTH, HASH_LENGTH);
+        }
+        return hashes;
+    }
+
+    @Override
+    protected int engineGetDigestLength(){
+        return HASH_LENGTH;
+    }
+
+    @Override
+    protected void engineUpdate(byte input){
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len){
+        while (len > 0){
+            int n = Math.min(len, this.leafSize - this.leafBytes);
+            this.leaf.update(input, offset, n);
+            offset += n;
+            len -= n;
+            added(n);
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input){
+        //direct buffers are hashed without copying them into an array
+        while (input.hasRemaining()){
+            int n = Math.min(input.remaining(), this.leafSize - this.leafBytes);
+            ByteBuffer part = input.duplicate();
+            part.limit(part.position() + n);
+            this.leaf.update(part);
+            input.position(input.position() + n);
+            added(n);
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest(){
+        List<byte[]> level = allLeaves();
+        engineReset();
+
+        MessageDigest node = newDigest();
+        while (level.size() > 1){
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2){
+                if (i + 1 == level.size()){
+                    next.add(level.get(i));
+                    continue;
+                }
+                node.update(NODE);
+                node.update(level.get(i));
+                node.update(level.get(i + 1));
+                next.add(node.digest());
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    @Override
+    protected void engineReset(){
+        this.leaves.clear();
+        this.leaf.reset();
+        this.leaf.update(LEAF);
+        this.leafBytes = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        MerkleTree copy = (MerkleTree) super.clone();
+        copy.leaves = new ArrayList<>(this.leaves);
+        copy.leaf = (MessageDigest) this.leaf.clone();
+        return copy;
+    }
+
+    /**
+     * Closes the current leaf once it is full.
+     */
+    private void added(int n){
+        this.leafBytes += n;
+        if (this.leafBytes == this.leafSize){
+            this.leaves.add(this.leaf.digest());
+            this.leaf.update(LEAF);
+            this.leafBytes = 0;
+        }
+    }
+
+    private boolean hasPartialLeaf(){
+        //an empty image consists of one empty leaf
+        return this.leafBytes > 0 || this.leaves.isEmpty();
+    }
+
+    /**
+     * Returns the complete leaves and the hash of the incomplete one, the current leaf is not changed.
+     */
+    private List<byte[]> allLeaves(){
+        List<byte[]> all = new ArrayList<>(this.leaves);
+        if (hasPartialLeaf()){
+            try {
+                all.add(((MessageDigest) this.leaf.clone()).digest());
+            }catch(CloneNotSupportedException eCNS){
+                throw new IllegalStateException(ALGORITHM + " can not be copied", eCNS);
+            }
+        }
+        return all;
+    }
+
+    private static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }catch(NoSuchAlgorithmException eNSA){
+            //the constructor already created one
+            throw new IllegalStateException(eNSA);
+        }
+    }
+}
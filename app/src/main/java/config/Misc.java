@@ -60,21 +60,257 @@ public class Misc {
      */
     public static final String IMAGE_STRING = "trees.JPG";
     /**
-     * Size of the buffer used in transferImage().
+     * Smallest, largest and first size of the chunks an image is sent in, see ChunkSizer.
      */
-    public static final int BUFFER_SIZE = 1024;
+    public static final int
+            CHUNK_MIN_SIZE = 1024,
+            CHUNK_MAX_SIZE = 256 * 1024,
+            CHUNK_INITIAL_SIZE = 16 * 1024;
+    /**
+     * Number of bytes written before the ChunkSizer compares the throughput with the previous chunk size.
+     */
+    public static final int CHUNK_STEP_BYTES = 128 * 1024;
+    /**
+     * Relative drop of the throughput the ChunkSizer accepts before it turns around.
+     */
+    public static final double CHUNK_TOLERANCE = 0.1;
+    /**
+     * A write of a chunk slower than this halves the chunk size (milliseconds).
+     */
+    public static final int CHUNK_MAX_LATENCY = 200;
+    /**
+     * Maximum number of bytes in a batch until it is flushed (one TLS record holds up to 16 KB).
+     */
+    public static final int BATCH_MAX_BYTES = 16 * 1024;
+    /**
+     * Maximum time a message of a batch waits until it is flushed (milliseconds).
+     */
+    public static final int BATCH_MAX_DELAY = 20;
+    /**
+     * Maximum size of a slice of bulk data, a game message waits at most for one slice (see FrameScheduler).
+     */
+    public static final int BULK_SLICE_SIZE = 8 * 1024;
+    /**
+     * Maximum number of bytes of bulk frames queued by the FrameScheduler before a writer blocks.
+     */
+    public static final int BULK_MAX_QUEUED = 64 * 1024;
+    /**
+     * Size of the direct buffers an image file is read into (see BufferPool), holds the largest chunk.
+     */
+    public static final int UPLOAD_BUFFER_SIZE = CHUNK_MAX_SIZE;
+    /**
+     * Maximum number of upload buffers kept for reuse.
+     */
+    public static final int UPLOAD_BUFFERS_POOLED = 4;
+    /**
+     * Number of bytes sent after which the committed offset of an upload is requested (binary frame protocol).
+     */
+    public static final int UPLOAD_ACK_INTERVAL = 512 * 1024;
+    /**
+     * Number of bytes of an image hashed into one leaf of the MerkleTree, the smallest unit sent again if corrupted.
+     */
+    public static final int MERKLE_LEAF_SIZE = 64 * 1024;
+    /**
+     * Maximum number of rounds corrupted leaves are sent again before the image is given up.
+     */
+    public static final int MERKLE_MAX_REPAIRS = 2;
+    /**
+     * True to upload only the chunks of an image file the server does not have yet (see ContentChunker).
+     * <p>Off: every new photo is encoded from new sensor data and shares (almost) no chunk with the images sent
+     * before, even of the same scene (see ContentChunkerTest), so chunking and hashing the file and the extra
+     * round trip before the first byte only pay off for a file that is sent again as it is.</p>
+     */
+    public static final boolean DEDUP_ENABLED = false;
+    /**
+     * Smallest, average and largest size of the content defined chunks (the average is a power of two).
+     */
+    public static final int
+            CDC_MIN_SIZE = 2 * 1024,
+            CDC_AVG_SIZE = 8 * 1024,
+            CDC_MAX_SIZE = 64 * 1024;
+    /**
+     * Number of extra connections a large image file is uploaded on in parallel (0 = one connection only,
+     * see StripedUploader).
+     */
+    public static final int UPLOAD_STRIPES = 0;
+    /**
+     * Minimum number of bytes of a stripe, smaller images are sent on one connection.
+     */
+    public static final int STRIPE_MIN_SIZE = 512 * 1024;
+    /**
+     * Image size announced for an image sent in chunked mode (length unknown in advance, see ImageTransferHandler).
+     */
+    public static final int IMAGE_SIZE_UNKNOWN = -1;
+    /**
+     * Maximum number of digest copies an upload keeps to be resumed (see UploadSession).
+     */
+    public static final int UPLOAD_SNAPSHOTS = 64;
+    /**
+     * Maximum number of times an interrupted upload is continued before it is given up.
+     */
+    public static final int UPLOAD_MAX_RESUMES = 3;
+    /**
+     * Maximum width and height of an uploaded camera image in pixels, 0 to keep the resolution (see ImagePreprocessor).
+     */
+    public static final int PREPROCESS_MAX_DIMENSION = 1600;
+    /**
+     * JPEG quality of a camera image encoded before the upload (0-100).
+     */
+    public static final int PREPROCESS_JPEG_QUALITY = 85;
+    /**
+     * True to remove the metadata of every camera image, even if it does not have to be scaled.
+     */
+    public static final boolean PREPROCESS_STRIP_METADATA = true;
+    /**
+     * Name of the directory in getDirectory() the images waiting for the upload are stored in (see UploadSpool).
+     */
+    public static final String SPOOL_DIRECTORY = "spool";
+    /**
+     * Maximum number of spooled images uploaded at the same time.
+     */
+    public static final int SPOOL_MAX_IN_FLIGHT = 1;
+    /**
+     * Maximum number of spooled images sent in one batch with a single handshake, 1 to send every image on its own.
+     */
+    public static final int SPOOL_BATCH_SIZE = 8;
     /**
      * Request code for the image capture method.
      */
     public static final int REQUEST_IMAGE_CAPTURE = 1;
     /**
-     * Time until timeout in milliseconds (when calling read from stream).
+     * Timeout before the first round trip was measured (milliseconds), see RttEstimator.
+     */
+    public static final int RTT_INITIAL_TIMEOUT = 3000;
+    /**
+     * Lower and upper limit of the timeout derived from the round trip time (milliseconds).
+     */
+    public static final int
+            RTT_MIN_TIMEOUT = 1000,
+            RTT_MAX_TIMEOUT = 60000;
+    /**
+     * Round trips until the connection is set up (TCP connect, TLS handshake, stream headers).
+     */
+    public static final int HANDSHAKE_ROUND_TRIPS = 4;
+    /**
+     * Round trips to wait for an answer of the server during an image transfer
+     * (the server has to read and hash the whole image before it answers).
+     */
+    public static final int IMAGE_ROUND_TRIPS = 10;
+    /**
+     * Time between two pings of the Heartbeat (milliseconds, 0 = no heartbeat).
+     */
+    public static final int HEARTBEAT_INTERVAL = 5000;
+    /**
+     * True to send pings with the object stream protocol as well. Off, so the object stream protocol stays the
+     * baseline the binary frame protocol is compared to.
      */
-    public static final int TIMEOUT = 1000000;
+    public static final boolean HEARTBEAT_OBJECT_STREAM = false;
+    /**
+     * Number of pings in a row without pong until the connection is declared dead.
+     */
+    public static final int HEARTBEAT_MISSES = 3;
+    /**
+     * Number of '.sync' sent until the synchronization fails.
+     */
+    public static final int SYNC_ATTEMPTS = 5;
     /**
      * String to display how much time the user has to take the control image.
      */
     public static final String TIME_FOR_CONTROL_IMAGE = "30";
+    /**
+     * True to prepare the control image as soon as the server requests it and to send it without the spool
+     * (see Client.primeControlImage()).
+     */
+    public static final boolean CONTROL_FAST_PATH = true;
+    /**
+     * Largest distance of the PerceptualHash of a control image to the first image before the control image is
+     * rejected without uploading it (unrelated images are at about 32 of 64 bits, 64 = no local check).
+     */
+    public static final int CONTROL_MAX_DISTANCE = 26;
+    /**
+     * Minimum width and height in pixels an image is decoded with for its PerceptualHash.
+     */
+    public static final int PHASH_DECODE_SIZE = 64;
+    /**
+     * True to upload an image while the camera writes it instead of from a file (see Client.evaluateStreamCapture()).
+     * The image is neither scaled and recompressed nor checked with its PerceptualHash before it is sent.
+     */
+    public static final boolean CAPTURE_STREAMING = false;
+    /**
+     * True to write a copy of a streamed image to the sd card, it is spooled if the upload fails.
+     */
+    public static final boolean CAPTURE_TEE = true;
+    /**
+     * Time the camera has to start writing a streamed image (milliseconds), afterwards the capture is cancelled.
+     * Covers the user taking the image, the camera opens the pipe when the image is confirmed.
+     */
+    public static final int CAPTURE_TIMEOUT = 2 * 60 * 1000;
+    /**
+     * Authority of the CaptureProvider, has to match the AndroidManifest.
+     */
+    public static final String CAPTURE_AUTHORITY = "mmi.colorgame.colorgameclient.capture";
+    /**
+     * Charset used for strings in the binary frame protocol.
+     */
+    public static final String CHARSET = "UTF-8";
+
+    /**
+     * Defines the protocols a CommunicationHandler can speak with the server.
+     * <p>PROTOCOL_OBJECT_STREAM: every message is serialized with an ObjectOutputStream</p>
+     * <p>PROTOCOL_BINARY_FRAMES: every message is a frame with opcode, varint length and raw payload</p>
+     */
+    public static final int
+            PROTOCOL_OBJECT_STREAM = 0,
+            PROTOCOL_BINARY_FRAMES = 1;
+    /**
+     * Protocol used for new connections.
+     */
+    public static final int PROTOCOL = PROTOCOL_OBJECT_STREAM;
+
+    /**
+     * Defines the transports a CommunicationHandler can use.
+     * <p>TRANSPORT_BLOCKING: SSLSocket, one thread blocks on every connection</p>
+     * <p>TRANSPORT_NIO: SSLEngine over a SocketChannel, one NioSelectorLoop thread drives all connections</p>
+     */
+    public static final int
+            TRANSPORT_BLOCKING = 0,
+            TRANSPORT_NIO = 1;
+    /**
+     * Transport used for new connections.
+     */
+    public static final int TRANSPORT = TRANSPORT_BLOCKING;
+    /**
+     * Size of the plaintext buffers of a NioTransport (per direction).
+     */
+    public static final int NIO_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Maximum number of TLS sessions kept for resumption.
+     */
+    public static final int TLS_SESSION_CACHE_SIZE = 16;
+    /**
+     * Time a TLS session can be resumed (seconds).
+     */
+    public static final int TLS_SESSION_TIMEOUT = 24 * 60 * 60;
+    /**
+     * Delay before the first reconnect attempt (milliseconds), doubles with every attempt.
+     */
+    public static final int RECONNECT_BASE_DELAY = 500;
+    /**
+     * Maximum delay between two reconnect attempts (milliseconds).
+     */
+    public static final int RECONNECT_MAX_DELAY = 30000;
+    /**
+     * Number of reconnect attempts before the client gives up.
+     */
+    public static final int RECONNECT_ATTEMPTS = 8;
+    /**
+     * Time after the last change of the IP field until the connection is warmed up (milliseconds).
+     */
+    public static final int WARM_UP_DELAY = 500;
+    /**
+     * Time a warmed up connection may wait for the client before it is dropped as stale (milliseconds).
+     */
+    public static final int WARM_CONNECTION_MAX_AGE = 60000;
 
     public static final int MODE_SINGLE = 0;
     public static final int MODE_MULTI = 1;
@@ -0,0 +1,169 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One I/O thread driving the channels of many NioTransports with a Selector.
+ * <p>All operations on a channel and its SSLEngine are executed on this thread.
+ * Other threads hand over work with execute().</p>
+ *
+ * @author Martin
+ *
+ */
+public class NioSelectorLoop implements Runnable {
+
+    /**
+     * The loop shared by all connections that do not specify their own.
+     */
+    private static NioSelectorLoop sharedLoop;
+
+    /**
+     * Selector for all channels of this loop.
+     */
+    private final Selector selector;
+    /**
+     * Work handed over from other threads.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * The I/O thread.
+     */
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Opens a selector and starts the I/O thread.
+     *
+     * @param name the name of the I/O thread
+     * @throws IOException if the selector could not be opened
+     */
+    public NioSelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the loop shared by all connections, starts it if necessary.
+     *
+     * @return the shared loop
+     * @throws IOException if the loop could not be started
+     */
+    public static synchronized NioSelectorLoop getShared() throws IOException {
+        if (sharedLoop == null || !sharedLoop.running){
+            sharedLoop = new NioSelectorLoop("NioSelectorLoop");
+        }
+        return sharedLoop;
+    }
+
+    /**
+     * Executes a task on the I/O thread.
+     *
+     * @param task the task to execute
+     */
+    public void execute(Runnable task){
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Returns true if the calling thread is the I/O thread.
+     *
+     * @return true if called from the I/O thread
+     */
+    public boolean inLoop(){
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Returns the selector (may only be used on the I/O thread).
+     *
+     * @return the selector of the loop
+     */
+    Selector selector(){
+        return this.selector;
+    }
+
+    /**
+     * Returns the number of channels registered with this loop.
+     *
+     * @return number of sessions driven by this loop
+     */
+    public int getSessionCount(){
+        return this.selector.keys().size();
+    }
+
+    /**
+     * Stops the I/O thread and closes the selector (the channels are not closed).
+     */
+    public void shutdown(){
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run(){
+
+        Log.d(Misc.TAG, "NioSelectorLoop started!");
+
+        try {
+            while (this.running){
+
+                this.selector.select();
+
+                Runnable task;
+                while ((task = this.tasks.poll()) != null){
+                    runSafely(task);
+                }
+
+                Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+                while (selected.hasNext()){
+                    SelectionKey key = selected.next();
+                    selected.remove();
+
+                    if (key.isValid()) {
+                        ((NioTransport) key.attachment()).onSelected(key);
+                    }
+                }
+            }
+
+        }catch(IOException | ClosedSelectorException e){
+            Log.e(Misc.TAG, "NioSelectorLoop failed", e);
+
+        }finally{
+            this.running = false;
+
+            //fail all sessions still registered, nobody will drive them anymore
+            for (SelectionKey key : this.selector.keys()){
+                ((NioTransport) key.attachment()).fail(new IOException("NioSelectorLoop stopped"));
+            }
+            try {
+                this.selector.close();
+            } catch (IOException eIO) {
+                Log.e(Misc.TAG, "Failed to close selector", eIO);
+            }
+            Log.d(Misc.TAG, "NioSelectorLoop stopped!");
+        }
+    }
+
+    /**
+     * Runs a task, an exception must not stop the loop.
+     */
+    private void runSafely(Runnable task){
+        try {
+            task.run();
+        }catch(RuntimeException e){
+            Log.e(Misc.TAG, "Task on NioSelectorLoop failed", e);
+        }
+    }
+}
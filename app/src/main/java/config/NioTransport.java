@@ -0,0 +1,845 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non-blocking transport: a SSLEngine over a SocketChannel, driven by a NioSelectorLoop.
+ * <p>The channel and the engine are only touched on the I/O thread of the loop, so one thread can drive
+ * hundreds of connections. The streams returned to the CommunicationHandler still block the calling
+ * thread, they only exchange plaintext with the I/O thread through two buffers:</p>
+ * <p>inbound: decrypted data from the server, filled by the I/O thread, emptied by the inputStream</p>
+ * <p>outbound: data for the server, filled by the outputStream, encrypted and sent by the I/O thread</p>
+ * <p>Like a SSLSocket the handshake is started with the first read or write (or startHandshake()).</p>
+ *
+ * @author Martin
+ *
+ */
+public class NioTransport implements Transport {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The loop driving this connection.
+     */
+    private final NioSelectorLoop loop;
+    /**
+     * The connection to the server.
+     */
+    private final SocketChannel channel;
+    /**
+     * Encrypts and decrypts the data of the connection.
+     */
+    private final SSLEngine engine;
+
+    /*
+     * Only used on the I/O thread.
+     */
+    private SelectionKey key;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean handshakeBegun;
+    private boolean closing;
+
+    /**
+     * Set by the I/O thread when the inbound buffer is full, reading from the channel is paused until
+     * the inputStream consumed some data.
+     */
+    private volatile boolean readPaused;
+
+    /*
+     * Shared between the I/O thread and the threads using the streams, guarded by lock.
+     */
+    private final Object lock = new Object();
+    private final ByteBuffer inbound;
+    private final ByteBuffer outbound;
+    /**
+     * Buffer of a caller of write(ByteBuffer), encrypted directly once the outbound buffer is empty.
+     */
+    private ByteBuffer pendingSrc;
+    private boolean connected;
+    private boolean handshakeRequested;
+    private boolean handshakeDone;
+    private boolean endOfStream;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Timeout for reading (milliseconds, 0 = infinite).
+     */
+    private volatile int soTimeout;
+
+    private final InputStream in = new NioInputStream();
+    private final OutputStream out = new NioOutputStream();
+
+    /**
+     * Drives the connection, executed on the I/O thread.
+     */
+    private final Runnable pumpTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                pump();
+            }catch(IOException eIO){
+                fail(eIO);
+            }
+        }
+    };
+
+    private NioTransport(NioSelectorLoop loop, SocketChannel channel, SSLEngine engine){
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(applicationSize);
+        this.inbound = ByteBuffer.allocate(Math.max(Misc.NIO_BUFFER_SIZE, applicationSize));
+        this.outbound = ByteBuffer.allocate(Misc.NIO_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a connection to the server and waits until the TCP connection is established.
+     *
+     * @param loop the loop that will drive the connection
+     * @param engine the engine for the connection (client mode)
+     * @param address the address of the server
+     * @return the connected transport
+     * @throws UnknownHostException if the address could not be resolved
+     * @throws SocketTimeoutException if the connection was not established in time
+     * @throws IOException if the connection failed
+     */
+    public static NioTransport open(NioSelectorLoop loop, SSLEngine engine, final InetSocketAddress address) throws IOException {
+
+        if (address.isUnresolved()){
+            throw new UnknownHostException(address.getHostName());
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        final NioTransport transport = new NioTransport(loop, channel, engine);
+
+        long start = System.nanoTime();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                transport.connect(address);
+            }
+        });
+
+        RttEstimator rtt = RttEstimator.getShared();
+        transport.awaitConnected(rtt.getTimeout(Misc.HANDSHAKE_ROUND_TRIPS));
+        //the TCP connect takes one round trip
+        rtt.addSample(System.nanoTime() - start);
+        return transport;
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols){
+        this.engine.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] cipherSuites){
+        this.engine.setEnabledCipherSuites(cipherSuites);
+    }
+
+    @Override
+    public void startHandshake() throws IOException {
+        requestHandshake();
+
+        synchronized (this.lock){
+            long deadline = deadline();
+            while (!this.handshakeDone){
+                checkOpen();
+                awaitLock(deadline, "Timeout during TLS handshake");
+            }
+        }
+    }
+
+    @Override
+    public boolean isHandshakeDone(){
+        synchronized (this.lock){
+            return this.handshakeDone;
+        }
+    }
+
+    @Override
+    public SSLSession getSession(){
+        return this.engine.getSession();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return this.out;
+    }
+
+    /**
+     * Encrypts directly from the buffer of the caller, without copying it into the outbound buffer.
+     */
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+
+        requestHandshake();
+
+        synchronized (this.lock){
+            //keep the order: everything written to the outputStream before goes first
+            while (this.outbound.position() > 0 || this.pendingSrc != null){
+                checkOpen();
+                this.loop.execute(this.pumpTask);
+                awaitLock(0, null);
+            }
+            checkOpen();
+            this.pendingSrc = src;
+        }
+
+        this.loop.execute(this.pumpTask);
+
+        synchronized (this.lock){
+            try {
+                while (src.hasRemaining()){
+                    checkOpen();
+                    awaitLock(0, null);
+                }
+            }finally{
+                this.pendingSrc = null;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void setSoTimeout(int millis){
+        this.soTimeout = millis;
+    }
+
+    @Override
+    public void close(){
+        synchronized (this.lock){
+            if (this.closed){
+                return;
+            }
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+
+        this.loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOnLoop();
+            }
+        });
+    }
+
+    @Override
+    public boolean isClosed(){
+        synchronized (this.lock){
+            return this.closed;
+        }
+    }
+
+    /**************************************************************************************************
+     I/O thread
+     **************************************************************************************************/
+
+    /**
+     * Starts the connection and registers the channel with the selector.
+     */
+    private void connect(InetSocketAddress address){
+        try {
+            boolean connectedImmediately = this.channel.connect(address);
+            this.key = this.channel.register(this.loop.selector(), SelectionKey.OP_CONNECT, this);
+            if (connectedImmediately){
+                onConnected();
+            }
+        }catch(IOException eIO){
+            fail(eIO);
+        }
+    }
+
+    /**
+     * Called by the loop when the channel is ready.
+     *
+     * @param key the key of the channel
+     */
+    void onSelected(SelectionKey key){
+        try {
+            if (key.isConnectable()){
+                if (!this.channel.finishConnect()){
+                    return;
+                }
+                onConnected();
+            }
+            if (key.isReadable()){
+                readFromChannel();
+            }
+            if (key.isWritable()){
+                flushNetOut();
+            }
+
+            if (this.closing){
+                if (flushNetOut()){
+                    closeChannel();
+                }else{
+                    updateInterest();
+                }
+                return;
+            }
+
+            pump();
+
+        }catch(IOException eIO){
+            fail(eIO);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        boolean beginHandshake;
+        synchronized (this.lock){
+            this.connected = true;
+            beginHandshake = this.handshakeRequested;
+            this.lock.notifyAll();
+        }
+
+        Log.d(Misc.TAG, "NioTransport connected to " + this.channel.socket().getRemoteSocketAddress() + "!");
+
+        if (beginHandshake){
+            beginHandshake();
+        }
+        updateInterest();
+    }
+
+    private void beginHandshake() throws IOException {
+        if (this.handshakeBegun || this.closing){
+            return;
+        }
+        this.handshakeBegun = true;
+        this.engine.beginHandshake();
+        pump();
+    }
+
+    /**
+     * Reads encrypted data from the channel.
+     */
+    private void readFromChannel() throws IOException {
+        if (!this.netIn.hasRemaining()){
+            //the engine will tell if the buffer is too small for a record
+            return;
+        }
+
+        if (this.channel.read(this.netIn) < 0){
+            try {
+                this.engine.closeInbound();
+            }catch(SSLException eSSL){
+                Log.d(Misc.TAG, "Server closed the connection without close_notify");
+            }
+            markEndOfStream();
+            //the selector would report the closed channel as readable on every pass
+            updateInterest();
+        }
+    }
+
+    /**
+     * Lets the engine process as much data as possible (handshake, decrypt and encrypt).
+     */
+    private void pump() throws IOException {
+
+        if (this.closing){
+            return;
+        }
+
+        if (!this.handshakeBegun){
+            synchronized (this.lock){
+                if (!this.handshakeRequested || !this.connected){
+                    return;
+                }
+            }
+            beginHandshake();
+            return;
+        }
+
+        this.readPaused = false;
+
+        boolean progress = true;
+        while (progress){
+            switch (this.engine.getHandshakeStatus()){
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = this.engine.getDelegatedTask()) != null){
+                        task.run();
+                    }
+                    progress = true;
+                    break;
+
+                case NEED_WRAP:
+                    progress = wrap(false);
+                    break;
+
+                case NEED_UNWRAP:
+                    progress = unwrap();
+                    break;
+
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    markHandshakeDone();
+                    progress = unwrap();
+                    progress = wrap(true) || progress;
+                    break;
+
+                default:
+                    progress = unwrap();
+            }
+        }
+
+        flushNetOut();
+        updateInterest();
+    }
+
+    /**
+     * Encrypts handshake data or data from the outbound buffer.
+     *
+     * @param applicationData true to encrypt data from the outbound buffer
+     * @return true if the engine made progress
+     */
+    private boolean wrap(boolean applicationData) throws IOException {
+
+        //keep the order of the records, only wrap if everything before is sent
+        if (!flushNetOut()){
+            return false;
+        }
+
+        SSLEngineResult result;
+
+        if (applicationData){
+            synchronized (this.lock){
+                this.outbound.flip();
+                try {
+                    if (this.outbound.hasRemaining()) {
+                        result = this.engine.wrap(this.outbound, this.netOut);
+                    }else if (this.pendingSrc != null && this.pendingSrc.hasRemaining()){
+                        result = this.engine.wrap(this.pendingSrc, this.netOut);
+                    }else {
+                        return false;
+                    }
+                }finally{
+                    this.outbound.compact();
+                    this.lock.notifyAll();
+                }
+            }
+        }else{
+            result = this.engine.wrap(EMPTY, this.netOut);
+        }
+
+        switch (result.getStatus()){
+            case BUFFER_OVERFLOW:
+                this.netOut = enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+                return true;
+
+            case CLOSED:
+                return false;
+
+            default:
+                flushNetOut();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * Decrypts data read from the channel into the inbound buffer.
+     *
+     * @return true if the engine made progress
+     */
+    private boolean unwrap() throws IOException {
+
+        //decrypted data still waiting for space in the inbound buffer
+        if (!deliverAppIn()){
+            this.readPaused = true;
+            return false;
+        }
+
+        SSLEngineResult result;
+        this.netIn.flip();
+        try {
+            result = this.engine.unwrap(this.netIn, this.appIn);
+        }finally{
+            this.netIn.compact();
+        }
+
+        switch (result.getStatus()){
+            case BUFFER_UNDERFLOW:
+                //record not complete yet, enlarge the buffer if the record does not fit
+                if (!this.netIn.hasRemaining()){
+                    this.netIn = enlarge(this.netIn, this.engine.getSession().getPacketBufferSize());
+                }
+                return false;
+
+            case BUFFER_OVERFLOW:
+                if (this.appIn.position() == 0){
+                    this.appIn = enlarge(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                    return true;
+                }
+                return deliverAppIn();
+
+            case CLOSED:
+                markEndOfStream();
+                return false;
+
+            default:
+                deliverAppIn();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * Moves decrypted data into the inbound buffer.
+     *
+     * @return true if all decrypted data was moved
+     */
+    private boolean deliverAppIn(){
+        synchronized (this.lock){
+            this.appIn.flip();
+            int count = Math.min(this.appIn.remaining(), this.inbound.remaining());
+            if (count > 0){
+                ByteBuffer part = this.appIn.duplicate();
+                part.limit(part.position() + count);
+                this.inbound.put(part);
+                this.appIn.position(this.appIn.position() + count);
+                this.lock.notifyAll();
+            }
+            this.appIn.compact();
+            return this.appIn.position() == 0;
+        }
+    }
+
+    /**
+     * Writes encrypted data to the channel.
+     *
+     * @return true if all encrypted data was written
+     */
+    private boolean flushNetOut() throws IOException {
+        this.netOut.flip();
+        try {
+            while (this.netOut.hasRemaining()){
+                if (this.channel.write(this.netOut) == 0){
+                    break;
+                }
+            }
+        }finally{
+            this.netOut.compact();
+        }
+        return this.netOut.position() == 0;
+    }
+
+    /**
+     * Tells the selector what the connection is waiting for.
+     */
+    private void updateInterest(){
+        if (this.key == null || !this.key.isValid()){
+            return;
+        }
+
+        int ops = 0;
+        if (!this.channel.isConnected()){
+            ops = SelectionKey.OP_CONNECT;
+        }else{
+            if (!this.readPaused && !this.closing && !isEndOfStream()){
+                ops |= SelectionKey.OP_READ;
+            }
+            if (this.netOut.position() > 0){
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        this.key.interestOps(ops);
+    }
+
+    /**
+     * Sends close_notify and closes the channel once everything is written.
+     */
+    private void closeOnLoop(){
+        this.closing = true;
+        try {
+            if (this.handshakeBegun){
+                this.engine.closeOutbound();
+                wrap(false);
+            }
+            if (flushNetOut()){
+                closeChannel();
+            }else{
+                updateInterest();
+            }
+        }catch(IOException eIO){
+            Log.d(Misc.TAG, "Failed to send close_notify", eIO);
+            closeChannel();
+        }
+    }
+
+    private void closeChannel(){
+        if (this.key != null){
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to close channel", eIO);
+        }
+    }
+
+    private void markHandshakeDone(){
+        synchronized (this.lock){
+            if (!this.handshakeDone){
+                this.handshakeDone = true;
+                this.lock.notifyAll();
+                Log.d(Misc.TAG, "NioTransport finished TLS handshake!");
+            }
+        }
+    }
+
+    private boolean isEndOfStream(){
+        synchronized (this.lock){
+            return this.endOfStream;
+        }
+    }
+
+    private void markEndOfStream(){
+        synchronized (this.lock){
+            this.endOfStream = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the connection because of an error, everyone waiting will receive the error.
+     *
+     * @param eIO the reason
+     */
+    void fail(IOException eIO){
+        synchronized (this.lock){
+            if (this.failure == null){
+                this.failure = eIO;
+            }
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+        Log.e(Misc.TAG, "NioTransport failed", eIO);
+        closeChannel();
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumSize){
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(minimumSize, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**************************************************************************************************
+     calling threads
+     **************************************************************************************************/
+
+    /**
+     * Asks the I/O thread to start the handshake as soon as the connection is established.
+     */
+    private void requestHandshake(){
+        synchronized (this.lock){
+            if (this.handshakeRequested){
+                return;
+            }
+            this.handshakeRequested = true;
+        }
+        this.loop.execute(this.pumpTask);
+    }
+
+    private void awaitConnected(int timeoutMillis) throws IOException {
+        synchronized (this.lock){
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!this.connected){
+                if (this.failure != null){
+                    //e.g. ConnectException, same as a blocking connect
+                    throw this.failure;
+                }
+                checkOpen();
+                awaitLock(deadline, "Timeout while connecting to server");
+            }
+        }
+    }
+
+    /**
+     * Throws an exception if the connection failed or was closed (must hold the lock).
+     */
+    private void checkOpen() throws IOException {
+        if (this.failure != null){
+            throw new SocketException("Connection failed: " + this.failure.getMessage());
+        }
+        if (this.closed){
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    /**
+     * Returns the deadline for the current read timeout, 0 if there is none.
+     */
+    private long deadline(){
+        int timeout = this.soTimeout;
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    /**
+     * Waits on the lock until notified or the deadline passed (must hold the lock).
+     */
+    private void awaitLock(long deadline, String timeoutMessage) throws IOException {
+        try {
+            if (deadline == 0){
+                this.lock.wait();
+                return;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0){
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+            this.lock.wait(remaining);
+
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while waiting for the connection");
+        }
+    }
+
+    /**
+     * Reads the decrypted data from the inbound buffer.
+     */
+    private class NioInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0){
+                return 0;
+            }
+
+            requestHandshake();
+
+            int count;
+            synchronized (lock){
+                long deadline = deadline();
+                while (inbound.position() == 0){
+                    if (endOfStream){
+                        return -1;
+                    }
+                    checkOpen();
+                    awaitLock(deadline, "Read timed out");
+                }
+
+                inbound.flip();
+                count = Math.min(len, inbound.remaining());
+                inbound.get(b, off, count);
+                inbound.compact();
+            }
+
+            //space in the inbound buffer again, continue reading from the channel
+            if (readPaused){
+                loop.execute(pumpTask);
+            }
+            return count;
+        }
+
+        @Override
+        public int available(){
+            synchronized (lock){
+                return inbound.position();
+            }
+        }
+
+        @Override
+        public void close(){
+            NioTransport.this.close();
+        }
+    }
+
+    /**
+     * Writes the data into the outbound buffer, the I/O thread encrypts and sends it.
+     */
+    private class NioOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            requestHandshake();
+
+            while (len > 0){
+                synchronized (lock){
+                    while (!outbound.hasRemaining()){
+                        checkOpen();
+                        loop.execute(pumpTask);
+                        awaitLock(0, null);
+                    }
+                    checkOpen();
+
+                    int count = Math.min(len, outbound.remaining());
+                    outbound.put(b, off, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        /**
+         * Blocks until all data is handed over to the engine.
+         */
+        @Override
+        public void flush() throws IOException {
+
+            requestHandshake();
+            loop.execute(pumpTask);
+
+            synchronized (lock){
+                while (outbound.position() > 0){
+                    checkOpen();
+                    awaitLock(0, null);
+                }
+            }
+        }
+
+        @Override
+        public void close(){
+            NioTransport.this.close();
+        }
+    }
+}
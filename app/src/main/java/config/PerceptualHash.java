@@ -0,0 +1,216 @@
+package config;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * 64 bit difference hash (dHash) of an image, similar images have hashes that differ in few bits.
+ * <p>The image is reduced to 9x8 cells of luminance (the average of all pixels of a cell), every bit tells
+ * whether a cell is brighter than its right neighbour. Scaling, recompression and small changes of the brightness
+ * hardly change the hash, an image of something else differs in about half of the bits.</p>
+ * <p>The core works on ARGB pixels in pure Java (of(int[], int, int)), of(File) decodes an image file with the
+ * BitmapFactory. The Client uses it to tell an obviously wrong control image before it is uploaded.</p>
+ *
+ * @author Martin
+ *
+ */
+public final class PerceptualHash {
+
+    /**
+     * Number of bits of a hash, the largest possible distance.
+     */
+    public static final int BITS = 64;
+
+    private static final int COLUMNS = 9, ROWS = 8;
+
+    private final long bits;
+
+    /**
+     * Standard constructor.
+     *
+     * @param bits the 64 bits of the hash
+     */
+    public PerceptualHash(long bits){
+        this.bits = bits;
+    }
+
+    /**
+     * Hashes an image given as pixels.
+     *
+     * @param argb the pixels row by row (as returned by Bitmap.getPixels())
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the hash of the image
+     */
+    public static PerceptualHash of(int[] argb, int width, int height){
+
+        if (width <= 0 || height <= 0 || argb.length < width * height){
+            throw new IllegalArgumentException("Invalid image of " + width + "x" + height + " pixels");
+        }
+
+        //the cell of every column and row, so the loop over the pixels only adds
+        int[] cellOfColumn = new int[width];
+        for (int x = 0; x < width; x++){
+            cellOfColumn[x] = x * COLUMNS / width;
+        }
+
+        long[] sums = new long[COLUMNS * ROWS];
+        int[] counts = new int[COLUMNS * ROWS];
+        for (int y = 0; y < height; y++){
+            int row = (y * ROWS / height) * COLUMNS;
+            int offset = y * width;
+            for (int x = 0; x < width; x++){
+                int pixel = argb[offset + x];
+                //luminance (ITU-R BT.601) scaled by 1024
+                int luminance = 306 * ((pixel >> 16) & 0xff) + 601 * ((pixel >> 8) & 0xff) + 117 * (pixel & 0xff);
+                int cell = row + cellOfColumn[x];
+                sums[cell] += luminance;
+                counts[cell]++;
+            }
+        }
+
+        //images smaller than the grid leave cells empty, they are compared as black
+        long[] cells = new long[COLUMNS * ROWS];
+        for (int i = 0; i < cells.length; i++){
+            cells[i] = (counts[i] == 0) ? 0 : sums[i] / counts[i];
+        }
+
+        long bits = 0;
+        for (int row = 0; row < ROWS; row++){
+            for (int column = 0; column < COLUMNS - 1; column++){
+                bits <<= 1;
+                if (cells[row * COLUMNS + column] > cells[row * COLUMNS + column + 1]){
+                    bits |= 1;
+                }
+            }
+        }
+        return new PerceptualHash(bits);
+    }
+
+    /**
+     * Hashes an image file.
+     * <p>The image is decoded with a sample size that keeps its smaller side at Misc.PHASH_DECODE_SIZE pixels or
+     * more and turned upright by its EXIF orientation, so the hash does not depend on how the phone was held.</p>
+     *
+     * @param image the image file
+     * @return the hash of the image
+     * @throws IOException if the image could not be decoded
+     */
+    public static PerceptualHash of(File image) throws IOException {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        int shortest = Math.min(options.outWidth, options.outHeight);
+        if (shortest <= 0){
+            throw new IOException("Not an image: " + image.getAbsolutePath());
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (shortest / (options.inSampleSize * 2) >= Misc.PHASH_DECODE_SIZE){
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (decoded == null){
+            throw new IOException("Failed to decode " + image.getAbsolutePath());
+        }
+
+        Bitmap upright = decoded;
+        try {
+            Matrix matrix = new Matrix();
+            if (ImagePreprocessor.applyOrientation(matrix, ImagePreprocessor.readOrientation(image))){
+                upright = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+            }
+
+            int width = upright.getWidth();
+            int height = upright.getHeight();
+            int[] pixels = new int[width * height];
+            upright.getPixels(pixels, 0, width, 0, 0, width, height);
+            return of(pixels, width, height);
+
+        }finally{
+            if (upright != decoded){
+                upright.recycle();
+            }
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * Reads a hash written with toString().
+     *
+     * @param hex the hash as hexadecimal string, may be null
+     * @return the hash, null if the string is null or no hash
+     */
+    public static PerceptualHash parse(String hex){
+        if (hex == null){
+            return null;
+        }
+        try {
+            return new PerceptualHash(new BigInteger(hex, 16).longValue());
+        }catch(NumberFormatException eNF){
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bits of the hash.
+     *
+     * @return the 64 bits
+     */
+    public long getBits(){
+        return this.bits;
+    }
+
+    /**
+     * Returns the number of bits that differ (Hamming distance).
+     *
+     * @param other the hash to compare with
+     * @return 0 for the same image up to BITS, unrelated images are at about BITS / 2
+     */
+    public int distance(PerceptualHash other){
+        return Long.bitCount(this.bits ^ other.bits);
+    }
+
+    /**
+     * Returns the share of equal bits.
+     *
+     * @param other the hash to compare with
+     * @return 1 for equal hashes, about 0.5 for unrelated images
+     */
+    public double similarity(PerceptualHash other){
+        return 1 - distance(other) / (double) BITS;
+    }
+
+    /**
+     * Returns true if the images may show the same.
+     *
+     * @param other the hash to compare with
+     * @param maxDistance the largest distance of matching images
+     * @return true if the distance is not larger than maxDistance
+     */
+    public boolean matches(PerceptualHash other, int maxDistance){
+        return distance(other) <= maxDistance;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        return o instanceof PerceptualHash && ((PerceptualHash) o).bits == this.bits;
+    }
+
+    @Override
+    public int hashCode(){
+        return (int) (this.bits ^ (this.bits >>> 32));
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%016x", this.bits);
+    }
+}
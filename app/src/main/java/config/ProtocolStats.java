@@ -0,0 +1,194 @@
+package config;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Collects statistics about the messages sent and received by a CommunicationHandler.
+ * <p>Used to compare the object stream protocol with the binary frame protocol
+ * (bytes per message and time to decode a message).</p>
+ * <p>Also counts the flushes, every flush ends at least one TLS record (see CommunicationHandler.beginBatch()).</p>
+ *
+ * @author Martin
+ *
+ */
+public class ProtocolStats {
+
+    private long messagesSent;
+    private long bytesSent;
+    private long messagesReceived;
+    private long bytesReceived;
+    private long readNanos;
+    private long flushes;
+    private long bytesFlushed;
+
+    /**
+     * Records a sent message.
+     *
+     * @param bytes number of bytes the message needed on the stream
+     */
+    public synchronized void recordSent(long bytes){
+        this.messagesSent++;
+        this.bytesSent += bytes;
+    }
+
+    /**
+     * Records bytes that were buffered by the stream and are written with the next flush.
+     *
+     * @param bytes number of bytes not recorded with their message
+     */
+    public synchronized void recordSentBytes(long bytes){
+        this.bytesSent += bytes;
+    }
+
+    /**
+     * Records a flush of the stream to the server.
+     *
+     * @param bytes number of bytes written since the last flush
+     */
+    public synchronized void recordFlush(long bytes){
+        this.flushes++;
+        this.bytesFlushed += bytes;
+    }
+
+    /**
+     * Records a received message.
+     *
+     * @param bytes number of bytes the message needed on the stream
+     * @param nanos time needed to read and decode the message
+     */
+    public synchronized void recordReceived(long bytes, long nanos){
+        this.messagesReceived++;
+        this.bytesReceived += bytes;
+        this.readNanos += nanos;
+    }
+
+    /**
+     * Returns the average number of bytes per sent message.
+     *
+     * @return bytes per message, 0 if nothing was sent yet
+     */
+    public synchronized double getBytesPerSentMessage(){
+        return messagesSent == 0 ? 0 : (double) bytesSent / messagesSent;
+    }
+
+    /**
+     * Returns the average number of bytes per received message.
+     *
+     * @return bytes per message, 0 if nothing was received yet
+     */
+    public synchronized double getBytesPerReceivedMessage(){
+        return messagesReceived == 0 ? 0 : (double) bytesReceived / messagesReceived;
+    }
+
+    /**
+     * Returns the average time to read and decode a received message.
+     * <p>Includes the time waiting for the data, so only meaningful if the data is already buffered.</p>
+     *
+     * @return average time in microseconds, 0 if nothing was received yet
+     */
+    public synchronized double getAverageReadMicros(){
+        return messagesReceived == 0 ? 0 : readNanos / 1000.0 / messagesReceived;
+    }
+
+    /**
+     * Returns the average number of bytes written with one flush.
+     *
+     * @return bytes per flush, 0 if nothing was flushed yet
+     */
+    public synchronized double getBytesPerFlush(){
+        return flushes == 0 ? 0 : (double) bytesFlushed / flushes;
+    }
+
+    public synchronized long getFlushes(){
+        return this.flushes;
+    }
+
+    public synchronized long getMessagesSent(){
+        return this.messagesSent;
+    }
+
+    public synchronized long getMessagesReceived(){
+        return this.messagesReceived;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "sent " + messagesSent + " messages (" + String.format("%.1f", getBytesPerSentMessage()) + " bytes/message) "
+                + "with " + flushes + " flushes (" + String.format("%.1f", getBytesPerFlush()) + " bytes/flush), "
+                + "received " + messagesReceived + " messages (" + String.format("%.1f", getBytesPerReceivedMessage()) + " bytes/message, "
+                + String.format("%.1f", getAverageReadMicros()) + " us/message)";
+    }
+
+    /**
+     * OutputStream that counts the bytes written to the underlying stream.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount(){
+            return count;
+        }
+    }
+
+    /**
+     * InputStream that counts the bytes read from the underlying stream.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0){
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0){
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount(){
+            return count;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package config;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Re-establishes a lost connection with jittered exponential backoff.
+ * <p>The delay before attempt n is drawn from [cap/2, cap] with cap = min(maxDelay, baseDelay * 2^n),
+ * so many clients losing the connection at once do not hammer the server in lockstep.</p>
+ * <p>Also records how long it took to recover a connection (time-to-recover).</p>
+ *
+ * @author Martin
+ *
+ */
+public class ReconnectSupervisor {
+
+    /**
+     * A single attempt to re-establish the connection.
+     */
+    public interface Attempt {
+
+        /**
+         * Connects and identifies at the server.
+         *
+         * @throws Exception if the attempt failed
+         */
+        void reconnect() throws Exception;
+    }
+
+    private final Random random = new Random();
+
+    private final int baseDelay;
+    private final int maxDelay;
+    private final int maxAttempts;
+
+    private long recoveries;
+    private long failedRecoveries;
+    private long attempts;
+    private long recoverNanos;
+    private long lastRecoverNanos;
+
+    /**
+     * Constructor with the values defined in the Misc class.
+     */
+    public ReconnectSupervisor(){
+        this(Misc.RECONNECT_BASE_DELAY, Misc.RECONNECT_MAX_DELAY, Misc.RECONNECT_ATTEMPTS);
+    }
+
+    /**
+     * Standard constructor.
+     *
+     * @param baseDelay the delay before the first attempt (milliseconds)
+     * @param maxDelay the maximum delay between two attempts (milliseconds)
+     * @param maxAttempts the number of attempts before giving up
+     */
+    public ReconnectSupervisor(int baseDelay, int maxDelay, int maxAttempts){
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Tries to recover the connection until an attempt succeeds, all attempts failed or the thread is interrupted.
+     *
+     * @param attempt the attempt to execute
+     * @return true if the connection was recovered
+     */
+    public boolean recover(Attempt attempt){
+
+        Log.d(Misc.TAG, "Connection lost, attempting to recover...");
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < this.maxAttempts; i++){
+
+            long delay = delayBeforeAttempt(i);
+            try {
+                Thread.sleep(delay);
+            }catch(InterruptedException eI){
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            synchronized (this){
+                this.attempts++;
+            }
+
+            try {
+                attempt.reconnect();
+
+                long nanos = System.nanoTime() - start;
+                synchronized (this){
+                    this.recoveries++;
+                    this.recoverNanos += nanos;
+                    this.lastRecoverNanos = nanos;
+                }
+                Log.d(Misc.TAG, "Connection recovered after " + (i + 1) + " attempts in " + (nanos / 1000000) + " ms!");
+                return true;
+
+            }catch(Exception e){
+                Log.d(Misc.TAG, "Reconnect attempt " + (i + 1) + " failed after waiting " + delay + " ms", e);
+            }
+        }
+
+        synchronized (this){
+            this.failedRecoveries++;
+        }
+        Log.d(Misc.TAG, "Failed to recover the connection!");
+        return false;
+    }
+
+    /**
+     * Returns the delay before an attempt.
+     *
+     * @param attempt number of the attempt, starting at 0
+     * @return the delay in milliseconds
+     */
+    long delayBeforeAttempt(int attempt){
+        long cap = Math.min(this.maxDelay, (long) this.baseDelay << Math.min(attempt, 20));
+        long half = cap / 2;
+        return half + (long) (this.random.nextDouble() * (cap - half));
+    }
+
+    public synchronized long getRecoveries(){
+        return this.recoveries;
+    }
+
+    public synchronized long getFailedRecoveries(){
+        return this.failedRecoveries;
+    }
+
+    /**
+     * Returns the average time from losing the connection until it was recovered.
+     *
+     * @return average time-to-recover in milliseconds, 0 if nothing was recovered yet
+     */
+    public synchronized double getAverageRecoverMillis(){
+        return this.recoveries == 0 ? 0 : this.recoverNanos / 1e6 / this.recoveries;
+    }
+
+    /**
+     * Returns the time it took to recover the connection the last time.
+     *
+     * @return last time-to-recover in milliseconds, 0 if nothing was recovered yet
+     */
+    public synchronized double getLastRecoverMillis(){
+        return this.lastRecoverNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return this.recoveries + " recoveries (average " + String.format("%.1f", getAverageRecoverMillis()) + " ms), "
+                + this.failedRecoveries + " failed, " + this.attempts + " attempts";
+    }
+}
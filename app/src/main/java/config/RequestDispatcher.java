@@ -0,0 +1,216 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads all frames from the server on its own thread and dispatches them.
+ * <p>Frames with a request ID complete the matching ResponseFuture, so several requests can be in flight
+ * at once and a response does not have to wait behind other messages (e.g. an image upload).</p>
+ * <p>Frames without request ID belong to the ordered conversation and are queued until
+ * the CommunicationHandler reads them.</p>
+ *
+ * @author Martin
+ *
+ */
+public class RequestDispatcher implements Runnable {
+
+    /**
+     * Put into the queue when the stream ended, so a waiting reader wakes up.
+     */
+    private static final Frame END_OF_STREAM = new Frame((byte) 0, null);
+
+    /**
+     * The stream to read the frames from.
+     */
+    private final ProtocolStats.CountingInputStream in;
+    /**
+     * Statistics of the connection.
+     */
+    private final ProtocolStats stats;
+
+    /**
+     * Requests waiting for a response, by request ID.
+     */
+    private final Map<Integer, ResponseFuture> pending = new ConcurrentHashMap<>();
+    /**
+     * Frames of the ordered conversation not read yet.
+     */
+    private final BlockingQueue<Frame> conversation = new LinkedBlockingQueue<>();
+    /**
+     * Next request ID to hand out.
+     */
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+    /**
+     * The reason why the reading stopped, null while running.
+     */
+    private volatile IOException failure;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    /**
+     * Standard constructor.
+     *
+     * @param in the stream to read the frames from
+     * @param stats the statistics of the connection
+     */
+    RequestDispatcher(ProtocolStats.CountingInputStream in, ProtocolStats stats){
+        this.in = in;
+        this.stats = stats;
+    }
+
+    /**
+     * Starts the thread reading the frames.
+     */
+    void start(){
+        this.thread = new Thread(this, "RequestDispatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops dispatching (the thread ends once the socket is closed).
+     */
+    void stop(){
+        this.stopped = true;
+        if (this.thread != null){
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Registers a new request.
+     *
+     * @return the future the response will be delivered to
+     * @throws IOException if the dispatcher already stopped reading
+     */
+    ResponseFuture register() throws IOException {
+        if (this.failure != null){
+            throw new IOException("Connection to server is closed", this.failure);
+        }
+
+        int id;
+        do {
+            //skip NO_REQUEST when the IDs wrap around
+            id = this.nextRequestId.getAndIncrement();
+        }while (id == Frame.NO_REQUEST);
+
+        ResponseFuture future = new ResponseFuture(this, id);
+        this.pending.put(id, future);
+
+        //the reading might have stopped in the meantime, no response would ever arrive
+        if (this.failure != null){
+            this.pending.remove(id);
+            throw new IOException("Connection to server is closed", this.failure);
+        }
+        return future;
+    }
+
+    /**
+     * Removes a request, a late response will be dropped.
+     *
+     * @param requestId the ID of the request
+     */
+    void unregister(int requestId){
+        this.pending.remove(requestId);
+    }
+
+    /**
+     * Returns the number of requests waiting for a response.
+     *
+     * @return number of requests in flight
+     */
+    public int getRequestsInFlight(){
+        return this.pending.size();
+    }
+
+    /**
+     * Takes the next frame of the ordered conversation.
+     *
+     * @param timeoutMillis time to wait for a frame, 0 to wait forever
+     * @return the next frame
+     * @throws SocketTimeoutException if no frame arrived in time
+     * @throws IOException if the stream ended
+     */
+    Frame takeFrame(int timeoutMillis) throws IOException {
+        Frame frame;
+        try {
+            if (timeoutMillis > 0) {
+                frame = this.conversation.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    throw new SocketTimeoutException("No frame from server within " + timeoutMillis + " ms");
+                }
+            }else{
+                frame = this.conversation.take();
+            }
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a frame", eI);
+        }
+
+        if (frame == END_OF_STREAM){
+            //keep the marker for other readers
+            this.conversation.offer(END_OF_STREAM);
+            throw new IOException("Connection to server is closed", this.failure);
+        }
+        return frame;
+    }
+
+    @Override
+    public void run(){
+
+        Log.d(Misc.TAG, "RequestDispatcher started!");
+
+        try {
+            while (!this.stopped){
+
+                long before = this.in.getCount();
+                long start = System.nanoTime();
+
+                Frame frame = FrameCodec.readFrame(this.in);
+
+                this.stats.recordReceived(this.in.getCount() - before, System.nanoTime() - start);
+
+                if (frame.getRequestId() == Frame.NO_REQUEST){
+                    this.conversation.offer(frame);
+                    continue;
+                }
+
+                ResponseFuture future = this.pending.remove(frame.getRequestId());
+                if (future != null){
+                    future.complete(frame);
+                }else{
+                    Log.d(Misc.TAG, "Dropped response for unknown or cancelled request " + frame.getRequestId());
+                }
+            }
+
+            this.failure = new IOException("RequestDispatcher stopped");
+
+        }catch(IOException eIO){
+            if (!this.stopped) {
+                Log.e(Misc.TAG, "RequestDispatcher failed to read a frame", eIO);
+            }
+            this.failure = eIO;
+        }
+
+        //nothing will arrive anymore, wake up everyone who is waiting
+        for (Integer requestId : this.pending.keySet()){
+            ResponseFuture future = this.pending.remove(requestId);
+            if (future != null) {
+                future.fail(this.failure);
+            }
+        }
+        this.conversation.offer(END_OF_STREAM);
+
+        Log.d(Misc.TAG, "RequestDispatcher stopped!");
+    }
+}
@@ -0,0 +1,122 @@
+package config;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response to a pipelined request.
+ * <p>Completed by the RequestDispatcher as soon as the server answered with the request ID of this future.</p>
+ *
+ * @author Martin
+ *
+ */
+public class ResponseFuture implements Future<Frame> {
+
+    /**
+     * The dispatcher this request is registered at.
+     */
+    private final RequestDispatcher dispatcher;
+    /**
+     * ID of the request.
+     */
+    private final int requestId;
+
+    /**
+     * Released when the future is done.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Frame response;
+    private volatile IOException failure;
+    private volatile boolean cancelled;
+
+    /**
+     * Standard constructor.
+     *
+     * @param dispatcher the dispatcher the request is registered at
+     * @param requestId the ID of the request
+     */
+    ResponseFuture(RequestDispatcher dispatcher, int requestId){
+        this.dispatcher = dispatcher;
+        this.requestId = requestId;
+    }
+
+    /**
+     * Returns the ID of the request.
+     *
+     * @return the request ID
+     */
+    public int getRequestId(){
+        return this.requestId;
+    }
+
+    /**
+     * Completes the future with the response from the server.
+     *
+     * @param frame the response
+     */
+    void complete(Frame frame){
+        this.response = frame;
+        this.done.countDown();
+    }
+
+    /**
+     * Completes the future with an error.
+     *
+     * @param eIO the reason why no response will arrive
+     */
+    void fail(IOException eIO){
+        this.failure = eIO;
+        this.done.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning){
+        if (isDone()){
+            return false;
+        }
+        this.cancelled = true;
+        this.dispatcher.unregister(this.requestId);
+        this.done.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled(){
+        return this.cancelled;
+    }
+
+    @Override
+    public boolean isDone(){
+        return this.done.getCount() == 0;
+    }
+
+    @Override
+    public Frame get() throws InterruptedException, ExecutionException {
+        this.done.await();
+        return result();
+    }
+
+    @Override
+    public Frame get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!this.done.await(timeout, unit)){
+            throw new TimeoutException("No response for request " + this.requestId);
+        }
+        return result();
+    }
+
+    private Frame result() throws ExecutionException {
+        if (this.cancelled){
+            throw new CancellationException("Request " + this.requestId + " was cancelled");
+        }
+        if (this.failure != null){
+            throw new ExecutionException(this.failure);
+        }
+        return this.response;
+    }
+}
@@ -0,0 +1,130 @@
+package config;
+
+/**
+ * Estimates the round trip time to the server and derives the timeouts from it.
+ * <p>Works like the retransmission timer of TCP (RFC 6298): a smoothed RTT (SRTT) and its variance (RTTVAR)
+ * are updated with every sample, the timeout is RTO = SRTT + 4 * RTTVAR,
+ * limited to [Misc.RTT_MIN_TIMEOUT, Misc.RTT_MAX_TIMEOUT].</p>
+ * <p>After a timeout the RTO is doubled (backoff()) until the next sample arrives.
+ * Samples are taken from the heartbeat, the synchronization and the TCP connect.</p>
+ *
+ * @author Martin
+ *
+ */
+public class RttEstimator {
+
+    /**
+     * The estimator shared by all clients (there is only one server).
+     */
+    private static final RttEstimator SHARED = new RttEstimator();
+
+    /**
+     * Gain of the smoothed RTT (1/8) and its variance (1/4).
+     */
+    private static final double ALPHA = 0.125, BETA = 0.25;
+
+    private double srtt;
+    private double rttvar;
+    private long rto = Misc.RTT_INITIAL_TIMEOUT;
+    private long samples;
+    private long timeouts;
+
+    /**
+     * Returns the estimator shared by all clients.
+     *
+     * @return the shared estimator
+     */
+    public static RttEstimator getShared(){
+        return SHARED;
+    }
+
+    /**
+     * Adds a measured round trip.
+     * <p>Only round trips of messages that were not sent again should be added,
+     * the response could belong to either message otherwise.</p>
+     *
+     * @param nanos time from sending the message until the response arrived
+     */
+    public synchronized void addSample(long nanos){
+        double rtt = nanos / 1e6;
+
+        if (this.samples == 0){
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        }else{
+            this.rttvar = (1 - BETA) * this.rttvar + BETA * Math.abs(this.srtt - rtt);
+            this.srtt = (1 - ALPHA) * this.srtt + ALPHA * rtt;
+        }
+        this.samples++;
+
+        this.rto = clamp((long) Math.ceil(this.srtt + 4 * this.rttvar));
+    }
+
+    /**
+     * Doubles the timeout after no response arrived in time.
+     */
+    public synchronized void backoff(){
+        this.timeouts++;
+        this.rto = clamp(this.rto * 2);
+    }
+
+    /**
+     * Returns the time to wait for a response that needs a single round trip.
+     *
+     * @return the timeout in milliseconds
+     */
+    public synchronized int getTimeout(){
+        return (int) this.rto;
+    }
+
+    /**
+     * Returns the time to wait for a response that needs several round trips (e.g. a TLS handshake).
+     *
+     * @param roundTrips number of round trips until the response arrives
+     * @return the timeout in milliseconds
+     */
+    public synchronized int getTimeout(int roundTrips){
+        if (roundTrips <= 1){
+            return (int) this.rto;
+        }
+        double perRoundTrip = this.samples == 0 ? this.rto : this.srtt;
+        return (int) Math.min(Misc.RTT_MAX_TIMEOUT * (long) roundTrips,
+                this.rto + (long) Math.ceil((roundTrips - 1) * perRoundTrip));
+    }
+
+    /**
+     * Returns the smoothed round trip time.
+     *
+     * @return SRTT in milliseconds, 0 if no sample was added yet
+     */
+    public synchronized double getSmoothedRtt(){
+        return this.srtt;
+    }
+
+    /**
+     * Returns the variance of the round trip time.
+     *
+     * @return RTTVAR in milliseconds, 0 if no sample was added yet
+     */
+    public synchronized double getRttVariance(){
+        return this.rttvar;
+    }
+
+    public synchronized long getSamples(){
+        return this.samples;
+    }
+
+    public synchronized long getTimeouts(){
+        return this.timeouts;
+    }
+
+    private static long clamp(long rto){
+        return Math.max(Misc.RTT_MIN_TIMEOUT, Math.min(Misc.RTT_MAX_TIMEOUT, rto));
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "SRTT " + String.format("%.1f", this.srtt) + " ms, RTTVAR " + String.format("%.1f", this.rttvar)
+                + " ms, RTO " + this.rto + " ms (" + this.samples + " samples, " + this.timeouts + " timeouts)";
+    }
+}
@@ -0,0 +1,129 @@
+package config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Blocking transport, wraps the SSLSocket created by KeyStoreHandler.connectToSocket().
+ *
+ * @author Martin
+ *
+ */
+public class SocketTransport implements Transport {
+
+    /**
+     * The wrapped socket.
+     */
+    private final SSLSocket socket;
+
+    /**
+     * True once startHandshake() returned.
+     */
+    private volatile boolean handshakeDone;
+
+    /**
+     * Reused to copy direct buffers in write(ByteBuffer), only used by the writing thread.
+     */
+    private byte[] chunk;
+
+    /**
+     * Standard constructor.
+     *
+     * @param socket the connected socket
+     */
+    public SocketTransport(SSLSocket socket){
+        this.socket = socket;
+    }
+
+    /**
+     * Returns the wrapped socket.
+     *
+     * @return the socket of this transport
+     */
+    public SSLSocket getSocket(){
+        return this.socket;
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols){
+        this.socket.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] cipherSuites){
+        this.socket.setEnabledCipherSuites(cipherSuites);
+    }
+
+    @Override
+    public void startHandshake() throws IOException {
+        //a second call would start a renegotiation
+        if (this.handshakeDone){
+            return;
+        }
+        this.socket.startHandshake();
+        this.handshakeDone = true;
+    }
+
+    @Override
+    public boolean isHandshakeDone(){
+        return this.handshakeDone;
+    }
+
+    @Override
+    public SSLSession getSession(){
+        return this.socket.getSession();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.socket.getOutputStream();
+    }
+
+    /**
+     * The SSLSocket only accepts arrays, direct buffers are copied in chunks of Misc.BULK_SLICE_SIZE.
+     */
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        OutputStream out = this.socket.getOutputStream();
+
+        if (src.hasArray()){
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        if (this.chunk == null){
+            this.chunk = new byte[Misc.BULK_SLICE_SIZE];
+        }
+        while (src.hasRemaining()){
+            int count = Math.min(src.remaining(), this.chunk.length);
+            src.get(this.chunk, 0, count);
+            out.write(this.chunk, 0, count);
+        }
+    }
+
+    @Override
+    public void setSoTimeout(int millis) throws IOException {
+        this.socket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    @Override
+    public boolean isClosed(){
+        return this.socket.isClosed();
+    }
+}
@@ -0,0 +1,290 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import mmi.colorgame.colorgameclient.Client;
+
+/**
+ * Uploads an image file over several TLS connections at the same time.
+ * <p>A single connection can not send more than its window per round trip, on a link with a high latency
+ * it does not use the available bandwidth. The image is split into stripes of equal size (a multiple of
+ * Misc.MERKLE_LEAF_SIZE): the first stripe is sent on the connection of the client, every other stripe on an
+ * extra connection opened with KeyStoreHandler.connectToSocket().</p>
+ * <p>The connection of the client announces the upload with '.imageStriped', the number of stripes and the
+ * size of a stripe, followed by the first stripe. Every extra connection identifies with Misc.CLIENT_ID like any
+ * new connection and sends '.imageStripe', the ID of the upload, the number of its stripe and the stripe, the
+ * server answers '.stripeReceived' and the connection is closed. The server puts the image together, it is verified like an image sent on one connection.</p>
+ *
+ * @author Martin
+ *
+ */
+public class StripedUploader {
+
+    /**
+     * A stripe sent on an extra connection.
+     */
+    private final class Stripe extends Thread {
+
+        private final int index;
+        private final FileChannel source;
+        private final long offset;
+        private final long length;
+        private final UploadSession session;
+        private final BufferPool pool;
+        private final int protocol;
+        private volatile IOException failure;
+
+        Stripe(int index, FileChannel source, long offset, long length, UploadSession session, BufferPool pool,
+               int protocol){
+            super("UploadStripe-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.session = session;
+            this.pool = pool;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public void run(){
+            CommunicationHandler stripeCh = null;
+            boolean received = false;
+            try {
+                Transport transport = openTransport();
+                stripeCh = new CommunicationHandler(client, transport, this.protocol);
+                stripeCh.setupConnection();
+
+                long sending = System.currentTimeMillis();
+                stripeCh.beginBatch();
+                try {
+                    stripeCh.sendIntToServer(Misc.CLIENT_ID);
+                    stripeCh.sendLineToServer(".imageStripe");
+                    stripeCh.sendLineToServer(this.session.getId());
+                    stripeCh.sendIntToServer(this.index);
+                    stripeCh.sendRangeToServer(this.source, this.offset, this.length, this.pool);
+                }finally{
+                    stripeCh.endBatch();
+                }
+                sending = System.currentTimeMillis() - sending;
+
+                //the socket buffers may still hold a large part of the stripe, they drain at about the rate
+                //the stripe was written with
+                stripeCh.setTimeout((int) Math.min(Integer.MAX_VALUE,
+                        stripeCh.getRttEstimator().getTimeout(Misc.IMAGE_ROUND_TRIPS) + 2 * sending));
+                String response = stripeCh.readLineFromServer();
+                if (!".stripeReceived".equals(response)){
+                    throw new IOException("Server responded '" + response + "' to stripe " + this.index);
+                }
+                received = true;
+
+            }catch(IOException eIO){
+                Log.e(Misc.TAG, "Failed to send stripe " + this.index, eIO);
+                this.failure = eIO;
+
+            }finally{
+                if (stripeCh != null){
+                    if (received){
+                        stripeCh.closeConnection();
+                    }else {
+                        stripeCh.abortConnection();
+                    }
+                }
+            }
+        }
+    }
+
+    private final Client client;
+    private final KeyStoreHandler kh;
+    private final String ip;
+    private final int port;
+    private final int connections;
+    /**
+     * Two buffers for every connection, the shared pool would be a bottleneck for many connections.
+     */
+    private final BufferPool pool;
+
+    private volatile long lastBytes;
+    private volatile long lastNanos;
+    private volatile int lastStripes;
+
+    /**
+     * Standard constructor.
+     *
+     * @param client the client the connections are for
+     * @param kh opens the extra connections
+     * @param ip the ip of the server
+     * @param port the port of the server
+     * @param connections number of extra connections (the image is sent in connections + 1 stripes)
+     */
+    public StripedUploader(Client client, KeyStoreHandler kh, String ip, int port, int connections){
+        this.client = client;
+        this.kh = kh;
+        this.ip = ip;
+        this.port = port;
+        this.connections = connections;
+        this.pool = new BufferPool(Misc.UPLOAD_BUFFER_SIZE, 2 * (connections + 1));
+    }
+
+    /**
+     * Returns the number of extra connections.
+     *
+     * @return number of connections opened for an upload
+     */
+    public int getConnections(){
+        return this.connections;
+    }
+
+    /**
+     * Returns true if an image of the given size is worth striping: every stripe gets at least
+     * Misc.STRIPE_MIN_SIZE bytes, the handshake of a connection is more expensive than a small stripe.
+     *
+     * @param size the size of the image
+     * @return true if upload() should be used
+     */
+    public boolean accepts(long size){
+        return this.connections > 0 && size >= (this.connections + 1L) * Misc.STRIPE_MIN_SIZE;
+    }
+
+    /**
+     * Sends the image in stripes and updates the digest with the whole image.
+     * <p>The first stripe is sent on the connection of the client, the caller has to finish the upload
+     * (tree and hash check) on it afterwards.</p>
+     *
+     * @param ch the connection of the client
+     * @param source the image file
+     * @param session the upload, not started before
+     * @param digest the digest of the image, nothing hashed yet
+     * @throws IOException if the image could not be read or a stripe could not be sent
+     */
+    public void upload(CommunicationHandler ch, FileChannel source, UploadSession session, MessageDigest digest)
+            throws IOException {
+
+        long started = System.nanoTime();
+        long size = source.size();
+        int stripes = this.connections + 1;
+
+        long stripeLength = stripeLength(size, stripes);
+        long[] ranges = split(size, stripes);
+
+        ch.sendLineToServer(".imageStriped");
+        ch.sendIntToServer(stripes);
+        ch.sendIntToServer((int) stripeLength);
+        //the server has to know the upload before the stripes arrive
+        ch.flushBatch();
+
+        Stripe[] extra = new Stripe[stripes - 1];
+        for (int i = 1; i < stripes; i++){
+            extra[i - 1] = new Stripe(i, source, ranges[2 * i], ranges[2 * i + 1], session, this.pool,
+                    ch.getProtocol());
+            extra[i - 1].start();
+        }
+
+        IOException failure = null;
+        try {
+            ch.sendRangeToServer(source, ranges[0], ranges[1], this.pool);
+
+            //hashed while the stripes are on the wire
+            MappedByteBuffer image = source.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            digest.update(image);
+
+        }catch(IOException eIO){
+            failure = eIO;
+        }
+
+        for (Stripe stripe : extra){
+            join(stripe);
+            if (failure == null && stripe.failure != null){
+                failure = stripe.failure;
+            }
+        }
+        if (failure != null){
+            throw failure;
+        }
+
+        session.sent(size, digest);
+
+        this.lastBytes = size;
+        this.lastNanos = System.nanoTime() - started;
+        this.lastStripes = stripes;
+        Log.d(Misc.TAG, toString());
+    }
+
+    /**
+     * Opens an extra connection to the server.
+     *
+     * @return the connected transport, the handshake is done in CommunicationHandler.setupConnection()
+     * @throws IOException if the connection could not be opened
+     */
+    Transport openTransport() throws IOException {
+        return new SocketTransport(this.kh.connectToSocket(this.ip, this.port));
+    }
+
+    /**
+     * Returns the length of a stripe, stripes end at leaf boundaries so the server can verify the leaves of
+     * a stripe on its own.
+     *
+     * @param size the size of the image
+     * @param stripes the number of stripes
+     * @return a multiple of Misc.MERKLE_LEAF_SIZE, the last stripes may be shorter
+     */
+    static long stripeLength(long size, int stripes){
+        long leaves = (size + Misc.MERKLE_LEAF_SIZE - 1) / Misc.MERKLE_LEAF_SIZE;
+        return (leaves + stripes - 1) / stripes * Misc.MERKLE_LEAF_SIZE;
+    }
+
+    /**
+     * Splits an image into stripes of stripeLength() bytes.
+     *
+     * @param size the size of the image
+     * @param stripes the number of stripes
+     * @return offset and length of every stripe, one after the other; a stripe that starts behind the end of
+     * the image is empty (offset size, length 0)
+     */
+    static long[] split(long size, int stripes){
+        long stripeLength = stripeLength(size, stripes);
+        long[] ranges = new long[2 * stripes];
+        for (int i = 0; i < stripes; i++){
+            long offset = Math.min(size, i * stripeLength);
+            ranges[2 * i] = offset;
+            ranges[2 * i + 1] = Math.min(stripeLength, size - offset);
+        }
+        return ranges;
+    }
+
+    private static void join(Thread thread){
+        boolean interrupted = false;
+        while (thread.isAlive()){
+            try {
+                thread.join();
+            }catch(InterruptedException eI){
+                interrupted = true;
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the throughput of the last striped upload.
+     *
+     * @return megabytes (2^20 bytes) per second, 0 if no image was sent yet
+     */
+    public double getMegabytesPerSecond(){
+        long nanos = this.lastNanos;
+        return (nanos == 0) ? 0 : this.lastBytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString(){
+        return "Striped upload: " + (this.lastBytes / 1024) + " KB in " + this.lastStripes + " stripes, "
+                + (this.lastNanos / 1000000L) + " ms (" + String.format("%.2f", getMegabytesPerSecond()) + " MB/s)";
+    }
+}
@@ -0,0 +1,136 @@
+package config;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies every byte read from a stream into a second stream (e.g. an image streamed from the camera into a file).
+ * <p>The copy must not hold up the reader: if it can not be written, it is dropped and reading goes on.
+ * close() reads the rest of the stream into the copy, so the copy is complete even if the reader stopped early
+ * (e.g. the upload failed), see isComplete().</p>
+ *
+ * @author Martin
+ *
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private OutputStream copy;
+    private boolean ended;
+    private boolean closed;
+
+    /**
+     * Standard constructor.
+     *
+     * @param in the stream to read
+     * @param copy receives every byte read, closed with this stream
+     */
+    public TeeInputStream(InputStream in, OutputStream copy){
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0){
+            this.ended = true;
+        }else {
+            copy(new byte[]{(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n < 0){
+            this.ended = true;
+        }else {
+            copy(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        //skipped bytes have to be in the copy as well
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n){
+            int len = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (len < 0){
+                break;
+            }
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported(){
+        return false;
+    }
+
+    /**
+     * Returns true if the copy holds the whole stream.
+     *
+     * @return true if the end of the stream was read and every byte was copied
+     */
+    public boolean isComplete(){
+        return this.ended && this.copy != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed){
+            return;
+        }
+        this.closed = true;
+
+        try {
+            //the rest of the stream goes into the copy
+            byte[] buffer = new byte[8192];
+            while (this.copy != null && !this.ended){
+                read(buffer, 0, buffer.length);
+            }
+
+        }finally{
+            try {
+                super.close();
+            }finally{
+                if (this.copy != null){
+                    try {
+                        this.copy.close();
+                    }catch(IOException eIO){
+                        Log.e(Misc.TAG, "Failed to close the copy of the stream", eIO);
+                        this.copy = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to the copy, drops it if that fails.
+     */
+    private void copy(byte[] b, int off, int len){
+        if (this.copy == null || len == 0){
+            return;
+        }
+        try {
+            this.copy.write(b, off, len);
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to write the copy of the stream, dropping it", eIO);
+            try {
+                this.copy.close();
+            }catch(IOException eClose){
+                Log.d(Misc.TAG, "Failed to close the copy of the stream", eClose);
+            }
+            this.copy = null;
+        }
+    }
+}
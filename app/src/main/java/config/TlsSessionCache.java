@@ -0,0 +1,164 @@
+package config;
+
+import android.util.Log;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Keeps TLS sessions across clients, so a reconnect only needs an abbreviated handshake.
+ * <p>The client session cache of a SSLContext is keyed by host:port of the server. Since every Client
+ * creates a new KeyStoreHandler, there is one SSLContext per keystore for the whole process, shared by all
+ * KeyStoreHandlers loaded from the same keystore. A session is only resumed with the credentials it was
+ * negotiated with.</p>
+ * <p>Also counts how many handshakes resumed a session (same session ID as the last session to host:port).</p>
+ *
+ * @author Martin
+ *
+ */
+public class TlsSessionCache {
+
+    /**
+     * The cache shared by all clients.
+     */
+    private static final TlsSessionCache SHARED = new TlsSessionCache();
+
+    /**
+     * The SSLContexts holding the cached sessions by the fingerprint of their keystore.
+     */
+    private final Map<String, SSLContext> contexts = new HashMap<>();
+
+    /**
+     * ID of the last session by host:port.
+     */
+    private final Map<String, byte[]> lastSessionIds = new ConcurrentHashMap<>();
+
+    private long resumed;
+    private long full;
+    private long resumedNanos;
+    private long fullNanos;
+
+    /**
+     * Returns the cache shared by all clients.
+     *
+     * @return the shared cache
+     */
+    public static TlsSessionCache getShared(){
+        return SHARED;
+    }
+
+    /**
+     * Returns the SSLContext with the session cache of a keystore, creates it with the given managers on the first
+     * call for the keystore. Later calls for the same keystore return that context, their managers are not used.
+     *
+     * @param keyStoreId the fingerprint of the keystore the managers were created from
+     * @param keyManagers the KeyManagers of the client
+     * @param trustManagers the TrustManagers of the client
+     * @return the SSLContext shared by all clients with this keystore
+     * @throws NoSuchAlgorithmException if the protocol is not supported
+     * @throws KeyManagementException if the SSLContext could not be initialized
+     */
+    public synchronized SSLContext getContext(String keyStoreId, KeyManager[] keyManagers,
+                                              TrustManager[] trustManagers)
+            throws NoSuchAlgorithmException, KeyManagementException {
+
+        SSLContext context = this.contexts.get(keyStoreId);
+        if (context == null){
+            SSLContext newContext = SSLContext.getInstance(Misc.TLS_PROTOCOL);
+            newContext.init(keyManagers, trustManagers, null);
+
+            SSLSessionContext sessions = newContext.getClientSessionContext();
+            sessions.setSessionCacheSize(Misc.TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(Misc.TLS_SESSION_TIMEOUT);
+
+            context = newContext;
+            this.contexts.put(keyStoreId, context);
+            Log.d(Misc.TAG, "Created SSLContext with session cache for keystore " + keyStoreId);
+        }
+        return context;
+    }
+
+    /**
+     * Records a finished handshake and checks whether the session was resumed.
+     *
+     * @param session the session of the handshake
+     * @param nanos duration of the handshake
+     * @return true if the session of the last connection to the same host:port was resumed
+     */
+    public boolean recordHandshake(SSLSession session, long nanos){
+
+        String peer = session.getPeerHost() + ":" + session.getPeerPort();
+        byte[] id = session.getId();
+        byte[] lastId = this.lastSessionIds.put(peer, id);
+
+        boolean wasResumed = lastId != null && id.length > 0 && Arrays.equals(id, lastId);
+
+        synchronized (this){
+            if (wasResumed){
+                this.resumed++;
+                this.resumedNanos += nanos;
+            }else{
+                this.full++;
+                this.fullNanos += nanos;
+            }
+        }
+
+        Log.d(Misc.TAG, (wasResumed ? "Resumed" : "Full") + " TLS handshake with " + peer + " in "
+                + (nanos / 1000000) + " ms (" + this + ")");
+
+        return wasResumed;
+    }
+
+    /**
+     * Returns the share of handshakes that resumed a session.
+     *
+     * @return hit rate between 0 and 1, 0 if there was no handshake yet
+     */
+    public synchronized double getHitRate(){
+        long total = this.resumed + this.full;
+        return total == 0 ? 0 : (double) this.resumed / total;
+    }
+
+    public synchronized long getResumedHandshakes(){
+        return this.resumed;
+    }
+
+    public synchronized long getFullHandshakes(){
+        return this.full;
+    }
+
+    /**
+     * Returns the average duration of a resumed handshake.
+     *
+     * @return average duration in milliseconds, 0 if no session was resumed yet
+     */
+    public synchronized double getAverageResumedMillis(){
+        return this.resumed == 0 ? 0 : this.resumedNanos / 1e6 / this.resumed;
+    }
+
+    /**
+     * Returns the average duration of a full handshake.
+     *
+     * @return average duration in milliseconds, 0 if there was no full handshake yet
+     */
+    public synchronized double getAverageFullMillis(){
+        return this.full == 0 ? 0 : this.fullNanos / 1e6 / this.full;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "hit rate " + String.format("%.2f", getHitRate()) + ", "
+                + this.resumed + " resumed (" + String.format("%.1f", getAverageResumedMillis()) + " ms), "
+                + this.full + " full (" + String.format("%.1f", getAverageFullMillis()) + " ms)";
+    }
+}
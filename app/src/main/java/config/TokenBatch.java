@@ -0,0 +1,118 @@
+package config;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tokens the server issued for a list of images in one request (see ImageTransferHandler.requestTokens()).
+ * <p>The server answers every image with a line "ID token TOKEN", "ID deferred" if it can not issue the token
+ * yet (e.g. the control image did not arrive yet, the image has to be asked for again later) or "ID none" if it
+ * will not give a token for the image. An image the server did not answer is deferred.</p>
+ *
+ * @author Martin
+ *
+ */
+public class TokenBatch {
+
+    /**
+     * Status of an image in the answer of the server.
+     */
+    static final String
+            STATUS_TOKEN = "token",
+            STATUS_DEFERRED = "deferred",
+            STATUS_NONE = "none";
+
+    private final Map<String, String> tokens = new LinkedHashMap<>();
+    private final Set<String> deferred = new LinkedHashSet<>();
+    private final Set<String> refused = new LinkedHashSet<>();
+
+    /**
+     * Evaluates the answer of the server to a bulk token request.
+     *
+     * @param images the IDs of the requested images
+     * @param lines one line for every image the server answered
+     * @return the tokens of the images
+     * @throws IOException if a line could not be read
+     */
+    static TokenBatch parse(Collection<String> images, String[] lines) throws IOException {
+
+        TokenBatch batch = new TokenBatch();
+        for (String line : lines){
+            String[] parts = (line == null) ? new String[0] : line.trim().split(" ");
+
+            if (parts.length == 3 && STATUS_TOKEN.equals(parts[1])){
+                batch.tokens.put(parts[0], parts[2]);
+            }else if (parts.length == 2 && STATUS_DEFERRED.equals(parts[1])){
+                batch.deferred.add(parts[0]);
+            }else if (parts.length == 2 && STATUS_NONE.equals(parts[1])){
+                batch.refused.add(parts[0]);
+            }else {
+                throw new IOException("Server responded unexpected: '" + line + "'");
+            }
+        }
+
+        for (String image : images){
+            if (!batch.tokens.containsKey(image) && !batch.refused.contains(image)){
+                batch.deferred.add(image);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the token of an image.
+     *
+     * @param image the ID of the image
+     * @return the token, null if the server did not issue one (yet)
+     */
+    public String getToken(String image){
+        return this.tokens.get(image);
+    }
+
+    /**
+     * Returns the tokens by the IDs of their images.
+     *
+     * @return the issued tokens in the order of the answer
+     */
+    public Map<String, String> getTokens(){
+        return Collections.unmodifiableMap(this.tokens);
+    }
+
+    /**
+     * Returns the images the server can not issue a token for yet, they can be requested again later.
+     *
+     * @return the IDs of the deferred images
+     */
+    public Set<String> getDeferred(){
+        return Collections.unmodifiableSet(this.deferred);
+    }
+
+    /**
+     * Returns the images the server will not give a token for.
+     *
+     * @return the IDs of the refused images
+     */
+    public Set<String> getRefused(){
+        return Collections.unmodifiableSet(this.refused);
+    }
+
+    /**
+     * Returns true if no image is deferred.
+     *
+     * @return true if every image got a token or was refused
+     */
+    public boolean isComplete(){
+        return this.deferred.isEmpty();
+    }
+
+    @Override
+    public String toString(){
+        return "Tokens: " + this.tokens.size() + " issued, " + this.deferred.size() + " deferred, "
+                + this.refused.size() + " refused";
+    }
+}
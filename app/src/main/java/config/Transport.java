@@ -0,0 +1,103 @@
+package config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS connection to the server as seen by the CommunicationHandler.
+ * <p>Implemented by SocketTransport (blocking SSLSocket, one thread per connection)
+ * and NioTransport (SSLEngine over a SocketChannel, one NioSelectorLoop thread for many connections).</p>
+ *
+ * @author Martin
+ *
+ */
+public interface Transport {
+
+    /**
+     * Sets the protocols allowed for the handshake (must be called before the handshake).
+     *
+     * @param protocols the protocols to enable
+     */
+    void setEnabledProtocols(String[] protocols);
+
+    /**
+     * Sets the cipher suites allowed for the handshake (must be called before the handshake).
+     *
+     * @param cipherSuites the cipher suites to enable
+     */
+    void setEnabledCipherSuites(String[] cipherSuites);
+
+    /**
+     * Starts the TLS handshake and waits until it is finished.
+     * <p>Otherwise the handshake is started with the first read or write.</p>
+     *
+     * @throws IOException if the handshake failed
+     */
+    void startHandshake() throws IOException;
+
+    /**
+     * Returns true if the TLS handshake was done with startHandshake().
+     *
+     * @return true if the handshake is finished
+     */
+    boolean isHandshakeDone();
+
+    /**
+     * Returns the TLS session of the connection (valid after the handshake).
+     *
+     * @return the session
+     */
+    SSLSession getSession();
+
+    /**
+     * Returns the stream to read the decrypted data from the server.
+     *
+     * @return the inputStream of the connection
+     * @throws IOException if the connection is closed
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the stream to write data to the server.
+     *
+     * @return the outputStream of the connection
+     * @throws IOException if the connection is closed
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Writes the remaining bytes of the buffer to the server and blocks until they were handed over.
+     * <p>Data written to the outputStream before has to be flushed first. Implementations avoid copying
+     * the buffer where possible (a NioTransport encrypts directly from it).</p>
+     *
+     * @param src the data to write, the position is moved to the limit
+     * @throws IOException if the connection is closed
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Sets the timeout for reading from the inputStream.
+     *
+     * @param millis the duration until a SocketTimeoutException occurs (milliseconds, 0 = infinite)
+     * @throws IOException if the timeout could not be set
+     */
+    void setSoTimeout(int millis) throws IOException;
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException if an error occurred while closing
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns true if the connection is closed.
+     *
+     * @return true if closed
+     */
+    boolean isClosed();
+}
@@ -0,0 +1,281 @@
+package config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads, hashes and sends the chunks of an image at the same time.
+ * <p>A hasher thread reads the chunks into buffers of the BufferPool and updates the MessageDigest,
+ * the calling thread sends the hashed chunks. Both stages are connected by a queue of at most
+ * Misc.UPLOAD_BUFFERS_POOLED chunks, the pool bounds the buffers in use: while one chunk is on the
+ * wire the next ones are already read and hashed, so an upload takes about as long as the slower
+ * of both stages instead of their sum.</p>
+ * <p>In chunked mode every chunk is preceded by its length and a chunk of length 0 follows the last one,
+ * so the receiver does not need to know the size of the image in advance (e.g. an image read from a pipe).</p>
+ * <p>A pipeline is used for a single upload, see run().</p>
+ *
+ * @author Martin
+ *
+ */
+public class UploadPipeline {
+
+    /**
+     * Called by the sending thread for every sent chunk.
+     */
+    public interface Listener {
+
+        /**
+         * A chunk was handed to the CommunicationHandler.
+         *
+         * @param offset number of bytes of the image sent including the chunk
+         * @param digest a copy of the digest updated up to the offset, null if the digest can not be copied
+         * @throws IOException if the upload should be aborted
+         */
+        void chunkSent(long offset, MessageDigest digest) throws IOException;
+    }
+
+    /**
+     * A hashed chunk, the end of the image (no buffer) or a failure of the hasher.
+     */
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final long offset;
+        final MessageDigest digest;
+        final IOException failure;
+
+        Chunk(ByteBuffer buffer, long offset, MessageDigest digest, IOException failure){
+            this.buffer = buffer;
+            this.offset = offset;
+            this.digest = digest;
+            this.failure = failure;
+        }
+    }
+
+    private final CommunicationHandler ch;
+    private final BufferPool pool;
+    private final ChunkSizer sizer;
+    private final boolean chunked;
+    private final Listener listener;
+
+    private final BlockingQueue<Chunk> hashed = new ArrayBlockingQueue<>(Misc.UPLOAD_BUFFERS_POOLED);
+    private volatile boolean cancelled;
+    private volatile long hashNanos;
+    private long sendNanos;
+    private long elapsedNanos;
+
+    /**
+     * Standard constructor.
+     *
+     * @param ch the connection to send the chunks with
+     * @param pool the pool of the buffers
+     * @param sizer chooses the size of the chunks
+     * @param chunked true to send the length before every chunk and a chunk of length 0 at the end
+     * @param listener informed about every sent chunk
+     */
+    public UploadPipeline(CommunicationHandler ch, BufferPool pool, ChunkSizer sizer, boolean chunked, Listener listener){
+        this.ch = ch;
+        this.pool = pool;
+        this.sizer = sizer;
+        this.chunked = chunked;
+        this.listener = listener;
+    }
+
+    /**
+     * Sends everything the source provides.
+     * <p>The digest is updated by the hasher thread, it contains all sent bytes once this method returned.</p>
+     *
+     * @param source the image, positioned at the offset
+     * @param offset number of bytes of the image that were sent before
+     * @param digest the digest of the bytes before the offset
+     * @return number of bytes of the image sent in total
+     * @throws IOException if the image could not be read or sent
+     */
+    public long run(final ReadableByteChannel source, final long offset, final MessageDigest digest) throws IOException {
+
+        long started = System.nanoTime();
+
+        Thread hasher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hash(source, offset, digest);
+            }
+        }, "UploadHasher");
+        hasher.setDaemon(true);
+        hasher.start();
+
+        long sent = offset;
+        boolean completed = false;
+        try {
+            while (true){
+                Chunk chunk = this.hashed.take();
+                if (chunk.failure != null){
+                    throw chunk.failure;
+                }
+                if (chunk.buffer == null){
+                    //end of the image
+                    if (this.chunked){
+                        this.ch.sendIntToServer(0);
+                    }
+                    break;
+                }
+
+                //the buffer belongs to the CommunicationHandler now
+                int len = chunk.buffer.remaining();
+                long before = System.nanoTime();
+                if (this.chunked){
+                    this.ch.sendIntToServer(len);
+                }
+                this.ch.sendBufferToServer(chunk.buffer, this.pool);
+                long nanos = System.nanoTime() - before;
+                this.sendNanos += nanos;
+                this.sizer.record(len, nanos);
+
+                sent = chunk.offset;
+                this.listener.chunkSent(sent, chunk.digest);
+            }
+            completed = true;
+
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending the image");
+
+        }finally{
+            if (!completed){
+                cancel(hasher);
+            }
+            join(hasher);
+            this.elapsedNanos = System.nanoTime() - started;
+        }
+
+        Log.d(Misc.TAG, "Upload pipeline: " + this);
+        return sent;
+    }
+
+    /**
+     * The hasher thread: reads and hashes the chunks until the end of the source.
+     */
+    private void hash(ReadableByteChannel source, long offset, MessageDigest digest){
+        IOException failure = null;
+        try {
+            while (!this.cancelled){
+                ByteBuffer buffer = this.pool.acquire();
+                try {
+                    //fill the buffer up to the current chunk size
+                    buffer.limit(Math.min(buffer.capacity(), this.sizer.getChunkSize()));
+                    while (buffer.hasRemaining() && source.read(buffer) >= 0){
+                        //continue until full or end of file
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining()){
+                        break;
+                    }
+
+                    long before = System.nanoTime();
+                    digest.update(buffer.duplicate());
+                    this.hashNanos += System.nanoTime() - before;
+
+                    offset += buffer.remaining();
+                    this.hashed.put(new Chunk(buffer, offset, copy(digest), null));
+                    buffer = null;
+
+                }finally{
+                    if (buffer != null){
+                        this.pool.release(buffer);
+                    }
+                }
+            }
+
+        }catch(IOException eIO){
+            failure = eIO;
+        }catch(InterruptedException eI){
+            //cancelled
+            return;
+        }
+
+        //end of the image or the failure, the sending thread waits for it
+        try {
+            if (!this.cancelled){
+                this.hashed.put(new Chunk(null, offset, null, failure));
+            }
+        }catch(InterruptedException eI){
+            //cancelled
+        }
+    }
+
+    /**
+     * Stops the hasher after the upload failed and returns the buffers of the queued chunks.
+     */
+    private void cancel(Thread hasher){
+        this.cancelled = true;
+        hasher.interrupt();
+        join(hasher);
+
+        Chunk chunk;
+        while ((chunk = this.hashed.poll()) != null){
+            if (chunk.buffer != null){
+                this.pool.release(chunk.buffer);
+            }
+        }
+    }
+
+    private static void join(Thread thread){
+        boolean interrupted = false;
+        while (thread.isAlive()){
+            try {
+                thread.join();
+            }catch(InterruptedException eI){
+                interrupted = true;
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest){
+        try {
+            return (MessageDigest) digest.clone();
+        }catch(CloneNotSupportedException eCNS){
+            return null;
+        }
+    }
+
+    /**
+     * Returns the time the hasher needed to update the digest.
+     *
+     * @return hash time in milliseconds
+     */
+    public long getHashMillis(){
+        return this.hashNanos / 1000000L;
+    }
+
+    /**
+     * Returns the time the sending thread needed to hand the chunks to the CommunicationHandler.
+     *
+     * @return send time in milliseconds
+     */
+    public long getSendMillis(){
+        return this.sendNanos / 1000000L;
+    }
+
+    /**
+     * Returns the duration of run().
+     *
+     * @return total time in milliseconds
+     */
+    public long getElapsedMillis(){
+        return this.elapsedNanos / 1000000L;
+    }
+
+    @Override
+    public String toString(){
+        return "hash " + getHashMillis() + " ms, send " + getSendMillis() + " ms, total " + getElapsedMillis() + " ms";
+    }
+}
@@ -0,0 +1,207 @@
+package config;
+
+import android.util.Log;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.TreeMap;
+
+/**
+ * State of an image upload that can be continued after the connection was lost.
+ * <p>Every upload has an ID the server stores the received bytes under. The server commits the chunks it
+ * received and tells the client the committed offset: for '.imageResume' when the upload is continued and,
+ * with the binary frame protocol, for the pipelined '.imageOffset' requests during the upload.</p>
+ * <p>To continue the SHA-256 of the whole image without reading the committed prefix again,
+ * a copy of the MessageDigest is kept for the offset after every chunk (the last Misc.UPLOAD_SNAPSHOTS
+ * chunks that are not acknowledged yet).</p>
+ *
+ * @author Martin
+ *
+ */
+public class UploadSession {
+
+    /**
+     * Size of an image read from a stream whose length is not known in advance.
+     */
+    public static final long SIZE_UNKNOWN = -1;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String id;
+    private final File file;
+    private final long size;
+
+    /**
+     * Guarded by this: copies of the digest by offset and the progress of the upload.
+     */
+    private final TreeMap<Long, MessageDigest> snapshots = new TreeMap<>();
+    private long sent;
+    private long acknowledged;
+    private boolean started;
+    private boolean finished;
+    private int resumes;
+
+    /**
+     * Standard constructor, creates a new upload ID.
+     *
+     * @param file the image file, null if the image is read from a stream (e.g. an asset)
+     * @param size the size of the image in bytes, SIZE_UNKNOWN for a stream
+     */
+    public UploadSession(File file, long size){
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes){
+            sb.append(String.format("%02x", b));
+        }
+        this.id = sb.toString();
+        this.file = file;
+        this.size = size;
+    }
+
+    private UploadSession(String id, File file, long size){
+        this.id = id;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Restores an upload that was started before the app was restarted (see UploadSpool).
+     * <p>The upload is treated as announced, so the next transfer resumes it at the committed offset.</p>
+     *
+     * @param id the ID of the upload
+     * @param file the image file
+     * @param size the size of the image in bytes
+     * @return the restored upload
+     */
+    public static UploadSession restore(String id, File file, long size){
+        UploadSession session = new UploadSession(id, file, size);
+        session.started = true;
+        return session;
+    }
+
+    /**
+     * Returns the ID the server stores the upload under.
+     *
+     * @return the ID of the upload
+     */
+    public String getId(){
+        return this.id;
+    }
+
+    /**
+     * Returns the uploaded file.
+     *
+     * @return the file, null if the image is read from a stream
+     */
+    public File getFile(){
+        return this.file;
+    }
+
+    /**
+     * Returns the size of the image.
+     *
+     * @return size in bytes, SIZE_UNKNOWN if the image is read from a stream of unknown length
+     */
+    public long getSize(){
+        return this.size;
+    }
+
+    /**
+     * Marks the upload as announced to the server, a further transfer has to resume it.
+     *
+     * @return true if the upload was started before (the transfer is a resume)
+     */
+    public synchronized boolean start(){
+        boolean resume = this.started;
+        this.started = true;
+        if (resume){
+            this.resumes++;
+        }
+        return resume;
+    }
+
+    /**
+     * Records a sent chunk and keeps a copy of the digest for the offset after it.
+     *
+     * @param offset number of bytes sent so far
+     * @param digest the digest updated with all bytes up to the offset, null if there is none for the offset
+     */
+    public synchronized void sent(long offset, MessageDigest digest){
+        this.sent = offset;
+        if (digest == null){
+            return;
+        }
+        try {
+            this.snapshots.put(offset, (MessageDigest) digest.clone());
+        }catch(CloneNotSupportedException eCNS){
+            //the prefix is hashed again when the upload is continued
+            Log.d(Misc.TAG, "Digest can not be copied", eCNS);
+        }
+        while (this.snapshots.size() > Misc.UPLOAD_SNAPSHOTS){
+            this.snapshots.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Records the offset the server committed, older copies of the digest are dropped.
+     *
+     * @param offset the committed offset
+     */
+    public synchronized void acknowledge(long offset){
+        if (offset <= this.acknowledged){
+            return;
+        }
+        this.acknowledged = offset;
+        this.snapshots.headMap(offset).clear();
+    }
+
+    /**
+     * Returns a copy of the digest of the prefix up to the offset.
+     *
+     * @param offset the offset to continue from
+     * @return the digest, null if no copy for the offset was kept
+     */
+    public synchronized MessageDigest digestAt(long offset){
+        MessageDigest digest = this.snapshots.get(offset);
+        if (digest == null){
+            return null;
+        }
+        try {
+            return (MessageDigest) digest.clone();
+        }catch(CloneNotSupportedException eCNS){
+            return null;
+        }
+    }
+
+    /**
+     * Marks the upload as completed (verified or rejected by the server), it can not be resumed anymore.
+     */
+    public synchronized void finish(){
+        this.finished = true;
+        this.snapshots.clear();
+    }
+
+    public synchronized boolean isFinished(){
+        return this.finished;
+    }
+
+    public synchronized long getSent(){
+        return this.sent;
+    }
+
+    public synchronized long getAcknowledged(){
+        return this.acknowledged;
+    }
+
+    public synchronized int getResumes(){
+        return this.resumes;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "Upload " + this.id + ": " + this.sent + "/" + (this.size == SIZE_UNKNOWN ? "?" : this.size)
+                + " bytes sent, " + this.acknowledged + " acknowledged, " + this.resumes + " resumes, " + this.snapshots.size() + " snapshots";
+    }
+}
@@ -0,0 +1,421 @@
+package config;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Durable queue of images waiting for the upload.
+ * <p>Every captured image is stored in the spool directory (Misc.getDirectory()/Misc.SPOOL_DIRECTORY)
+ * under a consecutive number, the images are uploaded in this order once a connection is available.
+ * The files of an entry are only added, never changed:</p>
+ * <p>NUMBER.jpg: the image to upload</p>
+ * <p>NUMBER.meta: the metadata of the image, written last, an entry without it is incomplete and removed</p>
+ * <p>NUMBER.upload: the ID and size of the upload, written when the upload started (see UploadSession)</p>
+ * <p>NUMBER.done: the upload was completed, the files of the entry are deleted</p>
+ * <p>All files are written to a temporary file first and renamed, so a crash leaves either the old or the
+ * new state. After a restart an entry with an upload marker continues its upload at the offset the server
+ * committed. At most maxInFlight entries are uploaded at the same time (see claim()).</p>
+ *
+ * @author Martin
+ *
+ */
+public class UploadSpool {
+
+    private static final String IMAGE = ".jpg", META = ".meta", UPLOAD = ".upload", DONE = ".done", TEMP = ".tmp";
+    private static final String KEY_ID = "id", KEY_SIZE = "size";
+
+    private static UploadSpool shared;
+
+    /**
+     * An image in the spool.
+     */
+    public static final class Entry {
+
+        private final long number;
+        private final File image;
+        private final Properties metadata;
+
+        Entry(long number, File image, Properties metadata){
+            this.number = number;
+            this.image = image;
+            this.metadata = metadata;
+        }
+
+        /**
+         * Returns the position of the entry in the spool.
+         *
+         * @return the consecutive number of the entry
+         */
+        public long getNumber(){
+            return this.number;
+        }
+
+        /**
+         * Returns the stored image.
+         *
+         * @return the image file in the spool directory
+         */
+        public File getImage(){
+            return this.image;
+        }
+
+        /**
+         * Returns a value of the metadata given to enqueue().
+         *
+         * @param key the key of the value
+         * @return the value, null if it was not set
+         */
+        public String getMetadata(String key){
+            return this.metadata.getProperty(key);
+        }
+
+        @Override
+        public String toString(){
+            return "Spool entry " + this.number + " (" + this.image.length() + " bytes)";
+        }
+    }
+
+    private final File directory;
+    private final int maxInFlight;
+
+    /**
+     * Guarded by this: waiting entries by number, entries being uploaded and their uploads.
+     */
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+    private final Map<Long, Entry> inFlight = new HashMap<>();
+    private final Map<Long, UploadSession> sessions = new HashMap<>();
+    private long nextNumber = 1;
+
+    /**
+     * Returns the spool in the picture directory of the app, it is loaded on the first call.
+     *
+     * @return the shared spool
+     */
+    public static synchronized UploadSpool getShared(){
+        if (shared == null){
+            shared = new UploadSpool(new File(Misc.getDirectory(), Misc.SPOOL_DIRECTORY), Misc.SPOOL_MAX_IN_FLIGHT);
+        }
+        return shared;
+    }
+
+    /**
+     * Standard constructor, loads the entries left in the directory.
+     *
+     * @param directory the spool directory, created if necessary
+     * @param maxInFlight the maximum number of entries uploaded at the same time
+     */
+    public UploadSpool(File directory, int maxInFlight){
+        this.directory = directory;
+        this.maxInFlight = maxInFlight;
+
+        if (!directory.isDirectory() && !directory.mkdirs()){
+            Log.e(Misc.TAG, "Failed to create spool directory " + directory.getAbsolutePath());
+        }
+        recover();
+    }
+
+    /**
+     * Stores an image at the end of the spool.
+     *
+     * @param image the image, read until its end (not closed)
+     * @param metadata information about the image, e.g. the time it was taken
+     * @return the new entry
+     * @throws IOException if the image could not be stored
+     */
+    public Entry enqueue(InputStream image, Properties metadata) throws IOException {
+
+        long number;
+        synchronized (this){
+            number = this.nextNumber++;
+        }
+
+        File imageFile = file(number, IMAGE);
+        File temp = file(number, IMAGE + TEMP);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[Misc.UPLOAD_BUFFER_SIZE / 4];
+            int len;
+            while ((len = image.read(buffer)) >= 0){
+                out.write(buffer, 0, len);
+            }
+            out.getFD().sync();
+        }finally{
+            out.close();
+        }
+        rename(temp, imageFile);
+
+        //the entry exists once its metadata was written
+        writeProperties(number, META, metadata);
+
+        Entry entry = new Entry(number, imageFile, metadata);
+        synchronized (this){
+            this.pending.put(number, entry);
+        }
+        Log.d(Misc.TAG, "Spooled: " + entry);
+        return entry;
+    }
+
+    /**
+     * Takes the oldest waiting entry for the upload.
+     *
+     * @return the entry, null if no entry is waiting or maxInFlight entries are uploaded already
+     */
+    public synchronized Entry claim(){
+        return claim(null, null);
+    }
+
+    /**
+     * Takes the oldest waiting entry with the given metadata for the upload.
+     *
+     * @param key the key of the metadata, null to take any entry
+     * @param value the value the metadata must have
+     * @return the entry, null if no such entry is waiting or maxInFlight entries are uploaded already
+     */
+    public synchronized Entry claim(String key, String value){
+        if (this.inFlight.size() >= this.maxInFlight){
+            return null;
+        }
+        for (Entry entry : this.pending.values()){
+            if (key == null || value.equals(entry.getMetadata(key))){
+                this.pending.remove(entry.number);
+                this.inFlight.put(entry.number, entry);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the oldest waiting entries with the given metadata for an upload in one batch
+     * (see ImageTransferHandler.sendImages()).
+     * <p>A batch is not resumed, so only entries without an upload of a previous attempt are taken, in the order of
+     * the spool: the batch ends at the first entry that does not qualify. The batch takes a single upload of
+     * maxInFlight, all its entries have to be completed or released.</p>
+     *
+     * @param key the key of the metadata
+     * @param value the value the metadata must have
+     * @param max the maximum number of entries
+     * @return at least two entries, an empty list if fewer qualify or maxInFlight entries are uploaded already
+     */
+    public synchronized List<Entry> claimBatch(String key, String value, int max){
+        List<Entry> batch = new ArrayList<>();
+        if (this.inFlight.size() >= this.maxInFlight){
+            return batch;
+        }
+        for (Entry entry : this.pending.values()){
+            if (batch.size() >= max || !value.equals(entry.getMetadata(key))
+                    || this.sessions.containsKey(entry.number) || file(entry.number, UPLOAD).exists()){
+                break;
+            }
+            batch.add(entry);
+        }
+        if (batch.size() < 2){
+            batch.clear();
+            return batch;
+        }
+        for (Entry entry : batch){
+            this.pending.remove(entry.number);
+            this.inFlight.put(entry.number, entry);
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the upload of a claimed entry.
+     * <p>The upload of a previous attempt (also before a restart) is continued, otherwise a new upload is
+     * created and its ID stored in the upload marker before anything is sent.</p>
+     *
+     * @param entry the claimed entry
+     * @return the upload of the entry
+     * @throws IOException if the upload marker could not be written
+     */
+    public UploadSession openSession(Entry entry) throws IOException {
+
+        synchronized (this){
+            UploadSession session = this.sessions.get(entry.number);
+            if (session != null){
+                return session;
+            }
+        }
+
+        UploadSession session;
+        Properties marker = readProperties(file(entry.number, UPLOAD));
+        if (marker != null && marker.getProperty(KEY_ID) != null){
+            session = UploadSession.restore(marker.getProperty(KEY_ID), entry.image, entry.image.length());
+        }else {
+            session = new UploadSession(entry.image, entry.image.length());
+            marker = new Properties();
+            marker.setProperty(KEY_ID, session.getId());
+            marker.setProperty(KEY_SIZE, Long.toString(session.getSize()));
+            writeProperties(entry.number, UPLOAD, marker);
+        }
+
+        synchronized (this){
+            this.sessions.put(entry.number, session);
+        }
+        return session;
+    }
+
+    /**
+     * Returns a claimed entry to the spool after its upload failed, it is the next one to be claimed.
+     *
+     * @param entry the claimed entry
+     */
+    public synchronized void release(Entry entry){
+        if (this.inFlight.remove(entry.number) != null){
+            this.pending.put(entry.number, entry);
+        }
+    }
+
+    /**
+     * Removes a claimed entry after it was uploaded (or can not be uploaded anymore).
+     *
+     * @param entry the claimed entry
+     */
+    public void complete(Entry entry){
+        synchronized (this){
+            this.inFlight.remove(entry.number);
+            this.sessions.remove(entry.number);
+        }
+
+        try {
+            //the marker makes sure a crash while deleting does not upload the image again
+            writeProperties(entry.number, DONE, new Properties());
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to mark " + entry + " as done", eIO);
+        }
+        delete(entry.number);
+        Log.d(Misc.TAG, "Completed: " + entry);
+    }
+
+    /**
+     * Returns the number of entries waiting or being uploaded.
+     *
+     * @return the number of entries in the spool
+     */
+    public synchronized int size(){
+        return this.pending.size() + this.inFlight.size();
+    }
+
+    /**
+     * Returns true if an entry is waiting for the upload.
+     *
+     * @return true if claim() would return an entry if nothing was in flight
+     */
+    public synchronized boolean hasPending(){
+        return !this.pending.isEmpty();
+    }
+
+    /**
+     * Loads the entries of the directory and removes completed and incomplete ones.
+     */
+    private void recover(){
+        String[] names = this.directory.list();
+        if (names == null){
+            return;
+        }
+        Arrays.sort(names);
+
+        List<Long> numbers = new ArrayList<>();
+        for (String name : names){
+            int dot = name.indexOf('.');
+            if (dot <= 0){
+                continue;
+            }
+            try {
+                long number = Long.parseLong(name.substring(0, dot));
+                if (!numbers.contains(number)){
+                    numbers.add(number);
+                }
+                this.nextNumber = Math.max(this.nextNumber, number + 1);
+            }catch(NumberFormatException eNF){
+                Log.d(Misc.TAG, "Unknown file in spool: " + name);
+            }
+        }
+
+        for (long number : numbers){
+            File image = file(number, IMAGE);
+            Properties metadata = readProperties(file(number, META));
+
+            if (file(number, DONE).exists() || metadata == null || !image.isFile()){
+                delete(number);
+                continue;
+            }
+            this.pending.put(number, new Entry(number, image, metadata));
+        }
+
+        if (!this.pending.isEmpty()){
+            Log.d(Misc.TAG, "Recovered " + this.pending.size() + " spooled images");
+        }
+    }
+
+    private File file(long number, String suffix){
+        return new File(this.directory, String.format("%010d", number) + suffix);
+    }
+
+    private void writeProperties(long number, String suffix, Properties properties) throws IOException {
+        File temp = file(number, suffix + TEMP);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        }finally{
+            out.close();
+        }
+        rename(temp, file(number, suffix));
+    }
+
+    private static Properties readProperties(File file){
+        if (!file.isFile()){
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                Properties properties = new Properties();
+                properties.load(in);
+                return properties;
+            }finally{
+                in.close();
+            }
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to read " + file.getAbsolutePath(), eIO);
+            return null;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)){
+            throw new IOException("Failed to rename " + from.getAbsolutePath() + " to " + to.getName());
+        }
+    }
+
+    /**
+     * Deletes all files of an entry, the done marker last.
+     */
+    private void delete(long number){
+        for (String suffix : new String[]{IMAGE + TEMP, IMAGE, META + TEMP, META, UPLOAD + TEMP, UPLOAD, DONE + TEMP, DONE}){
+            File file = file(number, suffix);
+            if (file.exists() && !file.delete()){
+                Log.d(Misc.TAG, "Failed to delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "UploadSpool: " + this.pending.size() + " waiting, " + this.inFlight.size() + " uploading";
+    }
+}
@@ -1,32 +1,60 @@
 package mmi.colorgame.colorgameclient;
 
+import android.content.ClipData;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.KeyStoreException;
 import java.security.SignedObject;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
 import javax.crypto.SealedObject;
-import javax.net.ssl.SSLSocket;
 
+import config.BufferPool;
+import config.CaptureProvider;
 import config.CommunicationHandler;
+import config.ConnectionWarmer;
+import config.ImagePreprocessor;
 import config.ImageTransferHandler;
 import config.KeyStoreHandler;
 import config.Misc;
+import config.PerceptualHash;
+import config.ReconnectSupervisor;
+import config.ResponseFuture;
+import config.RttEstimator;
+import config.StripedUploader;
+import config.TeeInputStream;
+import config.Transport;
+import config.UploadSession;
+import config.UploadSpool;
 
 /**
  * The client thread.
@@ -53,6 +81,21 @@ public class Client extends Thread {
             STATE_SART = 0,
             STATE_PLAY = 1;
 
+    /**
+     * Metadata of a spooled image: the file taken with the camera, whether it is a control image,
+     * the time it was taken and its PerceptualHash.
+     */
+    private static final String
+            SPOOL_SOURCE = "source",
+            SPOOL_CONTROL = "control",
+            SPOOL_CAPTURED = "captured",
+            SPOOL_HASH = "hash";
+
+    /**
+     * Cancels streamed captures the camera did not start writing within Misc.CAPTURE_TIMEOUT.
+     */
+    private static final Timer CAPTURE_TIMER = new Timer("CaptureTimeout", true);
+
     /**
      * Activity acting as user interface with all the Buttons and TextViews.
      */
@@ -64,14 +107,14 @@ public class Client extends Thread {
     private final String serverIP;
 
     /**
-     * Socket of the client.
+     * Connection of the client (blocking socket or non-blocking transport, see Misc.TRANSPORT).
      */
-    private SSLSocket socketForClient;
+    private Transport socketForClient;
 
     /**
-     * Handler for communication.
+     * Handler for communication (also read by the user interface to send game messages).
      */
-    private CommunicationHandler ch;
+    private volatile CommunicationHandler ch;
     /**
      * Handler for image operations.
      */
@@ -80,6 +123,10 @@ public class Client extends Thread {
      * Handler for KeyStore.
      */
     private KeyStoreHandler kh;
+    /**
+     * Connection warmed up in the background (null if the client connects on its own).
+     */
+    private ConnectionWarmer warmer;
 
     /**
      * Current state of the client.
@@ -93,8 +140,13 @@ public class Client extends Thread {
             closeConnection,
             sendImage,
             sendNonsense,
-            requestToken,
-            imageConfirmed;
+            requestToken;
+
+    /**
+     * Released when the user confirmed or cancelled the image in the camera, imageCancelled tells which.
+     */
+    private volatile CountDownLatch imageTaken = new CountDownLatch(0);
+    private volatile boolean imageCancelled;
 
     /**
      * Used to store temporary data.
@@ -103,6 +155,62 @@ public class Client extends Thread {
             token,
             currentStatus;
 
+    /**
+     * Pipelined token request waiting for the response of the server (null if none is in flight).
+     */
+    private ResponseFuture pendingToken;
+
+    /**
+     * Token issued by the server to resume the session after a reconnect (null if none was issued).
+     */
+    private String resumeToken;
+    /**
+     * True while the server waits for a control image.
+     */
+    private boolean awaitingControlImage;
+    /**
+     * Time the control image has to arrive at the server until (System.currentTimeMillis()).
+     */
+    private long controlImageDeadline;
+    /**
+     * Camera intent and its image file created in advance for the control image (null if none is prepared).
+     */
+    private Intent cameraIntent;
+    private File cameraImage;
+    /**
+     * Image the camera is writing into a pipe (capture streaming, null if none).
+     */
+    private volatile CaptureProvider.Capture capture;
+    /**
+     * True if the pipelined token request was sent before the server validated the control image.
+     */
+    private boolean speculativeToken;
+    /**
+     * PerceptualHash of the last image sent from the spool and of the first image the server requests a control
+     * image for (null if unknown).
+     */
+    private PerceptualHash sentImageHash, firstImageHash;
+    /**
+     * Re-establishes the connection when it was lost.
+     */
+    private final ReconnectSupervisor supervisor = new ReconnectSupervisor();
+    /**
+     * Messages of the game waiting to be sent by the thread of the client.
+     */
+    private final Queue<String> gameMessages = new ConcurrentLinkedQueue<>();
+    /**
+     * Image upload interrupted by a timeout or a lost connection, continued afterwards (null if none).
+     */
+    private UploadSession pendingUpload;
+    /**
+     * Scales and recompresses camera images before the upload.
+     */
+    private volatile ImagePreprocessor preprocessor = ImagePreprocessor.getDefault();
+    /**
+     * Camera images waiting for the upload, kept across lost connections and restarts (null without camera).
+     */
+    private UploadSpool spool;
+
 
     public Client(String serverIP_string){
         if(serverIP_string != null){ this.serverIP = serverIP_string; }
@@ -140,6 +248,11 @@ public class Client extends Thread {
 
         try {
 
+            //images of a previous run that were not uploaded yet
+            if (Misc.REAL_PHONE){
+                this.spool = UploadSpool.getShared();
+            }
+
             //try to establish connection to the server and evaluate the result
             evaluateConnectionInitialization();
 
@@ -152,25 +265,55 @@ public class Client extends Thread {
                     Log.d(Misc.TAG, "Image button pushed!");
 
                     //try to send an image and evaluate the result
-                    evaluateSendImage(Misc.IMAGE_STRING);
+                    evaluateSendImage(Misc.IMAGE_STRING, null);
 
                     //unset flag
                     sendImage = false;
 
                 }
 
+                //upload the next image taken with the camera
+                if (spool != null && spool.hasPending() && !isInterrupted()){
+                    evaluateDrainSpool();
+                }
+
+                //continue an image upload that was interrupted by a lost connection
+                if (pendingUpload != null && !isInterrupted()){
+                    evaluateResumeImage();
+                }
+
                 //token button
                 if (requestToken){
                     Log.d(Misc.TAG, "Token button pushed!");
 
-                    //send command to server and evaluate response
-                    evaluateListenForToken();
+                    if (ch.isPipelining()){
+                        //send the request, the response is evaluated once it arrived
+                        evaluateRequestTokenPipelined();
+                    }else {
+                        //send command to server and evaluate response
+                        evaluateListenForToken();
+                    }
 
                     //unset flag
                     requestToken = false;
 
                 }
 
+                //answers of the game that could not be sent by the user interface
+                if (!gameMessages.isEmpty()){
+                    evaluateGameMessages();
+                }
+
+                //make sure the server is still there while idle
+                if (!isInterrupted()) {
+                    evaluateHeartbeat();
+                }
+
+                //response for a pipelined token request arrived
+                if (pendingToken != null && pendingToken.isDone()){
+                    evaluatePipelinedToken();
+                }
+
                 //poetry button: send some simple strings
                 if (sendNonsense) {
                     Log.d(Misc.TAG, "Poetry button pushed!");
@@ -208,35 +351,46 @@ public class Client extends Thread {
      * Initializes all the handlers for the client and attempts to establish a connection to the server.
      * <p>1. Loads the KeyStore from a file (BKS) and initializes KeyStoreHandler</p>
      * <p>2. Attempts to connect the socket to the server</p>
+     * <p>(1. and 2. are skipped if a warmed up connection could be taken from the ConnectionWarmer)</p>
      * <p>3. Initializes CommunicationHandler and and configures the connection (streams, cipher suites, etc.)</p>
      * <p>4. Initializes ImageTransferHandler</p>
-     * <p>5. Sends the ID of the client to the server</p>
+     * <p>5. Sends the ID of the client to the server and requests a resume token</p>
      */
     private void evaluateConnectionInitialization() {
 
         //if an exception occurs the connection will be canceled and the client will be stopped
         try {
 
-            //load keystore from file
-            InputStream is = this.userInterface.getResources().openRawResource(R.raw.client);
+            if (this.warmer != null && this.warmer.take(RttEstimator.getShared().getTimeout(Misc.HANDSHAKE_ROUND_TRIPS))){
 
-            //initialize KeyStoreHandler
-            this.kh = new KeyStoreHandler(is);
+                //keystore loaded, socket connected and handshake done in the background
+                Log.d(Misc.TAG, "Using warmed up connection!");
+                this.kh = this.warmer.getKeyStoreHandler();
+                this.socketForClient = this.warmer.getTransport();
 
-            //initialize socket
-            this.socketForClient = kh.connectToSocket(this.serverIP, Misc.SERVER_PORT);
+            }else {
+
+                //load keystore from file
+                InputStream is = this.userInterface.getResources().openRawResource(R.raw.client);
+
+                //initialize KeyStoreHandler
+                this.kh = new KeyStoreHandler(is);
+
+                //initialize socket
+                this.socketForClient = kh.connect(this.serverIP, Misc.SERVER_PORT);
+            }
 
             //initialize CommunicationHandler
-            this.ch = new CommunicationHandler(this, this.socketForClient);
+            this.ch = new CommunicationHandler(this, this.socketForClient, Misc.PROTOCOL);
 
             //configure connection
             this.ch.setupConnection();
 
             //initialize ImageTransferHandler
-            //this.ih = new ImageTransferHandler(this, ch);
+            this.ih = createImageTransferHandler();
 
             //send id from client to server
-            this.ch.sendLineToServer(Integer.toString(Misc.CLIENT_ID));
+            identify();
 
             //inform user and make buttons for interactions visible
             setStatus("Connection to server successful");
@@ -303,8 +457,61 @@ public class Client extends Thread {
             //setState(STATE_TOKEN_REQUEST);
 
         }catch(Exception e) {
-            this.userInterface.returnResult("Error occurred during token transfer, please contact your local overlord");
-            interrupt();
+            evaluateReconnect("Error occurred during token transfer, please contact your local overlord");
+        }
+    }
+
+    /**
+     * Sends a pipelined token request, the response is evaluated by evaluatePipelinedToken().
+     * <p>The request does not block the client, so other commands (e.g. an image transfer)
+     * can be executed while the token is on its way.</p>
+     */
+    private void evaluateRequestTokenPipelined(){
+
+        if (pendingToken != null){
+            Log.d(Misc.TAG, "A token request is already in flight!");
+            return;
+        }
+
+        try{
+            pendingToken = ih.requestTokenPipelined();
+
+        }catch(Exception e) {
+            evaluateReconnect("Error occurred during token transfer, please contact your local overlord");
+        }
+    }
+
+    /**
+     * Evaluates the response for the pipelined token request.
+     * The token will be stored in a private field that can be accessed with getToken().
+     */
+    private void evaluatePipelinedToken(){
+
+        ResponseFuture response = pendingToken;
+        pendingToken = null;
+
+        boolean speculative = this.speculativeToken;
+        this.speculativeToken = false;
+
+        try{
+            if ((this.token = ih.tokenFromResponse(response.get())) != null) {
+                setStatus("Received token from server");
+            }else if (speculative){
+                //the server answered before it validated the control image, ask again
+                Log.d(Misc.TAG, "Speculative token request came too early, requesting it again");
+                evaluateRequestTokenPipelined();
+            }else{
+                setStatus("Server will not send a token for the last image");
+            }
+
+        }catch(IOException eIO){
+            //unexpected response, the ordered conversation is not affected
+            setStatus("Error while trying to read the token, if this error continues contact local overlord");
+
+        }catch(ExecutionException | InterruptedException e){
+            //connection lost while waiting, the request is sent again after reconnecting
+            this.requestToken = true;
+            evaluateReconnect("Error occurred during token transfer, please contact your local overlord");
         }
     }
 
@@ -325,38 +532,194 @@ public class Client extends Thread {
                 return;
             }
 
-            //if synchronization failed interrupt thread
-            this.userInterface.returnResult("Synchronization with server failed, try reconnect");
-            interrupt();
+            //if synchronization failed start over with a new connection
+            evaluateReconnect("Synchronization with server failed, try reconnect");
 
         }catch(Exception e){
-            //set return intent and interrupt thread
-            this.userInterface.returnResult("Synchronization with server failed, try reconnect");
-            interrupt();
+            //connection broken, start over with a new connection
+            evaluateReconnect("Synchronization with server failed, try reconnect");
+        }
+    }
+
+    /**************************************************************************************************
+     reconnects to the server
+     **************************************************************************************************/
+
+    /**
+     * Checks with the heartbeat whether the server is still answering, reconnects if not.
+     */
+    private void evaluateHeartbeat(){
+        try {
+            if (this.ch.keepAlive()){
+                return;
+            }
+        }catch(ProtocolException eP){
+            //the server is alive, but the conversation is out of step
+            evaluateSynchronization();
+            return;
+        }catch(IOException eIO){
+            Log.d(Misc.TAG, "Failed to send heartbeat", eIO);
+        }
+        evaluateReconnect("Connection to server lost, please try again");
+    }
+
+    /**
+     * Replaces the broken connection with a new one (jittered exponential backoff, see ReconnectSupervisor).
+     * If the server resumes the session, the client continues where it was interrupted.
+     * If all attempts fail, the thread will be stopped.
+     *
+     * @param failureMessage message for the user if the connection can not be recovered
+     * @return true if the connection was recovered
+     */
+    private boolean evaluateReconnect(String failureMessage){
+
+        setStatus("Connection to server lost, reconnecting...");
+
+        if (this.ch != null){
+            this.ch.abortConnection();
+        }
+
+        //a pipelined token request will never be answered, send it again on the new connection
+        if (this.pendingToken != null){
+            this.pendingToken.cancel(false);
+            this.pendingToken = null;
+            this.requestToken = true;
+        }
+
+        boolean recovered = this.supervisor.recover(new ReconnectSupervisor.Attempt() {
+            @Override
+            public void reconnect() throws Exception {
+                reconnectOnce();
+            }
+        });
+
+        if (recovered){
+            Log.d(Misc.TAG, "Reconnected: " + this.supervisor);
+            setStatus("Connection to server reestablished");
+            return true;
+        }
+
+        this.userInterface.returnResult(failureMessage);
+        interrupt();
+        return false;
+    }
+
+    /**
+     * A single attempt to connect again with the existing KeyStoreHandler.
+     *
+     * @throws IOException if the connection could not be established
+     */
+    private void reconnectOnce() throws IOException {
+
+        //connection of a previous failed attempt
+        if (this.ch != null){
+            this.ch.abortConnection();
+        }
+
+        this.socketForClient = kh.connect(this.serverIP, Misc.SERVER_PORT);
+        this.ch = new CommunicationHandler(this, this.socketForClient, Misc.PROTOCOL);
+        this.ch.setupConnection();
+        this.ih = createImageTransferHandler();
+
+        identify();
+    }
+
+    /**
+     * Creates the ImageTransferHandler for the current connection, large images are striped over
+     * Misc.UPLOAD_STRIPES extra connections.
+     *
+     * @return the handler for the image transfers
+     */
+    private ImageTransferHandler createImageTransferHandler(){
+        ImageTransferHandler handler = new ImageTransferHandler(this, this.ch);
+        if (Misc.UPLOAD_STRIPES > 0){
+            handler.setStripedUploader(new StripedUploader(this, this.kh, this.serverIP, Misc.SERVER_PORT, Misc.UPLOAD_STRIPES));
+        }
+        return handler;
+    }
+
+    /**
+     * Identifies at the server, by resuming the previous session if possible or by sending the ID of the client.
+     * Afterwards a resume token for the next reconnect is requested.
+     *
+     * @throws IOException if the stream could not be accessed
+     */
+    private void identify() throws IOException {
+
+        if (this.resumeToken != null && this.ch.resumeSession(this.resumeToken)){
+            //server kept the state of the session, image and token workflow continue
+            Log.d(Misc.TAG, "Resumed previous session!");
+
+        }else {
+            this.ch.sendIntToServer(Misc.CLIENT_ID);
+
+            //the server forgot the upload of the previous session
+            this.pendingUpload = null;
+
+            //the server forgot the first image
+            if (this.awaitingControlImage){
+                this.awaitingControlImage = false;
+                setStatus("Session could not be resumed, please start again with a new image");
+            }
         }
+
+        this.resumeToken = this.ch.requestResumeToken();
+    }
+
+    /**
+     * Returns the supervisor with the statistics about the recovered connections.
+     *
+     * @return the supervisor of this client
+     */
+    public ReconnectSupervisor getReconnectSupervisor(){
+        return this.supervisor;
     }
 
     /**************************************************************************************************
      image transfer
      **************************************************************************************************/
 
+    /**
+     * Continues the interrupted upload of the last image at the offset the server committed.
+     * Gives up after Misc.UPLOAD_MAX_RESUMES attempts.
+     */
+    private void evaluateResumeImage(){
+
+        UploadSession upload = this.pendingUpload;
+        this.pendingUpload = null;
+
+        if (upload.getResumes() >= Misc.UPLOAD_MAX_RESUMES){
+            Log.d(Misc.TAG, "Giving up interrupted upload: " + upload);
+            setStatus("Image transfer failed repeatedly, please try again.");
+            return;
+        }
+
+        Log.d(Misc.TAG, "Resuming interrupted upload: " + upload);
+        setStatus("Continuing image transfer...");
+
+        evaluateSendImage(Misc.IMAGE_STRING, upload);
+    }
+
     /**
      * Evaluates the result from "sendImage(String fileName)".
      * <p>The different exceptions that can occur will be evaluated
      * and information for the user will be displayed.
      * In addition the method will evaluate the response from the server
      * and act accordingly.</p>
+     * <p>If the connection is lost during the transfer, the upload is kept to be continued
+     * once the connection is back (see evaluateResumeImage()).</p>
+     * <p>An image taken with the camera is only stored in the spool, it is sent by evaluateDrainSpool().</p>
      *
      * @param file the filename of the image (if no image will be taken with the camera)
+     * @param resume the interrupted upload to continue, null to send a new image
      */
-    private void evaluateSendImage(String file){
+    private void evaluateSendImage(String file, UploadSession resume){
 
         Log.d(Misc.TAG, "Initiating image transfer...");
 
         //prevent the user from hammering the buttons until transfer is completed
         //setState(STATE_IMAGE_TRANSFER);
 
-        File image = null;
         BufferedInputStream bufferedInputStreamFromFile = null;
 
 
@@ -369,20 +732,9 @@ public class Client extends Thread {
             //check whether to take an actual photo
             if(Misc.REAL_PHONE){
 
-                //execute image capture with camera
-                if ((image = evaluateTakeImageWithCamera()) == null){
-                    setStatus("Failed to take an image with the camera, contact overlord.");
-                    return;
-                }
-
-                //initialize inputStream on file
-                try{
-                    bufferedInputStreamFromFile = new BufferedInputStream(new FileInputStream(image));
-                }catch(FileNotFoundException eFNF){
-                    Log.e(Misc.TAG, "Image could not be located", eFNF);
-                    setStatus("Failed to load the stored image form sd card, transmission canceled.");
-                    return;
-                }
+                //the image is uploaded from the spool, also if the connection is lost until then
+                evaluateCaptureImage();
+                return;
 
             }
             //load a stored image
@@ -398,63 +750,16 @@ public class Client extends Thread {
                 }
             }
 
-            //execute image transfer with the inputStream pointing on the file
-            if(ih.sendImage(bufferedInputStreamFromFile)) {
-
-                Log.d(Misc.TAG, "Image transfer done!");
-
-                Log.d(Misc.TAG, "Waiting for server to respond...");
-
-                //check for response from server
-                String response;
-                if ((response = ch.readLineFromServer()) != null){
-
-                    //transfer successful and valid response
-                    switch (response) {
-
-                        //server received first image and requests a control image
-                        case (".imageRequest"):
-
-                            Log.d(Misc.TAG, "Server requests control image!");
-
-                            //evaluate the instructions from the server and display them on screen
-                            prepareControlImage();
-                            return;
-
-                        //server is satisfied with the control image
-                        case (".imageDone"):
-
-                            Log.d(Misc.TAG, "Control image validated the previous image!");
-
-                            setStatus("Second image validated first image, server accepted first image as measurement");
-
-                            //if the control image was taken with a camera it can be deleted
-                            if(Misc.REAL_PHONE) {
-                                if (!image.delete()) {
-                                    Log.d(Misc.TAG, "Failed to delete the control image");
-                                }
-                            }
-
-                            //request a token for the first image
-                            evaluateListenForToken();
-                            return;
-
-                        //the control image did not validate the first image
-                        case (".imageReject"):
-
-                            Log.d(Misc.TAG, "Control image failed to validate the previous image!!");
-
-                            //image can be deleted
-                            if(Misc.REAL_PHONE) {
-                                if (!image.delete()) {
-                                    Log.d(Misc.TAG, "Failed to delete the control image");
-                                }
-                            }
+            //execute image transfer with the inputStream pointing on the asset
+            boolean control = this.awaitingControlImage;
+            boolean transferred = ih.sendImage(bufferedInputStreamFromFile, resume);
+            if (transferred && control){
+                //the token for the first image is requested while the server validates the control image
+                requestTokenSpeculatively();
+            }
 
-                            setStatus("Server found inconsistency in images, please try again.");
-                            return;
-                    }
-                }
+            if(transferred && evaluateImageResponse(null)) {
+                return;
             }
 
             //communication error, try synchronization
@@ -467,11 +772,22 @@ public class Client extends Thread {
 
         } catch (SocketTimeoutException eST){
 
+            //the upload continues after the synchronization
+            this.pendingUpload = ih.getUnfinishedUpload();
+
             evaluateSynchronization();
 
             //synchronization successful
             setStatus("Image transfer failed due to communication error. Reestablished synchronization to server.\nTry again or contact local overlord");
 
+        }catch(IOException eIO){
+
+            //the upload continues on the new connection
+            this.pendingUpload = ih.getUnfinishedUpload();
+
+            //connection broken, try to continue with a new connection
+            evaluateReconnect("Error occurred, please contact your local overlord");
+
         }catch(Exception e){
 
             //error occurred, connection will be closed
@@ -483,87 +799,804 @@ public class Client extends Thread {
         }
     }
 
-    /**************************************************************************************************
-     takes an image with the camera
-     **************************************************************************************************/
-
     /**
-     * Attempts to take an image with the camera of the phone.
-     * <p>The image is stored on the sd card in directory defined in the Misc class.
-     * The name of the iamge is based on the current time of the phone.</p>
+     * Evaluates the response of the server to a transferred image.
      *
-     * @return a file pointing to the captured image
+     * @param image the image taken with the camera, deleted if it was a control image (null for an asset)
+     * @return false if the server did not respond as expected (synchronization needed)
+     * @throws IOException if the stream could not be accessed
      */
-    private File evaluateTakeImageWithCamera(){
+    private boolean evaluateImageResponse(File image) throws IOException {
 
-        //get path to picture from Misc.class
-        File directory = Misc.getDirectory();
-        File fileImage;
+        Log.d(Misc.TAG, "Image transfer done!");
 
-        //string to define the name of the image file
-        String info;
-        info = new SimpleDateFormat("yyyyMMdd_HH_mm_ss", Locale.GERMANY).format(new Date());
+        Log.d(Misc.TAG, "Waiting for server to respond...");
 
-        //create file in the directory with a filename depending on the time
-        fileImage = new File(directory, "wood" + info + ".jpg");
+        //check for response from server
+        String response;
+        if ((response = ch.readLineFromServer()) != null){
 
-        //for the activity that takes the picture
-        Uri fileUri = Uri.fromFile(fileImage);
+            //transfer successful and valid response
+            switch (response) {
 
-        //create intent and take picture
-        Intent takeImageIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        if (takeImageIntent.resolveActivity(this.userInterface.getPackageManager()) == null) {
-            return null;
-        }
+                //server received first image and requests a control image
+                case (".imageRequest"):
 
-        //start activity to take picture (from user interface activity)
-        takeImageIntent.putExtra(MediaStore.EXTRA_OUTPUT, fileUri);
-        this.userInterface.startActivityForResult(takeImageIntent, Misc.REQUEST_IMAGE_CAPTURE);
+                    Log.d(Misc.TAG, "Server requests control image!");
+                    this.awaitingControlImage = true;
+                    this.firstImageHash = this.sentImageHash;
 
-        //wait for user to confirm that the image was taken
-        this.imageConfirmed = false;
-        //setState(STATE_IMAGE_CONFIRM);
+                    //evaluate the instructions from the server and display them on screen
+                    prepareControlImage();
 
-        setStatus("Please confirm the image.");
+                    //the time for the control image is short, everything possible is done before the user shoots
+                    if (Misc.CONTROL_FAST_PATH){
+                        primeControlImage();
+                    }
+                    return true;
 
-        while (true){
-            if (imageConfirmed) break;
-        }
+                //server is satisfied with the control image
+                case (".imageDone"):
 
-        //user confirmed, proceed with image transfer
-        //setState(STATE_IMAGE_TRANSFER);
+                    Log.d(Misc.TAG, "Control image validated the previous image!");
+                    this.awaitingControlImage = false;
+                    this.firstImageHash = null;
 
-        return fileImage;
-    }
+                    setStatus("Second image validated first image, server accepted first image as measurement");
 
-    /**************************************************************************************************
-     miscellaneous
-     **************************************************************************************************/
+                    //if the control image was taken with a camera it can be deleted
+                    if (image != null && !image.delete()) {
+                        Log.d(Misc.TAG, "Failed to delete the control image");
+                    }
+
+                    //request a token for the first image, unless it is on its way already
+                    if (this.speculativeToken){
+                        Log.d(Misc.TAG, "Token for the first image was requested with the control image");
+                    }else {
+                        evaluateListenForToken();
+                    }
+                    return true;
+
+                //the control image did not validate the first image
+                case (".imageReject"):
+
+                    Log.d(Misc.TAG, "Control image failed to validate the previous image!!");
+                    this.awaitingControlImage = false;
+                    this.firstImageHash = null;
+
+                    //image can be deleted
+                    if (image != null && !image.delete()) {
+                        Log.d(Misc.TAG, "Failed to delete the control image");
+                    }
+
+                    //there will be no token for the first image
+                    discardSpeculativeToken();
+
+                    setStatus("Server found inconsistency in images, please try again.");
+                    return true;
+            }
+        }
+        discardSpeculativeToken();
+        return false;
+    }
 
     /**
-     * Reads and displays instructions from server.
-     *
-     * @throws IOException if server responded unexpected and the consequential synchronization attempt failed
+     * Takes an image with the camera, prepares it for the upload and stores it in the spool (see UploadSpool).
      */
-    private void prepareControlImage() throws IOException {
+    private void evaluateCaptureImage(){
 
-        if (!(ch.listenForLine(".instructions"))) {
+        //the control image is requested by the server, remember it for the upload
+        boolean control = this.awaitingControlImage;
 
-            //communication error, try synchronization
-            evaluateSynchronization();
+        //the image is uploaded while the camera writes it
+        if (Misc.CAPTURE_STREAMING){
+            evaluateStreamCapture(control);
+            return;
+        }
 
-            setStatus("Server did not send instructions for a second image, reestablished synchronization. \n If this error continues contact your local Overlord");
+        //execute image capture with camera
+        File image = evaluateTakeImageWithCamera();
+        if (image == null){
+            if (this.imageCancelled){
+                setStatus("Image capture cancelled.");
+                return;
+            }
+            setStatus("Failed to take an image with the camera, contact overlord.");
+            return;
+        }
+        if (!image.isFile()){
+            Log.e(Misc.TAG, "Image could not be located: " + image.getAbsolutePath());
+            setStatus("Failed to load the stored image form sd card, transmission canceled.");
             return;
         }
 
-        //received instructions
-        String instructions = ch.readLineFromServer();
-        setStatus("Image transfer successful, please take a control image within " + Misc.TIME_FOR_CONTROL_IMAGE + " seconds with the following instructions:\n" + instructions);
-    }
+        //an obviously different control image would be rejected by the server after the whole upload
+        PerceptualHash hash = evaluatePerceptualHash(image);
+        if (control && hash != null && this.firstImageHash != null
+                && !hash.matches(this.firstImageHash, Misc.CONTROL_MAX_DISTANCE)){
 
-    /**
-     * Sets the state of the client. Will call the activity.setUI() function to update the user interface according to the state.
-     * Possible states are:
+            Log.d(Misc.TAG, "Control image differs from the first image in " + hash.distance(this.firstImageHash)
+                    + " of " + PerceptualHash.BITS + " bits, not sending it");
+            if (!image.delete()){
+                Log.d(Misc.TAG, "Failed to delete the control image");
+            }
+            setStatus("The control image does not seem to show the same as the first image, please take it again.");
+            return;
+        }
+
+        //scale and recompress the image, the original is stored if this fails
+        ImagePreprocessor.Result prepared = evaluatePreprocessImage(image);
+
+        //the control image is sent right away, the spool is the fallback if that fails
+        if (control && Misc.CONTROL_FAST_PATH && evaluateSendControlImage(image, prepared)){
+            return;
+        }
+
+        evaluateSpoolImage(image, prepared, control, hash);
+    }
+
+    /**
+     * Stores an image in the spool, the thread of the client sends it from there.
+     *
+     * @param image the image taken with the camera
+     * @param prepared the scaled and recompressed image, null to store the original
+     * @param control true if it is the control image
+     * @param hash the PerceptualHash of the image, null if unknown
+     */
+    private void evaluateSpoolImage(File image, ImagePreprocessor.Result prepared, boolean control, PerceptualHash hash){
+
+        Properties metadata = new Properties();
+        metadata.setProperty(SPOOL_SOURCE, image.getAbsolutePath());
+        metadata.setProperty(SPOOL_CONTROL, Boolean.toString(control));
+        metadata.setProperty(SPOOL_CAPTURED, Long.toString(System.currentTimeMillis()));
+        if (hash != null){
+            metadata.setProperty(SPOOL_HASH, hash.toString());
+        }
+
+        try {
+            InputStream in = (prepared != null) ? prepared.openStream() : new BufferedInputStream(new FileInputStream(image));
+            try {
+                this.spool.enqueue(in, metadata);
+            }finally{
+                in.close();
+            }
+            setStatus("Image stored, sending it to the server...");
+
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to store the image in the spool", eIO);
+            setStatus("Failed to store the image on the sd card, please try again.");
+        }
+    }
+
+    /**
+     * Takes an image with the camera and uploads it while the camera writes it (capture streaming).
+     * <p>The camera writes the image into a pipe (see CaptureProvider) instead of a file, the image is hashed and
+     * sent chunk by chunk as it arrives, so the upload does not wait for the image to be written to the sd card and
+     * read again. The image can not be scaled and recompressed nor checked with its PerceptualHash before it is
+     * sent. If Misc.CAPTURE_TEE is set, a copy is written to the sd card on the way; if the transfer fails, the copy
+     * is spooled like any other image.</p>
+     *
+     * @param control true if the server requested the control image
+     */
+    private void evaluateStreamCapture(boolean control){
+
+        File directory = Misc.getDirectory();
+        String info = new SimpleDateFormat("yyyyMMdd_HH_mm_ss", Locale.GERMANY).format(new Date());
+        File copy = Misc.CAPTURE_TEE ? new File(directory, "wood" + info + ".jpg") : null;
+
+        CaptureProvider.Capture capture;
+        try {
+            capture = CaptureProvider.open();
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to create the pipe for the camera", eIO);
+            setStatus("Failed to take an image with the camera, contact overlord.");
+            return;
+        }
+
+        //a stream capture can not reuse an intent prepared for a file
+        this.cameraIntent = null;
+        this.cameraImage = null;
+
+        Intent takeImageIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        if (takeImageIntent.resolveActivity(this.userInterface.getPackageManager()) == null) {
+            capture.cancel();
+            setStatus("Failed to take an image with the camera, contact overlord.");
+            return;
+        }
+        takeImageIntent.putExtra(MediaStore.EXTRA_OUTPUT, capture.getUri());
+        grantCaptureUri(takeImageIntent, capture.getUri());
+
+        this.capture = capture;
+        this.userInterface.startActivityForResult(takeImageIntent, Misc.REQUEST_IMAGE_CAPTURE);
+        setStatus("Please take the image, it is sent while it is stored.");
+
+        //PlayActivity cancels the capture if the user backs out of the camera, the timeout if no result arrives
+        final CaptureProvider.Capture pending = capture;
+        TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                Log.d(Misc.TAG, "Camera did not start writing the image in time");
+                pending.cancel();
+            }
+        };
+        CAPTURE_TIMER.schedule(timeout, Misc.CAPTURE_TIMEOUT);
+
+        TeeInputStream tee = null;
+        try {
+            //blocks until the camera writes, ends right away if the capture is cancelled
+            InputStream image = new BufferedInputStream(capture.getInputStream());
+            image.mark(1);
+            int first = image.read();
+            timeout.cancel();
+            if (first < 0){
+                Log.d(Misc.TAG, "Capture cancelled, no image to send");
+                setStatus("No image taken.");
+                return;
+            }
+            image.reset();
+
+            if (copy != null){
+                tee = new TeeInputStream(image, new BufferedOutputStream(new FileOutputStream(copy)));
+                image = tee;
+            }
+
+            if (control){
+                Log.d(Misc.TAG, "Streaming control image, " + (this.controlImageDeadline - System.currentTimeMillis())
+                        + " ms left");
+                ih.setDeduplication(false);
+            }
+            setStatus("Sending image...");
+
+            boolean transferred = ih.sendImage(image);
+            if (transferred && control){
+                requestTokenSpeculatively();
+            }
+
+            if (!transferred || !evaluateImageResponse(copy)){
+                //communication error, try synchronization
+                evaluateSynchronization();
+            }
+            return;
+
+        }catch(SocketTimeoutException eST){
+
+            evaluateSynchronization();
+
+        }catch(IOException eIO){
+
+            evaluateReconnect("Error occurred, please contact your local overlord");
+
+        }catch(Exception e){
+
+            //error occurred, connection will be closed
+            this.userInterface.returnResult("Error occurred, please contact your local overlord");
+            interrupt();
+            return;
+
+        }finally{
+            timeout.cancel();
+            ih.setDeduplication(true);
+            this.capture = null;
+            closeCapture(capture, tee);
+        }
+
+        //the transfer failed, the copy on the sd card is sent from the spool
+        if (tee != null && tee.isComplete()){
+            evaluateSpoolImage(copy, null, control, null);
+        }else {
+            setStatus("Failed to send the image, please take it again.");
+        }
+    }
+
+    /**
+     * Allows the camera to write into the pipe of a capture.
+     * <p>Before Lollipop FLAG_GRANT_WRITE_URI_PERMISSION only covers the data and the ClipData of an intent, not
+     * EXTRA_OUTPUT. From Jelly Bean on the URI is set as ClipData as well, before the permission is granted to
+     * every camera that can handle the intent and revoked again by closeCapture().</p>
+     *
+     * @param takeImageIntent the intent for the camera
+     * @param uri the URI of the pipe
+     */
+    private void grantCaptureUri(Intent takeImageIntent, Uri uri){
+        takeImageIntent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            takeImageIntent.setClipData(ClipData.newRawUri("", uri));
+            return;
+        }
+
+        List<ResolveInfo> cameras = this.userInterface.getPackageManager()
+                .queryIntentActivities(takeImageIntent, PackageManager.MATCH_DEFAULT_ONLY);
+        for (ResolveInfo camera : cameras){
+            this.userInterface.grantUriPermission(camera.activityInfo.packageName, uri,
+                    Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        }
+    }
+
+    /**
+     * Closes the pipe of a capture, the copy on the sd card is completed first.
+     */
+    private void closeCapture(CaptureProvider.Capture capture, TeeInputStream tee){
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+            //granted by grantCaptureUri()
+            this.userInterface.revokeUriPermission(capture.getUri(), Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        }
+
+        try {
+            if (tee != null){
+                tee.close();
+            }
+        }catch(IOException eIO){
+            Log.d(Misc.TAG, "Failed to complete the copy of the image", eIO);
+        }
+        try {
+            capture.close();
+        }catch(IOException eIO){
+            Log.d(Misc.TAG, "Failed to close the pipe of the camera", eIO);
+        }
+    }
+
+    /**
+     * Sends the control image directly instead of storing it in the spool first (control image fast path).
+     * <p>The image is sent as a whole (a new photo shares no chunks with the first image) and the token for the
+     * first image is requested while the server validates the control image. If the transfer fails, the connection
+     * is synchronized or reconnected and the image is spooled like any other image.</p>
+     *
+     * @param image the image taken with the camera
+     * @param prepared the scaled and recompressed image, null to send the original
+     * @return false if the transfer failed and the image has to be spooled
+     */
+    private boolean evaluateSendControlImage(File image, ImagePreprocessor.Result prepared){
+
+        Log.d(Misc.TAG, "Sending control image, " + (this.controlImageDeadline - System.currentTimeMillis())
+                + " ms left");
+        setStatus("Sending control image...");
+
+        ih.setDeduplication(false);
+        try {
+            boolean transferred = (prepared != null && prepared.isEncoded())
+                    ? ih.sendImage(prepared.getBuffer())
+                    : ih.sendImage(image);
+
+            if (transferred){
+                requestTokenSpeculatively();
+            }
+
+            if (!transferred || !evaluateImageResponse(image)){
+                //communication error, try synchronization
+                evaluateSynchronization();
+            }
+            return true;
+
+        }catch(SocketTimeoutException eST){
+
+            evaluateSynchronization();
+            return false;
+
+        }catch(IOException eIO){
+
+            evaluateReconnect("Error occurred, please contact your local overlord");
+            return false;
+
+        }catch(Exception e){
+
+            //error occurred, connection will be closed
+            this.userInterface.returnResult("Error occurred, please contact your local overlord");
+            interrupt();
+            return true;
+
+        }finally{
+            ih.setDeduplication(true);
+        }
+    }
+
+    /**
+     * Requests the token for the first image right after the control image was sent (pipelined requests only).
+     * <p>The server answers once it validated the control image, so the token arrives about with '.imageDone'
+     * instead of one round trip later.</p>
+     */
+    private void requestTokenSpeculatively(){
+
+        if (!Misc.CONTROL_FAST_PATH || !ch.isPipelining() || pendingToken != null){
+            return;
+        }
+
+        try {
+            pendingToken = ih.requestTokenPipelined();
+            this.speculativeToken = true;
+
+        }catch(IOException eIO){
+            //the token is requested after '.imageDone' as usual
+            Log.d(Misc.TAG, "Failed to request the token speculatively", eIO);
+        }
+    }
+
+    /**
+     * Drops the token requested with the control image after the server did not validate it.
+     */
+    private void discardSpeculativeToken(){
+        if (this.speculativeToken){
+            this.speculativeToken = false;
+            if (pendingToken != null){
+                pendingToken.cancel(false);
+                pendingToken = null;
+            }
+        }
+    }
+
+    /**
+     * Uploads the oldest image of the spool and evaluates the response of the server.
+     * <p>While the server waits for a control image only control images are sent, a control image
+     * the server did not ask for (anymore) is dropped. If the connection is lost the image stays in the spool
+     * and its upload is continued at the committed offset, also after a restart of the app.
+     * Gives up after Misc.UPLOAD_MAX_RESUMES attempts. Several new images are sent in one batch
+     * (see evaluateDrainBatch()).</p>
+     */
+    private void evaluateDrainSpool(){
+
+        //images that were not sent before need a single handshake together
+        if (!this.awaitingControlImage && Misc.SPOOL_BATCH_SIZE > 1){
+            List<UploadSpool.Entry> batch = this.spool.claimBatch(SPOOL_CONTROL, Boolean.toString(false),
+                    Misc.SPOOL_BATCH_SIZE);
+            if (!batch.isEmpty()){
+                evaluateDrainBatch(batch);
+                return;
+            }
+        }
+
+        UploadSpool.Entry entry = this.awaitingControlImage
+                ? this.spool.claim(SPOOL_CONTROL, Boolean.toString(true))
+                : this.spool.claim();
+        if (entry == null){
+            return;
+        }
+
+        String source = entry.getMetadata(SPOOL_SOURCE);
+        File image = (source != null) ? new File(source) : null;
+
+        //only the first image of a session can be sent now
+        if (!this.awaitingControlImage && Boolean.parseBoolean(entry.getMetadata(SPOOL_CONTROL))){
+            Log.d(Misc.TAG, "Dropping control image the server does not wait for: " + entry);
+            this.spool.complete(entry);
+            return;
+        }
+
+        boolean completed = false;
+        try {
+            UploadSession upload = this.spool.openSession(entry);
+
+            if (upload.getResumes() >= Misc.UPLOAD_MAX_RESUMES){
+                Log.d(Misc.TAG, "Giving up spooled upload: " + upload);
+                setStatus("Image transfer failed repeatedly, please try again.");
+                completed = true;
+                return;
+            }
+
+            Log.d(Misc.TAG, "Sending " + entry + ": " + upload);
+            setStatus("Sending image...");
+
+            boolean control = Misc.CONTROL_FAST_PATH && Boolean.parseBoolean(entry.getMetadata(SPOOL_CONTROL));
+
+            //kept to check the control image if the server asks for one
+            this.sentImageHash = PerceptualHash.parse(entry.getMetadata(SPOOL_HASH));
+            boolean transferred;
+            ih.setDeduplication(!control);
+            try {
+                transferred = ih.sendImage(entry.getImage(), upload);
+            }finally{
+                ih.setDeduplication(true);
+            }
+
+            //verified or rejected by the server, not sent again
+            completed = upload.isFinished();
+
+            if (transferred && control){
+                requestTokenSpeculatively();
+            }
+
+            if (transferred && evaluateImageResponse(image)){
+                return;
+            }
+
+            //communication error, try synchronization
+            evaluateSynchronization();
+
+        }catch(FileNotFoundException eFNF){
+
+            //the spooled image is gone
+            Log.e(Misc.TAG, "Spooled image could not be read: " + entry, eFNF);
+            completed = true;
+
+        } catch (SocketTimeoutException eST){
+
+            //the upload continues after the synchronization
+            evaluateSynchronization();
+
+            setStatus("Image transfer failed due to communication error. Reestablished synchronization to server.\nThe image will be sent again");
+
+        }catch(IOException eIO){
+
+            //the upload continues on the new connection
+            evaluateReconnect("Error occurred, please contact your local overlord");
+
+        }catch(Exception e){
+
+            //error occurred, connection will be closed (the image stays in the spool)
+            this.userInterface.returnResult("Error occurred, please contact your local overlord");
+            interrupt();
+
+        }finally{
+            if (completed){
+                this.spool.complete(entry);
+            }else {
+                this.spool.release(entry);
+            }
+        }
+    }
+
+    /**
+     * Uploads several spooled images in one batch (see ImageTransferHandler.sendImages()) and evaluates the
+     * response of the server, it answers once for the whole batch.
+     * <p>The verified images are removed from the spool, the others stay in it and are sent again. A batch is
+     * not resumed: if the connection is lost, all images of the batch are sent again.</p>
+     *
+     * @param entries the claimed entries, oldest first
+     */
+    private void evaluateDrainBatch(List<UploadSpool.Entry> entries){
+
+        List<File> images = new ArrayList<>();
+        for (UploadSpool.Entry entry : entries){
+            images.add(entry.getImage());
+        }
+
+        boolean[] verified = null;
+        try {
+            Log.d(Misc.TAG, "Sending " + entries.size() + " spooled images in one batch");
+            setStatus("Sending " + entries.size() + " images...");
+
+            //kept to check the control image if the server asks for one after the batch
+            this.sentImageHash = PerceptualHash.parse(entries.get(entries.size() - 1).getMetadata(SPOOL_HASH));
+            verified = ih.sendImages(images);
+
+            if (verified != null && evaluateImageResponse(null)){
+                return;
+            }
+
+            //communication error, try synchronization
+            evaluateSynchronization();
+
+        }catch(FileNotFoundException eFNF){
+
+            //a spooled image is gone, it is removed from the spool and the others are sent again
+            Log.e(Misc.TAG, "Spooled image of the batch could not be read", eFNF);
+            evaluateSynchronization();
+
+        } catch (SocketTimeoutException eST){
+
+            //the batch is sent again after the synchronization
+            evaluateSynchronization();
+
+            setStatus("Image transfer failed due to communication error. Reestablished synchronization to server.\nThe images will be sent again");
+
+        }catch(IOException eIO){
+
+            //the batch is sent again on the new connection
+            evaluateReconnect("Error occurred, please contact your local overlord");
+
+        }catch(Exception e){
+
+            //error occurred, connection will be closed (the images stay in the spool)
+            this.userInterface.returnResult("Error occurred, please contact your local overlord");
+            interrupt();
+
+        }finally{
+            for (int i = 0; i < entries.size(); i++){
+                UploadSpool.Entry entry = entries.get(i);
+                if ((verified != null && verified[i]) || !entry.getImage().isFile()){
+                    this.spool.complete(entry);
+                }else {
+                    this.spool.release(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scales and recompresses an image taken with the camera (see ImagePreprocessor).
+     *
+     * @param image the image taken with the camera
+     * @return the prepared image, null if the original image has to be sent
+     */
+    private ImagePreprocessor.Result evaluatePreprocessImage(File image){
+        try {
+            ImagePreprocessor.Result result = this.preprocessor.process(image);
+            Log.d(Misc.TAG, result.toString());
+            return result;
+
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to preprocess the image, sending the original", eIO);
+            return null;
+        }
+    }
+
+    /**
+     * Calculates the PerceptualHash of an image taken with the camera.
+     *
+     * @param image the image taken with the camera
+     * @return the hash, null if the image could not be decoded
+     */
+    private PerceptualHash evaluatePerceptualHash(File image){
+        try {
+            long started = System.nanoTime();
+            PerceptualHash hash = PerceptualHash.of(image);
+            Log.d(Misc.TAG, "Perceptual hash " + hash + " in " + (System.nanoTime() - started) / 1000000L + " ms");
+            return hash;
+
+        }catch(IOException eIO){
+            Log.e(Misc.TAG, "Failed to hash the image, it is not checked before the upload", eIO);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the preprocessing of the camera images (e.g. other dimensions or quality).
+     *
+     * @param preprocessor the preprocessor for the next images
+     */
+    public void setImagePreprocessor(ImagePreprocessor preprocessor){
+        this.preprocessor = preprocessor;
+    }
+
+    /**************************************************************************************************
+     takes an image with the camera
+     **************************************************************************************************/
+
+    /**
+     * Attempts to take an image with the camera of the phone.
+     * <p>The image is stored on the sd card in directory defined in the Misc class.
+     * The name of the iamge is based on the current time of the phone.</p>
+     *
+     * @return a file pointing to the captured image, null if it could not be taken or the user cancelled it
+     */
+    private File evaluateTakeImageWithCamera(){
+
+        //the intent may have been prepared when the control image was requested
+        if (this.cameraIntent == null && !prepareCameraIntent()){
+            return null;
+        }
+        Intent takeImageIntent = this.cameraIntent;
+        File fileImage = this.cameraImage;
+        this.cameraIntent = null;
+        this.cameraImage = null;
+
+        //the result of the camera may arrive before the wait starts
+        CountDownLatch taken = new CountDownLatch(1);
+        this.imageCancelled = false;
+        this.imageTaken = taken;
+
+        //start activity to take picture (from user interface activity)
+        this.userInterface.startActivityForResult(takeImageIntent, Misc.REQUEST_IMAGE_CAPTURE);
+
+        //wait for user to confirm that the image was taken
+        //setState(STATE_IMAGE_CONFIRM);
+
+        setStatus("Please confirm the image.");
+
+        try {
+            taken.await();
+        }catch(InterruptedException eI){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (this.imageCancelled){
+            Log.d(Misc.TAG, "Image capture cancelled by the user");
+            if (fileImage.exists() && !fileImage.delete()){
+                Log.d(Misc.TAG, "Failed to delete the cancelled image");
+            }
+            return null;
+        }
+
+        //user confirmed, proceed with image transfer
+        //setState(STATE_IMAGE_TRANSFER);
+
+        return fileImage;
+    }
+
+    /**
+     * Creates the intent for the camera and the file the image will be stored in.
+     * <p>The image is stored on the sd card in directory defined in the Misc class.
+     * The name of the image is based on the current time of the phone.</p>
+     *
+     * @return false if no camera activity is available
+     */
+    private boolean prepareCameraIntent(){
+
+        //get path to picture from Misc.class
+        File directory = Misc.getDirectory();
+        File fileImage;
+
+        //string to define the name of the image file
+        String info;
+        info = new SimpleDateFormat("yyyyMMdd_HH_mm_ss", Locale.GERMANY).format(new Date());
+
+        //create file in the directory with a filename depending on the time
+        fileImage = new File(directory, "wood" + info + ".jpg");
+
+        //for the activity that takes the picture
+        Uri fileUri = Uri.fromFile(fileImage);
+
+        //create intent to take the picture
+        Intent takeImageIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        if (takeImageIntent.resolveActivity(this.userInterface.getPackageManager()) == null) {
+            return false;
+        }
+        takeImageIntent.putExtra(MediaStore.EXTRA_OUTPUT, fileUri);
+
+        this.cameraIntent = takeImageIntent;
+        this.cameraImage = fileImage;
+        return true;
+    }
+
+    /**************************************************************************************************
+     miscellaneous
+     **************************************************************************************************/
+
+    /**
+     * Reads and displays instructions from server.
+     *
+     * @throws IOException if server responded unexpected and the consequential synchronization attempt failed
+     */
+    private void prepareControlImage() throws IOException {
+
+        if (!(ch.listenForLine(".instructions"))) {
+
+            //communication error, try synchronization
+            evaluateSynchronization();
+
+            setStatus("Server did not send instructions for a second image, reestablished synchronization. \n If this error continues contact your local Overlord");
+            return;
+        }
+
+        //received instructions
+        String instructions = ch.readLineFromServer();
+        setStatus("Image transfer successful, please take a control image within " + Misc.TIME_FOR_CONTROL_IMAGE + " seconds with the following instructions:\n" + instructions);
+    }
+
+    /**
+     * Prepares the upload of the control image while the user reads the instructions.
+     * <p>The server rejects a control image that arrives later than Misc.TIME_FOR_CONTROL_IMAGE seconds after its
+     * request with '.imageTime'. The camera intent and the image file are created now, the upload buffers are
+     * allocated and, if pings are enabled, a ping refreshes the round trip time the timeouts of the upload are
+     * derived from. Until the control image is sent the heartbeat keeps the connection alive.</p>
+     */
+    private void primeControlImage(){
+
+        this.controlImageDeadline = System.currentTimeMillis() + Long.parseLong(Misc.TIME_FOR_CONTROL_IMAGE) * 1000L;
+
+        if (Misc.REAL_PHONE && !Misc.CAPTURE_STREAMING && this.cameraIntent == null && !prepareCameraIntent()){
+            Log.d(Misc.TAG, "No camera activity to prepare for the control image");
+        }
+
+        BufferPool.getShared().prime();
+
+        if (!ch.isHeartbeatEnabled()){
+            return;
+        }
+        try {
+            if (!ch.ping()){
+                Log.d(Misc.TAG, "No pong while preparing the control image");
+            }
+        }catch(ProtocolException eP){
+            evaluateSynchronization();
+        }catch(IOException eIO){
+            //the next heartbeat finds out whether the connection is lost
+            Log.d(Misc.TAG, "Failed to ping while preparing the control image", eIO);
+        }
+    }
+
+    /**
+     * Sets the state of the client. Will call the activity.setUI() function to update the user interface according to the state.
+     * Possible states are:
      * <p>STATE_IMAGE_IDLE: idle (waiting for user input)</p>
      * <p>STATE_IMAGE_TRANSFER: image transfer in progress</p>
      * <p>STATE_IMAGE_CONFIRM:  waiting for user to confirm image capture</p>
@@ -586,6 +1619,16 @@ public class Client extends Thread {
         return this.state;
     }
 
+    /**
+     * Hands a connection over that was warmed up in the background.
+     * Must be called before the thread is started.
+     *
+     * @param warmer the warmer connecting to the ip of this client
+     */
+    public void usePreparedConnection(ConnectionWarmer warmer){
+        this.warmer = warmer;
+    }
+
     /**
      * Tells the client what activity acts as the user interface.
      *
@@ -652,10 +1695,75 @@ public class Client extends Thread {
         this.requestToken = true;
     }
 
+    /**
+     * Sends the answer of the player to the server.
+     *
+     * @param color the color the player touched
+     */
+    public void sendAnswer(int color){
+        sendGameMessage("answer " + color);
+    }
+
+    /**
+     * Sends the action answer of the player to the server.
+     */
+    public void sendActionAnswer(){
+        sendGameMessage("action");
+    }
+
+    /**
+     * Sends a message of the game without blocking the calling thread.
+     * <p>With the binary frame protocol the message is queued ahead of running uploads, otherwise
+     * the thread of the client sends it with the next iteration of its loop.</p>
+     *
+     * @param message the message of the game
+     */
+    private void sendGameMessage(String message){
+        CommunicationHandler handler = this.ch;
+        if (handler != null && handler.isPipelining() && this.gameMessages.isEmpty()){
+            try {
+                handler.sendGameMessage(message);
+                return;
+            }catch(IOException eIO){
+                //sent again after the connection was recovered
+                Log.d(Misc.TAG, "Failed to send game message, will retry", eIO);
+            }
+        }
+        this.gameMessages.add(message);
+    }
+
+    /**
+     * Sends the queued messages of the game.
+     */
+    private void evaluateGameMessages(){
+        String message;
+        while ((message = this.gameMessages.peek()) != null){
+            try {
+                this.ch.sendGameMessage(message);
+                this.gameMessages.poll();
+            }catch(IOException eIO){
+                evaluateReconnect("Connection to server lost, please try again");
+                return;
+            }
+        }
+    }
+
     /**
      * Sets the flag that the user confirmed the taken picture.
      */
-    public void setImageConfirmed() { this.imageConfirmed = true; }
+    public void setImageConfirmed() { this.imageTaken.countDown(); }
+
+    /**
+     * Ends a capture the user cancelled in the camera, the client stops waiting for the image.
+     */
+    public void setImageCancelled(){
+        this.imageCancelled = true;
+        this.imageTaken.countDown();
+        CaptureProvider.Capture capture = this.capture;
+        if (capture != null){
+            capture.cancel();
+        }
+    }
 
     /**
      * Sets the status of the client to given text. Will also update the user interface!
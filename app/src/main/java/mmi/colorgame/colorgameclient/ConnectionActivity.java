@@ -2,13 +2,18 @@ package mmi.colorgame.colorgameclient;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.os.Handler;
 import android.provider.Settings;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Patterns;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import config.ConnectionWarmer;
 import config.Misc;
 
 public class ConnectionActivity extends AppCompatActivity {
@@ -21,6 +26,23 @@ public class ConnectionActivity extends AppCompatActivity {
 
     private Client activeThread;
 
+    /**
+     * Warms up the connection to the ip typed in so far (null if none is running).
+     */
+    private ConnectionWarmer warmer;
+
+    private final Handler handler = new Handler();
+
+    /**
+     * Starts the warm up once the user stopped typing for Misc.WARM_UP_DELAY.
+     */
+    private final Runnable warmUpTask = new Runnable() {
+        @Override
+        public void run() {
+            warmUpConnection();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
@@ -31,9 +53,61 @@ public class ConnectionActivity extends AppCompatActivity {
 
         this.ipEditText = (EditText) findViewById(R.id.editText_ip);
 
+        //warm up the connection as soon as a valid ip is typed in
+        this.ipEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                handler.removeCallbacks(warmUpTask);
+                handler.postDelayed(warmUpTask, Misc.WARM_UP_DELAY);
+            }
+        });
+
         this.returnIntent = getIntent();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(warmUpTask);
+        //a connection that was not taken by a client is closed
+        if (this.warmer != null){
+            this.warmer.cancel();
+            this.warmer = null;
+        }
+    }
+
+    /**
+     * Starts to connect to the typed in ip in the background, if it is a valid ip and no client is running.
+     * A warm up for another ip is dropped.
+     */
+    private void warmUpConnection(){
+
+        if (global.getCurrentThread() != null && global.getCurrentThread().isAlive()){
+            return;
+        }
+
+        String ip = this.ipEditText.getText().toString();
+
+        if (this.warmer != null){
+            if (this.warmer.isFor(ip)){
+                return;
+            }
+            this.warmer.cancel();
+            this.warmer = null;
+        }
+
+        if (Patterns.IP_ADDRESS.matcher(ip).matches()){
+            this.warmer = new ConnectionWarmer(ip, getResources().openRawResource(R.raw.client));
+            this.warmer.start();
+        }
+    }
+
     public void connectToServer(View view){
 
         if(global.getCurrentThread() == null || !global.getCurrentThread().isAlive()) {
@@ -45,6 +119,18 @@ public class ConnectionActivity extends AppCompatActivity {
                 Toast.makeText(this, "Attempting to connect to Server...", Toast.LENGTH_SHORT).show();
                 //valid ip
                 this.activeThread = new Client(ip);
+
+                //hand over the connection warmed up for this ip
+                handler.removeCallbacks(warmUpTask);
+                if (this.warmer != null){
+                    if (this.warmer.isFor(ip)){
+                        this.activeThread.usePreparedConnection(this.warmer);
+                    }else{
+                        this.warmer.cancel();
+                    }
+                    this.warmer = null;
+                }
+
                 this.activeThread.start();
                 global.setCurrentThread(this.activeThread);
             } else {
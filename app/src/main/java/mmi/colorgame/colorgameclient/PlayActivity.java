@@ -190,10 +190,11 @@ public class PlayActivity extends AppCompatActivity {
                 global.increaseSocre();
             }
             this.activeGame.restart();
+        }else {
+            //send answer to client in multiplayer, it is written ahead of running image uploads
+            this.activeThread.sendAnswer(color);
         }
 
-        //todo send answer to client in multiplayer
-
 
         showScore();
         setUI();
@@ -212,8 +213,10 @@ public class PlayActivity extends AppCompatActivity {
             //start new game, wwith random colors
             this.activeGame.restart();
         }
-
-        //todo multiplayer
+        //multiplayer
+        else {
+            this.activeThread.sendActionAnswer();
+        }
 
         showScore();
         setUI();
@@ -272,6 +275,19 @@ public class PlayActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == Misc.REQUEST_IMAGE_CAPTURE && this.activeThread != null){
+            if (resultCode == RESULT_OK){
+                this.activeThread.setImageConfirmed();
+            }else {
+                //the user backed out of the camera, the client must not wait for the image
+                this.activeThread.setImageCancelled();
+            }
+        }
+    }
+
     /**
      * Sets the intent with a message, so the calling activity can display what happened.
      *
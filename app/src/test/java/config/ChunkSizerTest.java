@@ -0,0 +1,134 @@
+package config;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adaptive chunk sizing on simulated links, the time is advanced by the simulated duration of every write.
+ */
+public class ChunkSizerTest {
+
+    /**
+     * Sends chunks over a link whose speed may depend on the size of the chunks.
+     */
+    private abstract static class SimulatedLink extends ChunkSizer {
+
+        private long time;
+
+        SimulatedLink(int initialSize){
+            super(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, initialSize);
+        }
+
+        /**
+         * Returns how long the link needs for a write.
+         */
+        abstract long nanosFor(int size);
+
+        @Override
+        long now(){
+            return this.time;
+        }
+
+        /**
+         * Sends one chunk of the current size.
+         *
+         * @return the size of the chunk
+         */
+        int send(){
+            int size = getChunkSize();
+            long nanos = nanosFor(size);
+            this.time += nanos;
+            record(size, nanos);
+            return size;
+        }
+    }
+
+    @After
+    public void tearDown(){
+        //forTransfer() starts where the last transfer ended
+        new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, Misc.CHUNK_INITIAL_SIZE).finish();
+    }
+
+    @Test
+    public void initialSize_isClamped(){
+        assertEquals(Misc.CHUNK_MIN_SIZE, new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, 1).getChunkSize());
+        assertEquals(Misc.CHUNK_MAX_SIZE,
+                new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, Integer.MAX_VALUE).getChunkSize());
+    }
+
+    @Test
+    public void perWriteOverhead_growsToMaximum(){
+        //1 ms per write and 10 MB/s: larger chunks are always faster
+        SimulatedLink link = new SimulatedLink(Misc.CHUNK_INITIAL_SIZE) {
+            @Override
+            long nanosFor(int size){
+                return 1000000L + size * 100L;
+            }
+        };
+
+        for (int i = 0; i < 200; i++){
+            link.send();
+        }
+        assertEquals(Misc.CHUNK_MAX_SIZE, link.getChunkSize());
+    }
+
+    @Test
+    public void slowWrite_halvesRightAway(){
+        ChunkSizer sizer = new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, 64 * 1024);
+        sizer.record(64 * 1024, (Misc.CHUNK_MAX_LATENCY + 1) * 1000000L);
+        assertEquals(32 * 1024, sizer.getChunkSize());
+    }
+
+    @Test
+    public void latencyLimit_keepsWritesShort(){
+        //1 ms per write and 200 KB/s: chunks of 64 KB block the connection for more than CHUNK_MAX_LATENCY
+        SimulatedLink link = new SimulatedLink(Misc.CHUNK_MAX_SIZE) {
+            @Override
+            long nanosFor(int size){
+                return 1000000L + size * 5000L;
+            }
+        };
+
+        //the first chunks are too large, each of them halves the size
+        link.send();
+        link.send();
+        link.send();
+        for (int i = 0; i < 500; i++){
+            int size = link.send();
+            assertTrue("Chunk of " + size + " bytes", link.nanosFor(size) <= Misc.CHUNK_MAX_LATENCY * 1000000L);
+        }
+    }
+
+    @Test
+    public void throughputPeak_staysNearPeak(){
+        //chunks larger than 64 KB overflow a buffer on the way and drop to 2 MB/s
+        SimulatedLink link = new SimulatedLink(Misc.CHUNK_MIN_SIZE) {
+            @Override
+            long nanosFor(int size){
+                return 1000000L + size * ((size <= 64 * 1024) ? 100L : 500L);
+            }
+        };
+
+        //every step takes CHUNK_STEP_BYTES, the small chunks at the beginning need many chunks per step
+        while (link.getTotalBytes() < 32L * Misc.CHUNK_STEP_BYTES){
+            link.send();
+        }
+        for (int i = 0; i < 200; i++){
+            int size = link.send();
+            assertTrue("Chunk of " + size + " bytes", size >= 32 * 1024);
+            assertTrue("Chunk of " + size + " bytes", size <= 128 * 1024);
+        }
+    }
+
+    @Test
+    public void finish_startsNextTransferWithSize(){
+        ChunkSizer sizer = new ChunkSizer(Misc.CHUNK_MIN_SIZE, Misc.CHUNK_MAX_SIZE, 64 * 1024);
+        sizer.record(64 * 1024, 1000000L);
+        sizer.finish();
+
+        assertEquals(64 * 1024, ChunkSizer.forTransfer().getChunkSize());
+        assertEquals(64 * 1024, sizer.getTotalBytes());
+    }
+}
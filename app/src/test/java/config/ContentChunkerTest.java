@@ -0,0 +1,173 @@
+package config;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Content defined chunks and how much of an image the server already has when it is sent again.
+ * <p>The re-captures are JPEGs of the same synthetic scene as a camera would take it a second time: shifted by a
+ * pixel, with new sensor noise or a slightly different exposure.</p>
+ */
+public class ContentChunkerTest {
+
+    private static final int WIDTH = 1600, HEIGHT = 1200;
+
+    @Test
+    public void split_coversData() throws Exception {
+        byte[] data = random(1000 * 1000, 1);
+        List<ContentChunker.Chunk> chunks = ContentChunker.getDefault().split(ByteBuffer.wrap(data));
+
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++){
+            ContentChunker.Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.getOffset());
+            assertTrue(chunk.getLength() <= Misc.CDC_MAX_SIZE);
+            if (i < chunks.size() - 1){
+                assertTrue(chunk.getLength() >= Misc.CDC_MIN_SIZE);
+            }
+            offset += chunk.getLength();
+        }
+        assertEquals(data.length, offset);
+    }
+
+    @Test
+    public void split_isStable() throws Exception {
+        byte[] data = random(300 * 1000, 2);
+
+        //one flipped byte changes the chunk it is in, the boundaries after it are found again
+        byte[] flipped = data.clone();
+        flipped[150 * 1000] ^= 1;
+        assertTrue(changedChunks(data, flipped) <= 2);
+
+        //inserted bytes shift the content, the chunks after them are found again
+        byte[] inserted = new byte[data.length + 100];
+        System.arraycopy(data, 0, inserted, 0, 1000);
+        System.arraycopy(data, 1000, inserted, 1100, data.length - 1000);
+        assertTrue(sharedRatio(data, inserted) > 0.9);
+    }
+
+    @Test
+    public void dedupRatio_jpegRecaptures() throws Exception {
+        byte[] original = jpeg(scene(0, 0, 1.0, 1));
+
+        double resent = sharedRatio(original, original.clone());
+        double comment = sharedRatio(original, withComment(original));
+        double shifted = sharedRatio(original, jpeg(scene(1, 0, 1.0, 1)));
+        double noise = sharedRatio(original, jpeg(scene(0, 0, 1.0, 2)));
+        double exposure = sharedRatio(original, jpeg(scene(0, 0, 1.03, 1)));
+
+        System.out.println(String.format("Dedup ratio of a %d KB JPEG: resent %.3f, comment added %.3f, "
+                + "shifted 1 px %.3f, new noise %.3f, exposure +3%% %.3f",
+                original.length / 1024, resent, comment, shifted, noise, exposure));
+
+        //the same file sent again and changed metadata are found
+        assertEquals(1.0, resent, 0);
+        assertTrue(comment > 0.9);
+
+        //a new photo of the same scene shares (almost) nothing, deduplication only costs the round trip
+        assertTrue(shifted < 0.05);
+        assertTrue(noise < 0.05);
+        assertTrue(exposure < 0.05);
+    }
+
+    /**
+     * Returns the share of the bytes of the second image that are in chunks of the first one.
+     */
+    private static double sharedRatio(byte[] first, byte[] second) throws Exception {
+        Set<ByteBuffer> known = new HashSet<>();
+        for (ContentChunker.Chunk chunk : ContentChunker.getDefault().split(ByteBuffer.wrap(first))){
+            known.add(ByteBuffer.wrap(chunk.getFingerprint()));
+        }
+
+        long shared = 0;
+        for (ContentChunker.Chunk chunk : ContentChunker.getDefault().split(ByteBuffer.wrap(second))){
+            if (known.contains(ByteBuffer.wrap(chunk.getFingerprint()))){
+                shared += chunk.getLength();
+            }
+        }
+        return shared / (double) second.length;
+    }
+
+    private static int changedChunks(byte[] first, byte[] second) throws Exception {
+        List<ContentChunker.Chunk> chunks = ContentChunker.getDefault().split(ByteBuffer.wrap(second));
+        Set<ByteBuffer> known = new HashSet<>();
+        for (ContentChunker.Chunk chunk : ContentChunker.getDefault().split(ByteBuffer.wrap(first))){
+            known.add(ByteBuffer.wrap(chunk.getFingerprint()));
+        }
+        int changed = 0;
+        for (ContentChunker.Chunk chunk : chunks){
+            if (!known.contains(ByteBuffer.wrap(chunk.getFingerprint()))){
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static byte[] random(int size, long seed){
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Renders a scene of gradients and patches of wood like texture with sensor noise.
+     *
+     * @param dx horizontal shift of the scene in pixels
+     * @param dy vertical shift of the scene in pixels
+     * @param exposure factor for the brightness
+     * @param noiseSeed seed of the sensor noise, a new capture has new noise
+     */
+    private static BufferedImage scene(int dx, int dy, double exposure, long noiseSeed){
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random noise = new Random(noiseSeed);
+        for (int y = 0; y < HEIGHT; y++){
+            for (int x = 0; x < WIDTH; x++){
+                int sx = x + dx, sy = y + dy;
+                double grain = Math.sin(sx * 0.05 + Math.sin(sy * 0.01) * 8) * 30 + Math.sin(sx * 0.9 + sy * 0.3) * 8;
+                double r = 140 + grain + sy * 0.03;
+                double g = 90 + grain * 0.7 + ((sx / 200 + sy / 150) % 2) * 20;
+                double b = 50 + grain * 0.4 + sx * 0.02;
+                int n = (int) (noise.nextGaussian() * 6);
+                image.setRGB(x, y, (clamp(r * exposure + n) << 16) | (clamp(g * exposure + n) << 8) | clamp(b * exposure + n));
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(double value){
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Inserts a comment segment after the start of the image, as an app editing the metadata would.
+     */
+    private static byte[] withComment(byte[] jpeg){
+        byte[] text = "edited".getBytes();
+        byte[] result = new byte[jpeg.length + 4 + text.length];
+        System.arraycopy(jpeg, 0, result, 0, 2);
+        result[2] = (byte) 0xFF;
+        result[3] = (byte) 0xFE;
+        result[4] = 0;
+        result[5] = (byte) (2 + text.length);
+        System.arraycopy(text, 0, result, 6, text.length);
+        System.arraycopy(jpeg, 2, result, 6 + text.length, jpeg.length - 2);
+        return result;
+    }
+}
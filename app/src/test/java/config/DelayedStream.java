@@ -0,0 +1,218 @@
+package config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One direction of a simulated connection, every packet written to the output arrives at the input after the
+ * one way delay.
+ * <p>Without a Link a packet is sent on every flush and the bandwidth is unlimited. With a Link the output
+ * sends a packet whenever SEGMENT bytes are buffered like a socket does, the packets of all streams on the link
+ * share its bandwidth and a stream has at most its window unacknowledged (a packet is acknowledged a round trip
+ * after it was sent).</p>
+ */
+final class DelayedStream {
+
+    /**
+     * Largest packet sent on a Link.
+     */
+    static final int SEGMENT = 16 * 1024;
+
+    private final DelayQueue<Packet> packets = new DelayQueue<>();
+    private final long delayNanos;
+    private final AtomicLong counter;
+    private final Link link;
+    private final int window;
+    /**
+     * Time of the acknowledgement and size of every unacknowledged packet.
+     */
+    private final ArrayDeque<long[]> unacknowledged = new ArrayDeque<>();
+    private long inFlight;
+    private long sequence;
+
+    final OutputStream output = new OutputStream() {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            this.buffer.write(b);
+            segment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.buffer.write(b, off, len);
+            segment();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.buffer.size() > 0){
+                send(this.buffer.toByteArray());
+                this.buffer.reset();
+            }
+        }
+
+        private void segment() throws IOException {
+            if (link != null && this.buffer.size() >= SEGMENT){
+                flush();
+            }
+        }
+    };
+
+    final InputStream input = new InputStream() {
+
+        private ByteBuffer current = ByteBuffer.allocate(0);
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0){
+                return 0;
+            }
+            while (!this.current.hasRemaining()){
+                try {
+                    this.current = ByteBuffer.wrap(packets.take().data);
+                }catch(InterruptedException eI){
+                    throw new IOException(eI);
+                }
+            }
+            int n = Math.min(len, this.current.remaining());
+            this.current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available(){
+            return this.current.remaining();
+        }
+    };
+
+    /**
+     * Creates a stream with unlimited bandwidth that sends a packet on every flush.
+     *
+     * @param delayMillis the one way delay
+     * @param counter counts the packets
+     */
+    DelayedStream(int delayMillis, AtomicLong counter){
+        this(delayMillis, counter, null, 0);
+    }
+
+    /**
+     * Creates a stream on a link with limited bandwidth.
+     *
+     * @param delayMillis the one way delay
+     * @param counter counts the packets
+     * @param link the link shared with other streams
+     * @param window the maximum of unacknowledged bytes
+     */
+    DelayedStream(int delayMillis, AtomicLong counter, Link link, int window){
+        this.delayNanos = delayMillis * 1000000L;
+        this.counter = counter;
+        this.link = link;
+        this.window = window;
+    }
+
+    private synchronized void send(byte[] data) throws IOException {
+        long now = System.nanoTime();
+        long leaves = now;
+        if (this.link != null){
+            now = awaitWindow(data.length);
+            leaves = this.link.transmit(data.length, now);
+            this.unacknowledged.add(new long[]{leaves + 2 * this.delayNanos, data.length});
+            this.inFlight += data.length;
+        }
+        this.counter.incrementAndGet();
+        this.packets.put(new Packet(data, leaves + this.delayNanos, this.sequence++));
+    }
+
+    /**
+     * Waits until the packet fits into the window.
+     *
+     * @return the current time
+     */
+    private long awaitWindow(int bytes) throws IOException {
+        while (true){
+            long now = System.nanoTime();
+            while (!this.unacknowledged.isEmpty() && this.unacknowledged.peek()[0] <= now){
+                this.inFlight -= this.unacknowledged.poll()[1];
+            }
+            if (this.inFlight == 0 || this.inFlight + bytes <= this.window){
+                return now;
+            }
+            long nanos = this.unacknowledged.peek()[0] - now;
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }catch(InterruptedException eI){
+                throw new IOException(eI);
+            }
+        }
+    }
+
+    /**
+     * The bandwidth shared by the streams of a link, the packets leave the link one after the other.
+     */
+    static final class Link {
+
+        private final long bytesPerSecond;
+        private long busyUntil;
+        private long sent;
+
+        Link(long bytesPerSecond){
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Queues the bytes on the link.
+         *
+         * @return the time the last byte leaves the link
+         */
+        synchronized long transmit(int bytes, long now){
+            this.busyUntil = Math.max(this.busyUntil, now) + bytes * 1000000000L / this.bytesPerSecond;
+            this.sent += bytes;
+            return this.busyUntil;
+        }
+
+        synchronized long getSent(){
+            return this.sent;
+        }
+    }
+
+    private static final class Packet implements Delayed {
+
+        final byte[] data;
+        private final long deliverAt;
+        private final long sequence;
+
+        Packet(byte[] data, long deliverAt, long sequence){
+            this.data = data;
+            this.deliverAt = deliverAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(this.deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other){
+            //packets of a stream keep their order
+            return Long.compare(this.sequence, ((Packet) other).sequence);
+        }
+    }
+}
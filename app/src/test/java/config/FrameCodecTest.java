@@ -0,0 +1,142 @@
+package config;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of varints and frames of the binary frame protocol.
+ */
+public class FrameCodecTest {
+
+    private static final int[] VALUES = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+            FrameCodec.MAX_PAYLOAD, Misc.IMAGE_SIZE_UNKNOWN, -1};
+
+    @Test
+    public void varint_roundTrip() throws Exception {
+        for (int value : VALUES){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int written = FrameCodec.writeVarint(out, value);
+            byte[] encoded = out.toByteArray();
+
+            assertEquals(encoded.length, written);
+            assertArrayEquals(encoded, FrameCodec.encodeVarint(value));
+            assertEquals(value, FrameCodec.readVarint(new ByteArrayInputStream(encoded)));
+            assertEquals(value, FrameCodec.decodeVarint(encoded));
+        }
+    }
+
+    @Test
+    public void varint_lengths() throws Exception {
+        assertEquals(1, FrameCodec.encodeVarint(0).length);
+        assertEquals(1, FrameCodec.encodeVarint(127).length);
+        assertEquals(2, FrameCodec.encodeVarint(128).length);
+        assertEquals(5, FrameCodec.encodeVarint(-1).length);
+    }
+
+    @Test(expected = EOFException.class)
+    public void readVarint_truncated() throws Exception {
+        FrameCodec.readVarint(new ByteArrayInputStream(new byte[]{(byte) 0x80}));
+    }
+
+    @Test(expected = IOException.class)
+    public void readVarint_tooLong() throws Exception {
+        FrameCodec.readVarint(new ByteArrayInputStream(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01}));
+    }
+
+    @Test(expected = EOFException.class)
+    public void decodeVarint_empty() throws Exception {
+        FrameCodec.decodeVarint(new byte[0]);
+    }
+
+    @Test(expected = EOFException.class)
+    public void decodeVarint_truncated() throws Exception {
+        byte[] encoded = FrameCodec.encodeVarint(FrameCodec.MAX_PAYLOAD);
+        FrameCodec.decodeVarint(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeVarint_tooLong() throws Exception {
+        FrameCodec.decodeVarint(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01});
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeVarint_trailingBytes() throws Exception {
+        FrameCodec.decodeVarint(new byte[]{0x01, 0x02});
+    }
+
+    @Test
+    public void frame_roundTrip() throws Exception {
+        Frame[] frames = {
+                Frame.forString(".sync"),
+                Frame.forString("some text"),
+                Frame.forInt(128),
+                Frame.forInt(Misc.IMAGE_SIZE_UNKNOWN),
+                new Frame(Frame.OP_DATA, 300, new byte[]{1, 2, 3}),
+                new Frame(Frame.OP_DATA, Integer.MAX_VALUE, null)
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Frame frame : frames){
+            FrameCodec.writeFrame(out, frame);
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (Frame frame : frames){
+            Frame read = FrameCodec.readFrame(in);
+            assertEquals(frame.getOpcode(), read.getOpcode());
+            assertEquals(frame.getRequestId(), read.getRequestId());
+            assertArrayEquals(frame.getPayload(), read.getPayload());
+            assertEquals(frame.asString(), read.asString());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void frame_strings() throws Exception {
+        assertTrue(Frame.forString(".sync").isCommand());
+        assertEquals(".sync", Frame.forString(".sync").asString());
+        assertEquals("0", Frame.forInt(0).asString());
+        assertEquals("-1", Frame.forInt(Misc.IMAGE_SIZE_UNKNOWN).asString());
+        assertNull(new Frame(Frame.OP_DATA, new byte[]{1}).asString());
+    }
+
+    @Test
+    public void frame_maxPayload() throws Exception {
+        byte[] payload = new byte[FrameCodec.MAX_PAYLOAD];
+        payload[payload.length - 1] = 7;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(out, new Frame(Frame.OP_DATA, 1, payload));
+        Frame read = FrameCodec.readFrame(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(FrameCodec.MAX_PAYLOAD, read.getPayloadLength());
+        assertEquals(7, read.getPayload()[payload.length - 1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void frame_payloadTooLarge() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.writeHeader(out, Frame.OP_DATA, 1, FrameCodec.MAX_PAYLOAD + 1);
+        FrameCodec.readFrame(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected = EOFException.class)
+    public void frame_truncatedPayload() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(out, new Frame(Frame.OP_DATA, 1, new byte[10]));
+        byte[] encoded = out.toByteArray();
+        FrameCodec.readFrame(new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void frame_invalidInt() throws Exception {
+        new Frame(Frame.OP_INT, new byte[]{(byte) 0x80}).asString();
+    }
+}
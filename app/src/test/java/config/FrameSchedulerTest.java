@@ -0,0 +1,208 @@
+package config;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Failures of the thread of a FrameScheduler must reach the writers instead of blocking them,
+ * and the pooled buffers of frames that are not written must return to their pool.
+ */
+public class FrameSchedulerTest {
+
+    private FrameScheduler scheduler;
+
+    @After
+    public void tearDown(){
+        if (this.scheduler != null){
+            this.scheduler.stop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void runtimeExceptionInSink_failsWriters() throws Exception {
+        this.scheduler = new FrameScheduler(new FrameScheduler.Sink() {
+            @Override
+            public void write(Frame frame, int priorityClass){
+                throw new IllegalStateException("broken sink");
+            }
+
+            @Override
+            public void idle(){
+            }
+        });
+        this.scheduler.start();
+
+        this.scheduler.submit(Frame.forString(".sync"), FrameScheduler.CLASS_BULK);
+        try {
+            this.scheduler.awaitDrained();
+            fail("awaitDrained() returned although the frame was not written");
+        }catch(IOException eIO){
+            assertTrue(eIO.getCause() instanceof IOException);
+            assertTrue(eIO.getCause().getCause() instanceof IllegalStateException);
+        }
+
+        try {
+            this.scheduler.submit(Frame.forString(".sync"), FrameScheduler.CLASS_CONTROL);
+            fail("submit() accepted a frame after the scheduler failed");
+        }catch(IOException expected){
+            //the connection is closed
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void runtimeExceptionInIdle_failsWriters() throws Exception {
+        this.scheduler = new FrameScheduler(new FrameScheduler.Sink() {
+            @Override
+            public void write(Frame frame, int priorityClass){
+            }
+
+            @Override
+            public void idle(){
+                throw new IllegalStateException("broken flush");
+            }
+        });
+        this.scheduler.start();
+
+        this.scheduler.submit(Frame.forString(".sync"), FrameScheduler.CLASS_GAME);
+        try {
+            this.scheduler.awaitDrained();
+            fail("awaitDrained() returned although the stream was not flushed");
+        }catch(IOException expected){
+            //the connection is closed
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void stopDuringSubmit_releasesBuffers() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        this.scheduler = new FrameScheduler(new BlockingSink(writing, unblock, false));
+        this.scheduler.start();
+
+        BufferPool pool = new BufferPool(Misc.BULK_MAX_QUEUED * 4, 4);
+        Thread submitter = submitInBackground(pool);
+        writing.await();
+        awaitBlocked(submitter);
+
+        this.scheduler.stop();
+        submitter.join();
+        unblock.countDown();
+
+        awaitReleased(pool);
+    }
+
+    @Test(timeout = 10000)
+    public void failureDuringSubmit_releasesBuffers() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        this.scheduler = new FrameScheduler(new BlockingSink(writing, unblock, true));
+        this.scheduler.start();
+
+        BufferPool pool = new BufferPool(Misc.BULK_MAX_QUEUED * 4, 4);
+        Thread submitter = submitInBackground(pool);
+        writing.await();
+        awaitBlocked(submitter);
+
+        //the write fails, the submitter and the queued slices must not keep the buffer
+        unblock.countDown();
+        submitter.join();
+
+        awaitReleased(pool);
+    }
+
+    @Test
+    public void submitAfterStop_releasesBuffer() throws Exception {
+        this.scheduler = new FrameScheduler(new BlockingSink(new CountDownLatch(1), new CountDownLatch(0), false));
+        this.scheduler.stop();
+
+        BufferPool pool = new BufferPool(Misc.BULK_SLICE_SIZE * 2, 4);
+        for (int size : new int[]{Misc.BULK_SLICE_SIZE, Misc.BULK_SLICE_SIZE * 2}){
+            ByteBuffer buffer = pool.acquire();
+            buffer.limit(size);
+            try {
+                this.scheduler.submit(new BufferFrame(Frame.OP_DATA, buffer, pool), FrameScheduler.CLASS_BULK);
+                fail("submit() accepted a frame after the scheduler stopped");
+            }catch(IOException expected){
+                //the connection is closed
+            }
+            assertEquals(0, pool.getInUse());
+        }
+    }
+
+    /**
+     * Submits one pooled buffer on its own thread, it is split into more slices than can be queued.
+     */
+    private Thread submitInBackground(final BufferPool pool) throws IOException {
+        final ByteBuffer buffer = pool.acquire();
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                try {
+                    scheduler.submit(new BufferFrame(Frame.OP_DATA, buffer, pool), FrameScheduler.CLASS_BULK);
+                }catch(IOException expected){
+                    //the scheduler stopped while the frame was queued
+                }
+            }
+        });
+        submitter.start();
+        return submitter;
+    }
+
+    /**
+     * Waits until the thread waits for the bulk queue to drain.
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING){
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitReleased(BufferPool pool) throws InterruptedException {
+        while (pool.getInUse() != 0){
+            Thread.sleep(1);
+        }
+        assertEquals(0, pool.getInUse());
+    }
+
+    /**
+     * Blocks in the first write until it is unblocked, releases the frames like the CommunicationHandler.
+     */
+    private static final class BlockingSink implements FrameScheduler.Sink {
+
+        private final CountDownLatch writing, unblock;
+        private final boolean fail;
+
+        BlockingSink(CountDownLatch writing, CountDownLatch unblock, boolean fail){
+            this.writing = writing;
+            this.unblock = unblock;
+            this.fail = fail;
+        }
+
+        @Override
+        public void write(Frame frame, int priorityClass) throws IOException {
+            try {
+                this.writing.countDown();
+                this.unblock.await();
+                if (this.fail){
+                    throw new IOException("connection lost");
+                }
+            }catch(InterruptedException eI){
+                throw new IOException(eI);
+            }finally{
+                if (frame instanceof BufferFrame){
+                    ((BufferFrame) frame).release();
+                }
+            }
+        }
+
+        @Override
+        public void idle(){
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignedObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mmi.colorgame.colorgameclient.Client;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends batches of images with ImageTransferHandler.sendImages() to a simulated server and checks the signed
+ * manifest it answers with.
+ */
+public class ImageBatchTest {
+
+    private static KeyPair serverKeys, otherKeys;
+
+    private final List<File> images = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>();
+
+    @Before
+    public void createImages() throws Exception {
+        if (serverKeys == null){
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            serverKeys = generator.generateKeyPair();
+            otherKeys = generator.generateKeyPair();
+        }
+
+        //a single leaf, several leaves with a partial last one and a multiple of the leaf size
+        int[] sizes = {1234, 3 * Misc.MERKLE_LEAF_SIZE + 77, 2 * Misc.MERKLE_LEAF_SIZE};
+        Random random = new Random(4);
+        for (int size : sizes){
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            File file = File.createTempFile("batch", ".jpg");
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data);
+            }finally{
+                out.close();
+            }
+            this.images.add(file);
+            this.contents.add(data);
+        }
+    }
+
+    @After
+    public void deleteImages(){
+        for (File image : this.images){
+            assertTrue(image.delete());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sendImages_allVerified() throws Exception {
+        Connection connection = new Connection(new Server(Server.CORRECT));
+        boolean[] verified = connection.ih.sendImages(this.images);
+        connection.close();
+
+        assertArrayEquals(new boolean[]{true, true, true}, verified);
+        assertEquals(Arrays.asList(".imageSuccess", ".imageSuccess", ".imageSuccess"), connection.server.results);
+        for (int i = 0; i < this.contents.size(); i++){
+            assertArrayEquals(this.contents.get(i), connection.server.received.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sendImages_corruptImage() throws Exception {
+        Connection connection = new Connection(new Server(Server.CORRUPT_SECOND));
+        boolean[] verified = connection.ih.sendImages(this.images);
+        connection.close();
+
+        //only the corrupted image has to be sent again
+        assertArrayEquals(new boolean[]{true, false, true}, verified);
+        assertEquals(Arrays.asList(".imageSuccess", ".imageCorrupt", ".imageSuccess"), connection.server.results);
+    }
+
+    @Test(timeout = 10000)
+    public void sendImages_manifestOfWrongLength() throws Exception {
+        Connection connection = new Connection(new Server(Server.SHORT_MANIFEST));
+        boolean[] verified = connection.ih.sendImages(this.images);
+        connection.close();
+
+        //the hashes can not be assigned to the images
+        assertArrayEquals(new boolean[]{false, false, false}, verified);
+        assertEquals(Arrays.asList(".imageCorrupt", ".imageCorrupt", ".imageCorrupt"), connection.server.results);
+    }
+
+    @Test(timeout = 10000)
+    public void sendImages_foreignSignature() throws Exception {
+        Connection connection = new Connection(new Server(Server.FOREIGN_SIGNATURE));
+        boolean[] verified = connection.ih.sendImages(this.images);
+        connection.close();
+
+        assertArrayEquals(new boolean[]{false, false, false}, verified);
+        assertEquals(Arrays.asList(".imageCorrupt", ".imageCorrupt", ".imageCorrupt"), connection.server.results);
+    }
+
+    @Test(timeout = 10000)
+    public void sendImages_notConfirmed() throws Exception {
+        Connection connection = new Connection(new Server(Server.REJECT));
+        assertNull(connection.ih.sendImages(this.images));
+        connection.close();
+        assertTrue(connection.server.results.isEmpty());
+    }
+
+    /**
+     * A CommunicationHandler with the object stream protocol connected to a simulated server, the client verifies
+     * signatures with the key of the server.
+     */
+    private static final class Connection {
+
+        final AtomicLong packets = new AtomicLong();
+        final Server server;
+        final CommunicationHandler ch;
+        final ImageTransferHandler ih;
+
+        Connection(Server server) throws Exception {
+            DelayedStream up = new DelayedStream(1, this.packets);
+            DelayedStream down = new DelayedStream(1, this.packets);
+            this.server = server;
+            this.server.connect(up.input, down.output);
+            this.server.start();
+
+            this.ch = new CommunicationHandler(null, new PipeTransport(down.input, up.output),
+                    Misc.PROTOCOL_OBJECT_STREAM);
+            this.ch.setupConnection();
+            this.ih = new ImageTransferHandler(new Client(null) {
+                @Override
+                public boolean verifySignature(SignedObject signed){
+                    try {
+                        return signed.verify(serverKeys.getPublic(), Signature.getInstance("SHA256withRSA"));
+                    }catch(Exception e){
+                        return false;
+                    }
+                }
+            }, this.ch);
+        }
+
+        void close() throws InterruptedException {
+            this.ch.closeConnection();
+            this.server.join();
+            assertNull(String.valueOf(this.server.failure.get()), this.server.failure.get());
+        }
+    }
+
+    /**
+     * Receives a batch and answers with a manifest of the hashes of the received images.
+     */
+    private static final class Server extends Thread {
+
+        static final int CORRECT = 0, CORRUPT_SECOND = 1, SHORT_MANIFEST = 2, FOREIGN_SIGNATURE = 3, REJECT = 4;
+
+        final List<byte[]> received = new ArrayList<>();
+        final List<String> results = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final int behaviour;
+        private InputStream in;
+        private OutputStream out;
+
+        Server(int behaviour){
+            super("BatchServer");
+            setDaemon(true);
+            this.behaviour = behaviour;
+        }
+
+        void connect(InputStream in, OutputStream out){
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run(){
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(this.out);
+                oos.flush();
+                ObjectInputStream ois = new ObjectInputStream(this.in);
+
+                assertEquals(".imageBatch", ois.readObject());
+                int count = readInt(ois);
+                if (this.behaviour == REJECT){
+                    oos.writeObject(".imageReject");
+                    oos.flush();
+                    assertEquals(".close", ois.readObject());
+                    return;
+                }
+                oos.writeObject(".imageConfirm");
+                oos.flush();
+
+                //the images follow back to back
+                byte[] manifest = new byte[0];
+                for (int i = 0; i < count; i++){
+                    int size = readInt(ois);
+                    readInt(ois);
+                    int leafSize = readInt(ois);
+                    assertEquals(".imageSession", ois.readObject());
+                    assertNotNull(ois.readObject());
+
+                    byte[] image = new byte[size];
+                    ois.readFully(image);
+                    this.received.add(image.clone());
+                    if (this.behaviour == CORRUPT_SECOND && i == 1){
+                        image[size / 2] ^= 1;
+                    }
+
+                    MerkleTree tree = new MerkleTree(leafSize);
+                    tree.update(image);
+                    byte[] hash = tree.digest();
+                    manifest = Arrays.copyOf(manifest, manifest.length + hash.length);
+                    System.arraycopy(hash, 0, manifest, manifest.length - hash.length, hash.length);
+                }
+
+                int hashLength = manifest.length / count;
+                if (this.behaviour == SHORT_MANIFEST){
+                    manifest = Arrays.copyOf(manifest, manifest.length - hashLength);
+                }
+                PrivateKey key = (this.behaviour == FOREIGN_SIGNATURE) ? otherKeys.getPrivate() : serverKeys.getPrivate();
+
+                oos.writeObject(".imageBatchReceived");
+                oos.writeObject(Integer.toString(hashLength));
+                oos.writeObject(new SignedObject(manifest, key, Signature.getInstance("SHA256withRSA")));
+                oos.flush();
+
+                for (int i = 0; i < count; i++){
+                    this.results.add((String) ois.readObject());
+                }
+                assertEquals(".close", ois.readObject());
+
+            }catch(Exception | AssertionError e){
+                this.failure.set(e);
+            }
+        }
+
+        private static int readInt(ObjectInputStream ois) throws Exception {
+            return Integer.parseInt((String) ois.readObject());
+        }
+    }
+}
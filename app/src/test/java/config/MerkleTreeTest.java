@@ -0,0 +1,187 @@
+package config;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The root and the leaf hashes of a MerkleTree, however the bytes arrive.
+ */
+public class MerkleTreeTest {
+
+    private static final int LEAF = 1024;
+
+    private static byte[] image(int size){
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Computes the root as defined in the documentation of MerkleTree, independent of its implementation.
+     */
+    private static byte[] referenceRoot(byte[] data) throws Exception {
+        List<byte[]> level = new ArrayList<>();
+        for (int off = 0; off < data.length || level.isEmpty(); off += LEAF){
+            MessageDigest leaf = MessageDigest.getInstance("SHA-256");
+            leaf.update((byte) 0);
+            leaf.update(data, off, Math.min(LEAF, data.length - off));
+            level.add(leaf.digest());
+        }
+        while (level.size() > 1){
+            List<byte[]> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2){
+                if (i + 1 == level.size()){
+                    next.add(level.get(i));
+                    continue;
+                }
+                MessageDigest node = MessageDigest.getInstance("SHA-256");
+                node.update((byte) 1);
+                node.update(level.get(i));
+                node.update(level.get(i + 1));
+                next.add(node.digest());
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    @Test
+    public void root_matchesReference() throws Exception {
+        for (int size : new int[]{0, 1, LEAF - 1, LEAF, LEAF + 1, 3 * LEAF, 5 * LEAF + 17, 64 * LEAF}){
+            byte[] data = image(size);
+            assertArrayEquals("Image of " + size + " bytes", referenceRoot(data), new MerkleTree(LEAF).digest(data));
+        }
+    }
+
+    @Test
+    public void root_independentOfPieces() throws Exception {
+        byte[] data = image(33 * LEAF + 100);
+        byte[] whole = new MerkleTree(LEAF).digest(data);
+
+        Random random = new Random(1);
+        MerkleTree pieces = new MerkleTree(LEAF);
+        for (int off = 0; off < data.length; ){
+            int len = Math.min(data.length - off, random.nextInt(3 * LEAF));
+            pieces.update(data, off, len);
+            off += len;
+        }
+        assertArrayEquals(whole, pieces.digest());
+
+        MerkleTree bytes = new MerkleTree(LEAF);
+        for (byte b : data){
+            bytes.update(b);
+        }
+        assertArrayEquals(whole, bytes.digest());
+
+        MerkleTree buffers = new MerkleTree(LEAF);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        while (direct.hasRemaining()){
+            ByteBuffer part = direct.duplicate();
+            part.limit(Math.min(direct.limit(), direct.position() + 777));
+            buffers.update(part);
+            direct.position(part.position());
+        }
+        assertArrayEquals(whole, buffers.digest());
+    }
+
+    @Test
+    public void clone_continuesIndependently() throws Exception {
+        byte[] data = image(10 * LEAF + 5);
+        int half = 4 * LEAF + 3;
+
+        MerkleTree tree = new MerkleTree(LEAF);
+        tree.update(data, 0, half);
+        MerkleTree copy = (MerkleTree) tree.clone();
+
+        //the copy is continued with other bytes first, the original must not see them
+        MerkleTree other = (MerkleTree) tree.clone();
+        other.update(image(3 * LEAF));
+        other.digest();
+
+        copy.update(data, half, data.length - half);
+        tree.update(data, half, data.length - half);
+        byte[] expected = referenceRoot(data);
+        assertArrayEquals(expected, copy.digest());
+        assertArrayEquals(expected, tree.digest());
+    }
+
+    @Test
+    public void uploadSession_resumesRoot() throws Exception {
+        byte[] data = image(6 * LEAF);
+        UploadSession session = new UploadSession(null, data.length);
+        MerkleTree tree = new MerkleTree(LEAF);
+        for (int off = 0; off < data.length; off += 1500){
+            int len = Math.min(1500, data.length - off);
+            tree.update(data, off, len);
+            session.sent(off + len, tree);
+        }
+
+        MessageDigest resumed = session.digestAt(3000);
+        assertTrue(resumed instanceof MerkleTree);
+        resumed.update(data, 3000, data.length - 3000);
+        assertArrayEquals(referenceRoot(data), resumed.digest());
+    }
+
+    @Test
+    public void leafHashes_locateCorruption() throws Exception {
+        byte[] data = image(34 * LEAF);
+        MerkleTree tree = new MerkleTree(LEAF);
+        tree.update(data);
+        byte[] hashes = tree.getLeafHashes(0, tree.getLeafCount());
+
+        byte[] corrupted = Arrays.copyOf(data, data.length);
+        corrupted[20 * LEAF + 123] ^= 1;
+        MerkleTree corruptedTree = new MerkleTree(LEAF);
+        corruptedTree.update(corrupted);
+        byte[] corruptedHashes = corruptedTree.getLeafHashes(0, corruptedTree.getLeafCount());
+
+        int changed = 0;
+        for (int i = 0; i < 34; i++){
+            boolean equal = Arrays.equals(Arrays.copyOfRange(hashes, i * 32, i * 32 + 32),
+                    Arrays.copyOfRange(corruptedHashes, i * 32, i * 32 + 32));
+            if (!equal){
+                assertEquals(20, i);
+                changed++;
+            }
+        }
+        assertEquals(1, changed);
+        assertFalse(Arrays.equals(tree.digest(), corruptedTree.digest()));
+    }
+
+    @Test
+    public void leafCount() throws Exception {
+        MerkleTree tree = new MerkleTree(LEAF);
+        assertEquals(1, tree.getLeafCount());
+        assertEquals(0, tree.getCompleteLeafCount());
+
+        tree.update(new byte[LEAF]);
+        assertEquals(1, tree.getLeafCount());
+        assertEquals(1, tree.getCompleteLeafCount());
+
+        tree.update(new byte[1]);
+        assertEquals(2, tree.getLeafCount());
+        assertEquals(1, tree.getCompleteLeafCount());
+
+        //the hash of the incomplete leaf does not close it
+        assertEquals(64, tree.getLeafHashes(0, 2).length);
+        assertEquals(2, tree.getLeafCount());
+    }
+
+    @Test
+    public void digest_resets() throws Exception {
+        byte[] data = image(3 * LEAF);
+        MerkleTree tree = new MerkleTree(LEAF);
+        tree.update(image(5 * LEAF));
+        tree.digest();
+        assertArrayEquals(referenceRoot(data), tree.digest(data));
+    }
+}
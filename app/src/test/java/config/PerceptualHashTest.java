@@ -0,0 +1,159 @@
+package config;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The distance of hashes of the same scene taken again (shifted, brighter, at another size) and of unrelated scenes.
+ */
+public class PerceptualHashTest {
+
+    private static final int WIDTH = 800, HEIGHT = 600;
+
+    @Test
+    public void sameImage_sameHash(){
+        int[] image = scene(1, WIDTH, HEIGHT, 0, 1.0);
+        assertEquals(PerceptualHash.of(image, WIDTH, HEIGHT), PerceptualHash.of(image.clone(), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void shift_isSimilar(){
+        PerceptualHash original = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 1.0), WIDTH, HEIGHT);
+        PerceptualHash shifted = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0.02, 1.0), WIDTH, HEIGHT);
+        assertTrue("Distance " + original.distance(shifted), original.distance(shifted) <= 8);
+    }
+
+    @Test
+    public void brightness_isSimilar(){
+        PerceptualHash original = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 1.0), WIDTH, HEIGHT);
+        PerceptualHash brighter = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 1.2), WIDTH, HEIGHT);
+        PerceptualHash darker = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 0.7), WIDTH, HEIGHT);
+        assertTrue("Distance " + original.distance(brighter), original.distance(brighter) <= 4);
+        assertTrue("Distance " + original.distance(darker), original.distance(darker) <= 4);
+    }
+
+    @Test
+    public void size_isSimilar(){
+        PerceptualHash original = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 1.0), WIDTH, HEIGHT);
+        PerceptualHash small = PerceptualHash.of(scene(1, 160, 120, 0, 1.0), 160, 120);
+        PerceptualHash large = PerceptualHash.of(scene(1, 2000, 1500, 0, 1.0), 2000, 1500);
+        assertTrue("Distance " + original.distance(small), original.distance(small) <= 4);
+        assertTrue("Distance " + original.distance(large), original.distance(large) <= 4);
+    }
+
+    @Test
+    public void unrelatedImage_isRejected(){
+        PerceptualHash original = PerceptualHash.of(scene(1, WIDTH, HEIGHT, 0, 1.0), WIDTH, HEIGHT);
+
+        //other scenes differ in about half of the bits, CONTROL_MAX_DISTANCE is loose enough for a control image
+        //taken by hand, so some of them come close enough by chance: the check only catches obviously wrong images
+        int rejected = 0, total = 0, scenes = 40;
+        for (long seed = 2; seed < 2 + scenes; seed++){
+            PerceptualHash other = PerceptualHash.of(scene(seed, 200, 150, 0, 1.0), 200, 150);
+            total += original.distance(other);
+            if (!original.matches(other, Misc.CONTROL_MAX_DISTANCE)){
+                rejected++;
+            }
+        }
+        System.out.println("Perceptual hash of unrelated scenes: " + rejected + " of " + scenes + " rejected, distance "
+                + total / (double) scenes + " on average");
+        assertTrue(rejected >= scenes * 2 / 3);
+        assertEquals(PerceptualHash.BITS / 2, total / (double) scenes, 4);
+
+        //the same scene taken again is accepted
+        PerceptualHash again = PerceptualHash.of(scene(1, 1600, 1200, 0.02, 1.1), 1600, 1200);
+        assertTrue(original.matches(again, Misc.CONTROL_MAX_DISTANCE));
+    }
+
+    @Test
+    public void invalidImage(){
+        int[][] sizes = {{0, 10}, {10, 0}, {-1, 10}, {10, 11}};
+        for (int[] size : sizes){
+            try {
+                PerceptualHash.of(new int[100], size[0], size[1]);
+                fail("Accepted an image of " + size[0] + "x" + size[1] + " pixels");
+            }catch(IllegalArgumentException expected){
+                //no hash for an image without pixels
+            }
+        }
+    }
+
+    @Test
+    public void toString_parse(){
+        PerceptualHash hash = new PerceptualHash(0x8000000000000001L);
+        assertEquals("8000000000000001", hash.toString());
+        assertEquals(hash, PerceptualHash.parse(hash.toString()));
+        assertNull(PerceptualHash.parse(null));
+        assertNull(PerceptualHash.parse("no hash"));
+        assertEquals(1.0, hash.similarity(hash), 0);
+        assertEquals(2, hash.distance(new PerceptualHash(0)));
+    }
+
+    /**
+     * Hashes images of 12 megapixels (4000x3000) like a photo decoded without sample size.
+     */
+    @Test
+    public void benchmark_largeImages(){
+        int width = 4000, height = 3000;
+        int[] image = new int[width * height];
+        Random random = new Random(3);
+        for (int i = 0; i < image.length; i++){
+            image[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        //warm up the compiler
+        for (int i = 0; i < 3; i++){
+            PerceptualHash.of(image, width, height);
+        }
+
+        int runs = 10;
+        long started = System.nanoTime();
+        for (int i = 0; i < runs; i++){
+            PerceptualHash.of(image, width, height);
+        }
+        long nanos = (System.nanoTime() - started) / runs;
+
+        System.out.println(String.format("Perceptual hash of a %dx%d image: %d ms, %.0f megapixels/s",
+                width, height, nanos / 1000000, width * (double) height / nanos * 1000));
+        assertTrue(nanos < 2000L * 1000 * 1000);
+    }
+
+    /**
+     * Renders a scene of soft bright and dark blobs, the same seed gives the same scene at every size.
+     *
+     * @param seed the scene
+     * @param shift horizontal shift of the scene as share of the width
+     * @param exposure factor for the brightness
+     * @return the pixels row by row
+     */
+    private static int[] scene(long seed, int width, int height, double shift, double exposure){
+        Random random = new Random(seed);
+        int blobs = 24;
+        double[] cx = new double[blobs], cy = new double[blobs], radius = new double[blobs], weight = new double[blobs];
+        for (int i = 0; i < blobs; i++){
+            cx[i] = random.nextDouble();
+            cy[i] = random.nextDouble();
+            radius[i] = 0.05 + random.nextDouble() * 0.15;
+            weight[i] = (random.nextBoolean() ? 1 : -1) * (40 + random.nextDouble() * 80);
+        }
+
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++){
+            double v = (y + 0.5) / height;
+            for (int x = 0; x < width; x++){
+                double u = (x + 0.5) / width + shift;
+                double value = 128;
+                for (int i = 0; i < blobs; i++){
+                    double du = (u - cx[i]) / radius[i], dv = (v - cy[i]) / radius[i];
+                    value += weight[i] * Math.exp(-(du * du + dv * dv));
+                }
+                int gray = (int) Math.max(0, Math.min(255, value * exposure));
+                pixels[y * width + x] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,77 @@
+package config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * A connection without TLS for tests, the handshake counts as done.
+ */
+final class PipeTransport implements Transport {
+
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile boolean closed;
+
+    PipeTransport(InputStream in, OutputStream out){
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols){
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] cipherSuites){
+    }
+
+    @Override
+    public void startHandshake(){
+    }
+
+    @Override
+    public boolean isHandshakeDone(){
+        return true;
+    }
+
+    @Override
+    public SSLSession getSession(){
+        return null;
+    }
+
+    @Override
+    public InputStream getInputStream(){
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream(){
+        return this.out;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        this.out.write(data);
+        this.out.flush();
+    }
+
+    @Override
+    public void setSoTimeout(int millis){
+    }
+
+    @Override
+    public void close(){
+        this.closed = true;
+    }
+
+    @Override
+    public boolean isClosed(){
+        return this.closed;
+    }
+}
@@ -0,0 +1,256 @@
+package config;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * The split of an image into leaf aligned stripes and the throughput of upload() on a simulated link where
+ * a single connection is limited by its window.
+ */
+public class StripedUploaderTest {
+
+    private static final long LEAF = Misc.MERKLE_LEAF_SIZE;
+    private static final long BYTES_PER_SECOND = 40L * 1000 * 1000;
+
+    @Test
+    public void split_multipleOfLeaf(){
+        assertEquals(2 * LEAF, StripedUploader.stripeLength(8 * LEAF, 4));
+        assertArrayEquals(new long[]{0, 2 * LEAF, 2 * LEAF, 2 * LEAF, 4 * LEAF, 2 * LEAF, 6 * LEAF, 2 * LEAF},
+                StripedUploader.split(8 * LEAF, 4));
+    }
+
+    @Test
+    public void split_partialLastLeaf(){
+        //11 leaves, the last one incomplete: 3 leaves per stripe, the last stripe gets the rest
+        long size = 10 * LEAF + 123;
+        assertEquals(3 * LEAF, StripedUploader.stripeLength(size, 4));
+        assertArrayEquals(new long[]{0, 3 * LEAF, 3 * LEAF, 3 * LEAF, 6 * LEAF, 3 * LEAF, 9 * LEAF, LEAF + 123},
+                StripedUploader.split(size, 4));
+    }
+
+    @Test
+    public void split_emptyStripes(){
+        //5 leaves in 4 stripes of 2 leaves, the fourth stripe starts behind the image
+        assertArrayEquals(new long[]{0, 2 * LEAF, 2 * LEAF, 2 * LEAF, 4 * LEAF, LEAF, 5 * LEAF, 0},
+                StripedUploader.split(5 * LEAF, 4));
+
+        //2 leaves (one of them a single byte) in 4 stripes of 1 leaf
+        long size = LEAF + 1;
+        assertArrayEquals(new long[]{0, LEAF, LEAF, 1, size, 0, size, 0}, StripedUploader.split(size, 4));
+
+        //an image smaller than a leaf is sent on the first connection alone
+        assertArrayEquals(new long[]{0, 100, 100, 0, 100, 0}, StripedUploader.split(100, 3));
+    }
+
+    @Test
+    public void split_coversImage(){
+        Random random = new Random(1);
+        for (int run = 0; run < 2000; run++){
+            int stripes = 1 + random.nextInt(8);
+            long size = (run % 2 == 0) ? random.nextInt(40) * LEAF : 1 + (long) random.nextInt(40 * (int) LEAF);
+            long stripeLength = StripedUploader.stripeLength(size, stripes);
+            long[] ranges = StripedUploader.split(size, stripes);
+            String message = size + " bytes in " + stripes + " stripes";
+
+            assertEquals(message, 0, stripeLength % LEAF);
+            assertEquals(message, 2 * stripes, ranges.length);
+            long end = 0;
+            for (int i = 0; i < stripes; i++){
+                long offset = ranges[2 * i], length = ranges[2 * i + 1];
+                assertEquals(message, end, offset);
+                assertTrue(message, length >= 0 && length <= stripeLength);
+                if (length == 0){
+                    //only stripes behind the end of the image are empty
+                    assertEquals(message, size, offset);
+                }else {
+                    //the leaves of a stripe can be verified on their own
+                    assertEquals(message, 0, offset % LEAF);
+                    assertEquals(message, i * stripeLength, offset);
+                    assertTrue(message, (offset + length) % LEAF == 0 || offset + length == size);
+                }
+                end = offset + length;
+            }
+            assertEquals(message, size, end);
+        }
+    }
+
+    @Test
+    public void accepts_minimumStripeSize(){
+        StripedUploader none = new StripedUploader(null, null, null, 0, 0);
+        assertFalse(none.accepts(Long.MAX_VALUE));
+
+        StripedUploader three = new StripedUploader(null, null, null, 0, 3);
+        assertFalse(three.accepts(4L * Misc.STRIPE_MIN_SIZE - 1));
+        assertTrue(three.accepts(4L * Misc.STRIPE_MIN_SIZE));
+    }
+
+    /**
+     * Sends an image with upload() in 1 to 8 stripes over a link of 40 MB/s with a round trip of 20 ms, a connection
+     * has at most 128 KB unacknowledged (6.5 MB/s). The stripe connections are opened to a simulated server.
+     */
+    @Test(timeout = 60000)
+    public void benchmark_throughputAgainstStripes() throws Exception {
+        File file = File.createTempFile("stripes", ".jpg");
+        RandomAccessFile image = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[6 * 1024 * 1024 + 1234];
+            new Random(2).nextBytes(data);
+            image.write(data);
+            FileChannel source = image.getChannel();
+
+            StringBuilder report = new StringBuilder("Striped upload of " + data.length / 1024 + " KB:");
+            double single = 0, four = 0;
+            for (int stripes = 1; stripes <= 8; stripes *= 2){
+                double throughput = upload(source, data, stripes);
+                report.append(String.format(" %d stripes %.1f MB/s", stripes, throughput / 1e6));
+                if (stripes == 1){
+                    single = throughput;
+                }else if (stripes == 4){
+                    four = throughput;
+                }
+                assertTrue(throughput < 1.1 * BYTES_PER_SECOND);
+            }
+            System.out.println(report);
+
+            //the window limits one connection, more stripes use the bandwidth of the link
+            assertTrue(four > 2.5 * single);
+
+        }finally{
+            image.close();
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * Uploads the image until the server has received every stripe.
+     *
+     * @return bytes per second
+     */
+    private static double upload(FileChannel source, byte[] data, int stripes) throws Exception {
+        final DelayedStream.Link link = new DelayedStream.Link(BYTES_PER_SECOND);
+        UploadSession session = new UploadSession(null, data.length);
+        final Server server = new Server(data.length, stripes, session.getId());
+
+        StripedUploader uploader = new StripedUploader(null, null, null, 0, stripes - 1){
+            @Override
+            Transport openTransport(){
+                return server.connect(link);
+            }
+        };
+        CommunicationHandler ch = new CommunicationHandler(null, server.connect(link), Misc.PROTOCOL_OBJECT_STREAM);
+        ch.setupConnection();
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long started = System.nanoTime();
+        uploader.upload(ch, source, session, digest);
+        assertTrue(server.received.await(10, TimeUnit.SECONDS));
+        long nanos = System.nanoTime() - started;
+        ch.closeConnection();
+
+        assertNull(server.failure.get());
+        assertArrayEquals(data, server.image);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest.digest());
+        //the image was sent once, the object stream adds a header to every block of 1 KB
+        assertTrue(link.getSent() > data.length && link.getSent() < 1.01 * data.length);
+        return data.length * 1e9 / nanos;
+    }
+
+    /**
+     * Puts the image together from the stripes on all connections.
+     */
+    private static final class Server {
+
+        private static final int ONE_WAY_MILLIS = 10;
+        private static final int WINDOW = 128 * 1024;
+
+        final byte[] image;
+        final CountDownLatch received;
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        private final int stripes;
+        private final String session;
+        private final AtomicLong packets = new AtomicLong();
+
+        Server(int size, int stripes, String session){
+            this.image = new byte[size];
+            this.received = new CountDownLatch(stripes);
+            this.stripes = stripes;
+            this.session = session;
+        }
+
+        /**
+         * Opens a connection, the client sends on the link.
+         */
+        Transport connect(DelayedStream.Link link){
+            DelayedStream up = new DelayedStream(ONE_WAY_MILLIS, this.packets, link, WINDOW);
+            DelayedStream down = new DelayedStream(ONE_WAY_MILLIS, this.packets);
+            Handler handler = new Handler(up.input, down.output);
+            handler.start();
+            return new PipeTransport(down.input, up.output);
+        }
+
+        /**
+         * Reads the first stripe after '.imageStriped' or an extra stripe after the ID of the client.
+         */
+        private final class Handler extends Thread {
+
+            private final InputStream in;
+            private final OutputStream out;
+
+            Handler(InputStream in, OutputStream out){
+                super("StripeServer");
+                setDaemon(true);
+                this.in = in;
+                this.out = out;
+            }
+
+            @Override
+            public void run(){
+                try {
+                    ObjectOutputStream oos = new ObjectOutputStream(this.out);
+                    oos.flush();
+                    ObjectInputStream ois = new ObjectInputStream(this.in);
+                    long[] ranges = StripedUploader.split(image.length, stripes);
+
+                    String command = (String) ois.readObject();
+                    if (".imageStriped".equals(command)){
+                        assertEquals(stripes, Integer.parseInt((String) ois.readObject()));
+                        assertEquals(StripedUploader.stripeLength(image.length, stripes),
+                                Integer.parseInt((String) ois.readObject()));
+                        ois.readFully(image, (int) ranges[0], (int) ranges[1]);
+                        received.countDown();
+
+                    }else {
+                        //a new connection identifies before its first command
+                        assertEquals(Integer.toString(Misc.CLIENT_ID), command);
+                        assertEquals(".imageStripe", ois.readObject());
+                        assertEquals(session, ois.readObject());
+                        int index = Integer.parseInt((String) ois.readObject());
+                        ois.readFully(image, (int) ranges[2 * index], (int) ranges[2 * index + 1]);
+                        oos.writeObject(".stripeReceived");
+                        oos.flush();
+                        received.countDown();
+                    }
+                    assertEquals(".close", ois.readObject());
+
+                }catch(Exception | AssertionError e){
+                    failure.compareAndSet(null, (e instanceof Exception) ? (Exception) e : new Exception(e));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package config;
+
+import org.junit.Test;
+
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.*;
+
+/**
+ * One SSLContext per keystore: clients with the same keystore share the cached sessions, other keystores do not get
+ * their credentials.
+ */
+public class TlsSessionCacheTest {
+
+    @Test
+    public void getContext_perKeyStore() throws Exception {
+        TlsSessionCache cache = new TlsSessionCache();
+
+        SSLContext first = cache.getContext("a", null, null);
+        assertSame(first, cache.getContext("a", null, null));
+
+        SSLContext other = cache.getContext("b", null, null);
+        assertNotSame(first, other);
+        assertEquals(Misc.TLS_SESSION_CACHE_SIZE, other.getClientSessionContext().getSessionCacheSize());
+    }
+
+    @Test
+    public void fingerprint_isStable() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+
+        String fingerprint = KeyStoreHandler.fingerprint(keyStore);
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, KeyStoreHandler.fingerprint(keyStore));
+    }
+}
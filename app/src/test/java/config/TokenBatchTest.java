@@ -0,0 +1,182 @@
+package config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * The answer of the server to a bulk token request and the round trips it saves compared to requesting the tokens
+ * one by one.
+ */
+public class TokenBatchTest {
+
+    private static final List<String> IMAGES = Arrays.asList("a1", "b2", "c3", "d4");
+
+    @Test
+    public void parse_statuses() throws Exception {
+        TokenBatch batch = TokenBatch.parse(IMAGES, new String[]{"a1 token T1", "b2 deferred", "c3 none", "d4 token T4"});
+
+        assertEquals("T1", batch.getToken("a1"));
+        assertEquals("T4", batch.getToken("d4"));
+        assertNull(batch.getToken("b2"));
+        assertEquals(Arrays.asList("a1", "d4"), new ArrayList<>(batch.getTokens().keySet()));
+        assertEquals(Collections.singleton("b2"), batch.getDeferred());
+        assertEquals(Collections.singleton("c3"), batch.getRefused());
+        assertFalse(batch.isComplete());
+    }
+
+    @Test
+    public void parse_complete() throws Exception {
+        TokenBatch batch = TokenBatch.parse(IMAGES, new String[]{"a1 token T1", " b2 none ", "c3 token T3", "d4 none"});
+        assertTrue(batch.isComplete());
+        assertEquals(2, batch.getTokens().size());
+        assertEquals(2, batch.getRefused().size());
+    }
+
+    @Test
+    public void parse_missingImagesAreDeferred() throws Exception {
+        TokenBatch batch = TokenBatch.parse(IMAGES, new String[]{"c3 token T3"});
+        assertEquals("T3", batch.getToken("c3"));
+        assertEquals(Arrays.asList("a1", "b2", "d4"), new ArrayList<>(batch.getDeferred()));
+        assertTrue(batch.getRefused().isEmpty());
+
+        batch = TokenBatch.parse(IMAGES, new String[0]);
+        assertEquals(IMAGES, new ArrayList<>(batch.getDeferred()));
+    }
+
+    @Test
+    public void parse_malformedLines(){
+        String[] malformed = {null, "", "a1", "a1 token", "a1 deferred later", "a1 none T1", "a1 granted T1",
+                "a1 token T1 T2", "a1  token T1"};
+        for (String line : malformed){
+            try {
+                TokenBatch.parse(IMAGES, new String[]{"b2 none", line});
+                fail("Accepted '" + line + "'");
+            }catch(IOException expected){
+                //the answer of the server can not be trusted
+            }
+        }
+    }
+
+    /**
+     * Requests the tokens of 120 images one by one and in one bulk request from a server that is 10 ms away.
+     */
+    @Test(timeout = 30000)
+    public void benchmark_bulkAgainstSequential() throws Exception {
+        List<String> images = new ArrayList<>();
+        for (int i = 0; i < 120; i++){
+            images.add(String.format("%032x", i));
+        }
+
+        Connection sequential = new Connection(5);
+        long started = System.nanoTime();
+        for (String image : images){
+            sequential.ih.requestToken();
+            assertEquals("T" + image, sequential.ih.listenForTokenForImage());
+        }
+        long sequentialNanos = System.nanoTime() - started;
+        sequential.close();
+
+        Connection bulk = new Connection(5);
+        started = System.nanoTime();
+        TokenBatch batch = bulk.ih.requestTokens(images);
+        long bulkNanos = System.nanoTime() - started;
+        bulk.close();
+
+        System.out.println(String.format("Tokens for %d images with a round trip of 10 ms: one by one %d ms "
+                + "(%d flushes), bulk %d ms (%d flushes)", images.size(), sequentialNanos / 1000000,
+                sequential.packets.get(), bulkNanos / 1000000, bulk.packets.get()));
+
+        assertTrue(batch.isComplete());
+        for (String image : images){
+            assertEquals("T" + image, batch.getToken(image));
+        }
+        //one round trip instead of one per image
+        assertTrue(bulkNanos * 20 < sequentialNanos);
+    }
+
+    /**
+     * A CommunicationHandler with the object stream protocol connected to a simulated server.
+     */
+    private static final class Connection {
+
+        final AtomicLong packets = new AtomicLong();
+        final Server server;
+        final CommunicationHandler ch;
+        final ImageTransferHandler ih;
+
+        Connection(int oneWayMillis) throws IOException {
+            DelayedStream up = new DelayedStream(oneWayMillis, this.packets);
+            DelayedStream down = new DelayedStream(oneWayMillis, this.packets);
+            this.server = new Server(up.input, down.output);
+            this.server.start();
+
+            this.ch = new CommunicationHandler(null, new PipeTransport(down.input, up.output),
+                    Misc.PROTOCOL_OBJECT_STREAM);
+            this.ch.setupConnection();
+            this.ih = new ImageTransferHandler(null, this.ch);
+        }
+
+        void close() throws InterruptedException {
+            this.ch.closeConnection();
+            this.server.join();
+        }
+    }
+
+    /**
+     * Answers token requests with the token "T" + ID, the sequential requests carry no ID, they are for the
+     * images in the order of the test.
+     */
+    private static final class Server extends Thread {
+
+        private final InputStream in;
+        private final OutputStream out;
+
+        Server(InputStream in, OutputStream out){
+            super("TokenServer");
+            setDaemon(true);
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run(){
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(this.out);
+                oos.flush();
+                ObjectInputStream ois = new ObjectInputStream(this.in);
+
+                int sequential = 0;
+                String command;
+                while (!".close".equals(command = (String) ois.readObject())){
+                    if (".tokenForImage".equals(command)){
+                        oos.writeObject(".tokenForImage");
+                        oos.writeObject("T" + String.format("%032x", sequential++));
+                    }else if (".tokensForImages".equals(command)){
+                        int count = Integer.parseInt((String) ois.readObject());
+                        oos.writeObject(".tokensForImages");
+                        oos.writeObject(Integer.toString(count));
+                        for (int i = 0; i < count; i++){
+                            String image = (String) ois.readObject();
+                            oos.writeObject(image + " token T" + image);
+                        }
+                    }
+                    oos.flush();
+                }
+            }catch(Exception e){
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
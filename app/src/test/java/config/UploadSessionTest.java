@@ -0,0 +1,127 @@
+package config;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resuming an upload from the copies of the digest an UploadSession keeps for the sent offsets.
+ */
+public class UploadSessionTest {
+
+    private static final int CHUNK = 1000;
+
+    private static byte[] image(int size){
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Sends the image in chunks and records a copy of the digest after every chunk.
+     */
+    private static UploadSession send(byte[] data, int chunks) throws Exception {
+        UploadSession session = new UploadSession(null, data.length);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < chunks; i++){
+            digest.update(data, i * CHUNK, CHUNK);
+            session.sent((i + 1) * CHUNK, digest);
+        }
+        return session;
+    }
+
+    @Test
+    public void digestAt_resumesHash() throws Exception {
+        byte[] data = image(20 * CHUNK);
+        UploadSession session = send(data, 20);
+
+        for (int offset = CHUNK; offset <= data.length; offset += 7 * CHUNK){
+            MessageDigest resumed = session.digestAt(offset);
+            assertNotNull(resumed);
+            resumed.update(data, offset, data.length - offset);
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), resumed.digest());
+        }
+    }
+
+    @Test
+    public void digestAt_returnsCopy() throws Exception {
+        byte[] data = image(4 * CHUNK);
+        UploadSession session = send(data, 4);
+
+        byte[] first = session.digestAt(2 * CHUNK).digest(data);
+        byte[] second = session.digestAt(2 * CHUNK).digest(data);
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void digestAt_unknownOffset() throws Exception {
+        UploadSession session = send(image(4 * CHUNK), 4);
+        assertNull(session.digestAt(CHUNK + 1));
+        assertNull(session.digestAt(0));
+    }
+
+    @Test
+    public void acknowledge_dropsOlderSnapshots() throws Exception {
+        UploadSession session = send(image(10 * CHUNK), 10);
+
+        session.acknowledge(5 * CHUNK);
+        assertEquals(5 * CHUNK, session.getAcknowledged());
+        assertNull(session.digestAt(4 * CHUNK));
+        assertNotNull(session.digestAt(5 * CHUNK));
+        assertNotNull(session.digestAt(10 * CHUNK));
+
+        //an older acknowledgement arriving late changes nothing
+        session.acknowledge(2 * CHUNK);
+        assertEquals(5 * CHUNK, session.getAcknowledged());
+    }
+
+    @Test
+    public void sent_keepsLastSnapshots() throws Exception {
+        int chunks = Misc.UPLOAD_SNAPSHOTS + 10;
+        UploadSession session = send(image(chunks * CHUNK), chunks);
+
+        assertEquals(chunks * CHUNK, session.getSent());
+        assertNull(session.digestAt(10L * CHUNK));
+        assertNotNull(session.digestAt(11L * CHUNK));
+    }
+
+    @Test
+    public void sent_withoutDigest() throws Exception {
+        UploadSession session = new UploadSession(null, UploadSession.SIZE_UNKNOWN);
+        session.sent(CHUNK, null);
+        assertEquals(CHUNK, session.getSent());
+        assertNull(session.digestAt(CHUNK));
+    }
+
+    @Test
+    public void start_countsResumes(){
+        UploadSession session = new UploadSession(null, 1);
+        assertFalse(session.start());
+        assertTrue(session.start());
+        assertTrue(session.start());
+        assertEquals(2, session.getResumes());
+
+        UploadSession restored = UploadSession.restore(session.getId(), null, 1);
+        assertEquals(session.getId(), restored.getId());
+        assertTrue(restored.start());
+    }
+
+    @Test
+    public void finish_dropsSnapshots() throws Exception {
+        UploadSession session = send(image(2 * CHUNK), 2);
+        session.finish();
+        assertTrue(session.isFinished());
+        assertNull(session.digestAt(CHUNK));
+    }
+
+    @Test
+    public void id_isRandom(){
+        String id = new UploadSession(null, 1).getId();
+        assertEquals(32, id.length());
+        assertTrue(id.matches("[0-9a-f]+"));
+        assertNotEquals(id, new UploadSession(null, 1).getId());
+    }
+}